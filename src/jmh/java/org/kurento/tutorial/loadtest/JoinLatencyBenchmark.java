@@ -0,0 +1,124 @@
+package org.kurento.tutorial.loadtest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.tutorial.player.PlayerApp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+// The time a single viewer takes to join a room, from 'register' to the
+// 'startResponse', against a FakeKms that answers every call after a fixed delay.
+// With nothing else going on, the join time is about the number of round trips
+// times that delay, so the p50 and p99 of the sampled joins show how many calls
+// are still serialized on the join path. The KMS requests per join are printed
+// at the end of each run.
+//
+//   mvn -Pjmh test-compile exec:exec -Djmh.include=JoinLatencyBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class JoinLatencyBenchmark {
+  private static final long TIMEOUT_SECONDS = 30;
+  private static final String VIDEO_URL = "http://localhost/loadtest.mp4";
+
+  @Param({ "1", "5", "20" })
+  private long latencyMs;
+
+  private ConfigurableApplicationContext kms;
+  private ConfigurableApplicationContext player;
+  private FakeKmsHandler kmsHandler;
+  private StandardWebSocketClient client;
+  private String url;
+  private LatencyRecorder recorder;
+  private SimulatedClient admin;
+  private String room;
+  private SimulatedClient viewer;
+  private int objects;
+  private long joins;
+  private long joinRequests;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+            "--fakekms.latency-ms=" + latencyMs, "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=-1");
+    kmsHandler = kms.getBean(FakeKmsHandler.class);
+    int kmsPort = ((WebServerApplicationContext) kms).getWebServer().getPort();
+    // No warm pipelines, so that the objects on KMS only change with the viewer
+    player = new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=0", "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=ws://localhost:" + kmsPort + "/kurento", "--player.pipeline-pool.size=0");
+    url = "ws://localhost:" + ((WebServerApplicationContext) player).getWebServer().getPort() + "/player";
+    client = new StandardWebSocketClient();
+    recorder = new LatencyRecorder();
+
+    admin = new SimulatedClient("admin", recorder);
+    admin.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.start(VIDEO_URL);
+    room = admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    objects = kmsHandler.getObjects();
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() {
+    if (joins > 0) {
+      System.out.printf("%n%d joins, %.1f KMS requests per join%n", joins, (double) joinRequests / joins);
+    }
+    admin.stop();
+    admin.disconnect();
+    player.close();
+    kms.close();
+  }
+
+  // The socket is open before the join is timed
+  @Setup(Level.Invocation)
+  public void connect() throws Exception {
+    viewer = new SimulatedClient("viewer", recorder);
+    viewer.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  // The viewer leaves before the next join, so that every join finds the same room
+  @TearDown(Level.Invocation)
+  public void leave() throws Exception {
+    viewer.stop();
+    viewer.disconnect();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (kmsHandler.getObjects() != objects) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException(kmsHandler.getObjects() - objects + " objects of the viewer left on KMS");
+      }
+      Thread.sleep(1);
+    }
+    if (recorder.getErrors() > 0) {
+      throw new IllegalStateException(recorder.report(1));
+    }
+  }
+
+  @Benchmark
+  public void join() throws Exception {
+    long requests = kmsHandler.getRequests();
+    viewer.register(room);
+    viewer.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    joinRequests += kmsHandler.getRequests() - requests;
+    joins++;
+  }
+}
@@ -0,0 +1,144 @@
+package org.kurento.tutorial.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.tutorial.player.PlayerApp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+// A burst of viewers joining a few rooms at once, with every command handled on
+// the container thread (INLINE) or on the dispatch pool (POOLED). The player runs
+// against a FakeKms that answers each call after a fixed delay, with as few
+// container threads as a busy server has free. The score is the time per join
+// over the whole burst, so joins per second are 1000 / score.
+//
+//   mvn -Pjmh test-compile exec:exec -Djmh.include=JoinThroughputBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JoinThroughputBenchmark {
+  private static final int ROOMS = 8;
+  private static final int JOINS = 128;
+  private static final int CONTAINER_THREADS = 8;
+  private static final long TIMEOUT_SECONDS = 60;
+  private static final String VIDEO_URL = "http://localhost/loadtest.mp4";
+
+  @Param({ "INLINE", "POOLED" })
+  private String mode;
+
+  @Param({ "5", "20" })
+  private long latencyMs;
+
+  private ConfigurableApplicationContext kms;
+  private ConfigurableApplicationContext player;
+  private FakeKmsHandler kmsHandler;
+  private StandardWebSocketClient client;
+  private String url;
+  private LatencyRecorder recorder;
+  private final List<SimulatedClient> admins = new ArrayList<>();
+  private final List<String> rooms = new ArrayList<>();
+  private List<SimulatedClient> viewers;
+  private int objects;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+            "--fakekms.latency-ms=" + latencyMs, "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=-1");
+    kmsHandler = kms.getBean(FakeKmsHandler.class);
+    int kmsPort = ((WebServerApplicationContext) kms).getWebServer().getPort();
+    // Both names of the container's thread limit, whichever Spring Boot reads. The
+    // whole burst is admitted, so that only the dispatch differs, and no warm
+    // pipelines are kept, so that the objects on KMS only change with the viewers.
+    player = new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=0", "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=ws://localhost:" + kmsPort + "/kurento", "--player.dispatch.mode=" + mode,
+            "--server.tomcat.max-threads=" + CONTAINER_THREADS, "--server.tomcat.threads.max=" + CONTAINER_THREADS,
+            "--player.admission.max-concurrent-setups=" + JOINS, "--player.pipeline-pool.size=0");
+    url = "ws://localhost:" + ((WebServerApplicationContext) player).getWebServer().getPort() + "/player";
+    client = new StandardWebSocketClient();
+    recorder = new LatencyRecorder();
+
+    for (int r = 0; r < ROOMS; r++) {
+      SimulatedClient admin = new SimulatedClient("admin-" + r, recorder);
+      admin.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      admin.start(VIDEO_URL);
+      rooms.add(admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      admins.add(admin);
+    }
+    objects = kmsHandler.getObjects();
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() {
+    for (SimulatedClient admin : admins) {
+      admin.stop();
+      admin.disconnect();
+    }
+    player.close();
+    kms.close();
+  }
+
+  // The sockets are open before the burst starts: only the joins are timed
+  @Setup(Level.Iteration)
+  public void connect() throws Exception {
+    viewers = new ArrayList<>();
+    for (int i = 0; i < JOINS; i++) {
+      SimulatedClient viewer = new SimulatedClient("viewer-" + i, recorder);
+      viewer.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      viewers.add(viewer);
+    }
+  }
+
+  // Back to the rooms of the admins alone before the next burst
+  @TearDown(Level.Iteration)
+  public void leave() throws Exception {
+    for (SimulatedClient viewer : viewers) {
+      viewer.stop();
+      viewer.disconnect();
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (kmsHandler.getObjects() != objects) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException(kmsHandler.getObjects() - objects + " objects of the viewers left on KMS");
+      }
+      Thread.sleep(10);
+    }
+    if (recorder.getErrors() > 0) {
+      throw new IllegalStateException(recorder.report(1));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(JOINS)
+  public void burstOfJoins() throws Exception {
+    for (int i = 0; i < JOINS; i++) {
+      viewers.get(i).register(rooms.get(i % ROOMS));
+    }
+    for (SimulatedClient viewer : viewers) {
+      viewer.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+// One 'paused' event to every member of a room: the way StreamingRoom used to send
+// it, building and serializing the message with a new Gson for each recipient, and
+// the way it does now, serializing it once and sharing the frame. The new path
+// also goes through each member's outbound queue, drained on the calling thread.
+//
+//   mvn -Pjmh test-compile exec:exec -Djmh.include=BroadcastBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+  @Param({ "10", "100", "1000" })
+  private int members;
+
+  private List<UserSession> users;
+  private UserSession initiator;
+
+  @Setup
+  public void setUp() {
+    SessionSender.Stats stats = new SessionSender.Stats();
+    users = new ArrayList<>();
+    for (int i = 0; i < members; i++) {
+      DiscardingSession ws = new DiscardingSession("session-" + i);
+      SessionSender.attach(ws, WireFormat.JSON, Runnable::run, 256, SessionSender.OverflowPolicy.DROP_OLDEST,
+          stats);
+      users.add(new UserSession(ws, "user-" + i));
+    }
+    initiator = users.get(0);
+  }
+
+  // StreamingRoom.sendPause, once per member, before frames were shared
+  @Benchmark
+  public void perRecipientGson() throws IOException {
+    for (final UserSession us : users) {
+      JsonObject response = new JsonObject();
+      response.addProperty("id", "paused");
+      Gson gson = new Gson();
+      JsonElement who = gson.toJsonTree(initiator);
+      response.add("initiator", who);
+      WebSocketSession session = us.getWs();
+      synchronized (session) {
+        session.sendMessage(new TextMessage(response.toString()));
+      }
+    }
+  }
+
+  // StreamingRoom.broadcast
+  @Benchmark
+  public void sharedFrame() {
+    OutboundMessage message = SignalingCodec.playback("paused", initiator, Collections.singletonList(initiator));
+    for (final UserSession us : users) {
+      us.getSender().send(message, false);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.kurento.tutorial.player;
+
+import org.springframework.web.socket.WebSocketMessage;
+
+// A client that takes whatever it is sent and only counts the bytes, so that the
+// benchmarks measure the server side alone
+class DiscardingSession extends RecordingSession {
+  private long bytes;
+
+  DiscardingSession(final String id) {
+    super(id);
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public synchronized void sendMessage(final WebSocketMessage<?> message) {
+    bytes += message.getPayloadLength();
+  }
+}
@@ -0,0 +1,159 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+// One sample of each message of the signaling protocol, with the fields the web
+// client and the server actually send. Inbound samples are described once with a
+// MessageWriter, so that their JSON and CBOR frames carry the very same message.
+final class ProtocolSamples {
+  // What a browser offers to receive one video and one audio stream
+  static final String SDP_OFFER = sdpOffer();
+
+  static final String CANDIDATE = "candidate:842163049 1 udp 1677729535 203.0.113.7 61023 typ srflx "
+      + "raddr 192.168.1.20 rport 61023 generation 0 ufrag Zx8c network-cost 999";
+
+  private static final UserSession USER = new UserSession(null, "viewer");
+  private static final IceCandidate ICE = new IceCandidate(CANDIDATE, "0", 0);
+
+  private ProtocolSamples() {
+  }
+
+  static OutboundMessage inbound(final String id) {
+    switch (id) {
+      case "start":
+        return new OutboundMessage(id, out -> {
+          user(out.name("user"), "admin");
+          out.name("videourl").value("https://example.com/videos/big-buck-bunny-1080p.mp4");
+          out.name("sdpOffer").value(SDP_OFFER);
+          out.name("iceBatching").value(true);
+        });
+      case "register":
+        return new OutboundMessage(id, out -> {
+          out.name("roomid").value("7f9c2ba4-e88f-4d3c-9f4b-1a2b3c4d5e6f");
+          user(out.name("user"), "viewer");
+          out.name("sdpOffer").value(SDP_OFFER);
+          out.name("iceBatching").value(true);
+        });
+      case "rejoin":
+        return new OutboundMessage(id, out -> out.name("token").value("b1946ac9-2c1e-4d73-9d3a-2f8e1c9a7b50"));
+      case "onIceCandidate":
+        return new OutboundMessage(id, out -> candidate(out.name("candidate"), 0));
+      case "onIceCandidates":
+        return new OutboundMessage(id, out -> {
+          out.name("candidates").beginArray();
+          for (int i = 0; i < 4; i++) {
+            candidate(out, i);
+          }
+          out.endArray();
+        });
+      case "doSeek":
+        return new OutboundMessage(id, out -> out.name("position").value(1_834_500L));
+      case "showParticipants":
+        return new OutboundMessage(id, out -> out.name("room").value("7f9c2ba4-e88f-4d3c-9f4b-1a2b3c4d5e6f"));
+      case "inhibit":
+      case "uninhibit":
+      case "getStats":
+        return new OutboundMessage(id, out -> out.name("target").value("viewer"));
+      case "setBitrate":
+        return new OutboundMessage(id, out -> {
+          out.name("bitrate").value("medium");
+          out.name("target").value("viewer");
+        });
+      default:
+        // stop, pause, resume, getPosition, debugDot, transcodingReport
+        return new OutboundMessage(id, out -> { });
+    }
+  }
+
+  // Built anew on every call, as the server does for every message it sends
+  static OutboundMessage outbound(final String id) {
+    switch (id) {
+      case "startResponse":
+        return SignalingCodec.message(id, "sdpAnswer", SDP_OFFER);
+      case "iceCandidate":
+        return SignalingCodec.iceCandidate(ICE);
+      case "iceCandidates":
+        return SignalingCodec.iceCandidates(Collections.nCopies(4, ICE));
+      case "newUser":
+      case "userLeft":
+      case "newAdmin":
+        return SignalingCodec.user(id, "user", USER);
+      case "paused":
+      case "resumed":
+        return SignalingCodec.playback(id, USER, Collections.singletonList(USER));
+      case "seek":
+        return SignalingCodec.seek(USER, Collections.singletonList(USER), 1_834_500L);
+      case "position":
+        return SignalingCodec.message(id, "position", 1_834_500L);
+      case "uuid":
+        return SignalingCodec.message(id, "uuid", "7f9c2ba4-e88f-4d3c-9f4b-1a2b3c4d5e6f");
+      case "bitrate":
+        return SignalingCodec.bitrate(BitrateLevel.MEDIUM, 3_000_000, "auto");
+      case "resumeToken":
+        return SignalingCodec.resumeToken("b1946ac9-2c1e-4d73-9d3a-2f8e1c9a7b50", 30_000);
+      case "error":
+        return SignalingCodec.error("You're inhibited. You cannot perform this operation.");
+      default:
+        // playEnd
+        return SignalingCodec.message(id);
+    }
+  }
+
+  private static void user(final MessageWriter out, final String nickname) throws IOException {
+    out.beginObject();
+    out.name("nickname").value(nickname);
+    out.name("avatar").beginObject();
+    out.name("id").value(3);
+    out.name("path").value("img/avatar3.png");
+    out.endObject();
+    out.endObject();
+  }
+
+  private static void candidate(final MessageWriter out, final int index) throws IOException {
+    out.beginObject();
+    out.name("candidate").value(CANDIDATE.replace("61023", Integer.toString(61023 + index)));
+    out.name("sdpMid").value("0");
+    out.name("sdpMLineIndex").value(0);
+    out.endObject();
+  }
+
+  private static String sdpOffer() {
+    List<String> lines = new ArrayList<>();
+    lines.add("v=0");
+    lines.add("o=- 4611731400430051336 2 IN IP4 127.0.0.1");
+    lines.add("s=-");
+    lines.add("t=0 0");
+    lines.add("a=group:BUNDLE 0 1");
+    lines.add("a=msid-semantic: WMS");
+    String[][] media = { { "audio", "111 103 104 9 0 8 106 105 13 110 112 113 126" },
+        { "video", "96 97 98 99 100 101 102 121 127 120 125 107 108 109 124 119 123" } };
+    for (int m = 0; m < media.length; m++) {
+      lines.add("m=" + media[m][0] + " 9 UDP/TLS/RTP/SAVPF " + media[m][1]);
+      lines.add("c=IN IP4 0.0.0.0");
+      lines.add("a=rtcp:9 IN IP4 0.0.0.0");
+      lines.add("a=ice-ufrag:Zx8c");
+      lines.add("a=ice-pwd:3kX9cRz1m0PqLw7tYv2uBn5e");
+      lines.add("a=ice-options:trickle");
+      lines.add("a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:"
+          + "43:F0:A1:58:D0:A1:2C:19:08");
+      lines.add("a=setup:actpass");
+      lines.add("a=mid:" + m);
+      lines.add("a=recvonly");
+      lines.add("a=rtcp-mux");
+      for (String payload : media[m][1].split(" ")) {
+        lines.add("a=rtpmap:" + payload + (m == 0 ? " opus/48000/2" : " VP8/90000"));
+        if (m == 1) {
+          lines.add("a=rtcp-fb:" + payload + " goog-remb");
+          lines.add("a=rtcp-fb:" + payload + " transport-cc");
+          lines.add("a=rtcp-fb:" + payload + " nack pli");
+        }
+      }
+    }
+    return String.join("\r\n", lines) + "\r\n";
+  }
+}
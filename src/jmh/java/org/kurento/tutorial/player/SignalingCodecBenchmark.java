@@ -0,0 +1,133 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+// Every message of the JSON protocol through the codec. Inbound frames are either
+// parsed into a JsonObject tree and bound field by field, with a new Gson for the
+// user, as PlayerHandler used to, or decoded by SignalingCodec in one streaming
+// pass. Outbound messages are either built as a tree, the way the server used to,
+// or written field by field.
+//
+//   mvn -Pjmh test-compile exec:exec -Djmh.include=SignalingCodecBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingCodecBenchmark {
+  private static final Gson GSON = new GsonBuilder().create();
+
+  @State(Scope.Benchmark)
+  public static class Inbound {
+    @Param({ "start", "register", "rejoin", "stop", "pause", "resume", "doSeek", "getPosition", "onIceCandidate",
+        "onIceCandidates", "showParticipants", "inhibit", "uninhibit", "setBitrate", "getStats", "debugDot",
+        "transcodingReport" })
+    private String id;
+
+    private String payload;
+
+    @Setup
+    public void setUp() {
+      payload = ((TextMessage) ProtocolSamples.inbound(id).encode(WireFormat.JSON)).getPayload();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Outbound {
+    @Param({ "startResponse", "iceCandidate", "iceCandidates", "newUser", "userLeft", "newAdmin", "paused",
+        "resumed", "seek", "position", "uuid", "playEnd", "bitrate", "resumeToken", "error" })
+    private String id;
+
+    // The same message as a tree, for the old way of sending it
+    private JsonObject tree;
+
+    @Setup
+    public void setUp() {
+      String json = ((TextMessage) ProtocolSamples.outbound(id).encode(WireFormat.JSON)).getPayload();
+      tree = GSON.fromJson(json, JsonObject.class);
+    }
+  }
+
+  @Benchmark
+  public InboundMessage decodeTree(final Inbound inbound) {
+    JsonObject json = GSON.fromJson(inbound.payload, JsonObject.class);
+    InboundMessage message = new InboundMessage();
+    message.id = json.get("id").getAsString();
+    if (json.has("user")) {
+      Gson gson = new Gson();
+      message.user = gson.fromJson(json.get("user"), UserSession.class);
+    }
+    if (json.has("candidate")) {
+      message.candidate = candidate(json.get("candidate").getAsJsonObject());
+    }
+    if (json.has("candidates")) {
+      List<IceCandidate> candidates = new ArrayList<>();
+      for (JsonElement candidate : json.get("candidates").getAsJsonArray()) {
+        candidates.add(candidate(candidate.getAsJsonObject()));
+      }
+      message.candidates = candidates;
+    }
+    message.sdpOffer = string(json, "sdpOffer");
+    message.videoUrl = string(json, "videourl");
+    message.roomId = string(json, "roomid");
+    message.room = string(json, "room");
+    message.target = string(json, "target");
+    message.bitrate = string(json, "bitrate");
+    message.token = string(json, "token");
+    if (json.has("position")) {
+      message.position = json.get("position").getAsLong();
+    }
+    if (json.has("iceBatching")) {
+      message.iceBatching = json.get("iceBatching").getAsBoolean();
+    }
+    return message;
+  }
+
+  @Benchmark
+  public InboundMessage decodeStreaming(final Inbound inbound) {
+    return SignalingCodec.decode(inbound.payload);
+  }
+
+  // Only the serialization of the tree: building it took the old code a few more
+  // allocations, not counted here
+  @Benchmark
+  public TextMessage encodeTree(final Outbound outbound) {
+    return new TextMessage(outbound.tree.toString());
+  }
+
+  @Benchmark
+  public WebSocketMessage<?> encodeStreaming(final Outbound outbound) {
+    return ProtocolSamples.outbound(outbound.id).encode(WireFormat.JSON);
+  }
+
+  private static IceCandidate candidate(final JsonObject json) {
+    return new IceCandidate(json.get("candidate").getAsString(), json.get("sdpMid").getAsString(),
+        json.get("sdpMLineIndex").getAsInt());
+  }
+
+  private static String string(final JsonObject json, final String name) {
+    return json.has(name) ? json.get(name).getAsString() : null;
+  }
+}
@@ -0,0 +1,107 @@
+package org.kurento.tutorial.player;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+// Encode and decode throughput of the JSON and CBOR framings, message by message.
+// JSON frames are decoded from the String the container hands to PlayerHandler,
+// CBOR frames from the bytes BinaryPlayerHandler copies out of the container's
+// buffer. The size of each frame, in bytes, is reported next to its score as
+// frameBytes.
+//
+//   mvn -Pjmh test-compile exec:exec -Djmh.include=WireFormatBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+  @State(Scope.Benchmark)
+  public static class Inbound {
+    @Param({ "start", "register", "onIceCandidate", "onIceCandidates", "doSeek", "pause", "getPosition",
+        "setBitrate" })
+    private String id;
+
+    @Param({ "JSON", "CBOR" })
+    private WireFormat format;
+
+    private String text;
+    private ByteBuffer bytes;
+    private int size;
+
+    @Setup
+    public void setUp() {
+      WebSocketMessage<?> message = ProtocolSamples.inbound(id).encode(format);
+      if (format == WireFormat.CBOR) {
+        bytes = ((BinaryMessage) message).getPayload();
+      } else {
+        text = ((TextMessage) message).getPayload();
+      }
+      size = sizeOf(message);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Outbound {
+    @Param({ "startResponse", "iceCandidate", "iceCandidates", "paused", "seek", "position", "bitrate",
+        "playEnd" })
+    private String id;
+
+    @Param({ "JSON", "CBOR" })
+    private WireFormat format;
+
+    private int size;
+
+    @Setup
+    public void setUp() {
+      size = sizeOf(ProtocolSamples.outbound(id).encode(format));
+    }
+  }
+
+  // Reported as is, not as a rate
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class FrameSize {
+    public long frameBytes;
+  }
+
+  @Benchmark
+  public InboundMessage decode(final Inbound inbound, final FrameSize frameSize) {
+    frameSize.frameBytes = inbound.size;
+    if (inbound.format == WireFormat.CBOR) {
+      return CborCodec.decode(inbound.bytes.duplicate());
+    }
+    return SignalingCodec.decode(inbound.text);
+  }
+
+  // A new message each time, since a message keeps the frames it has encoded
+  @Benchmark
+  public WebSocketMessage<?> encode(final Outbound outbound, final FrameSize frameSize) {
+    frameSize.frameBytes = outbound.size;
+    return ProtocolSamples.outbound(outbound.id).encode(outbound.format);
+  }
+
+  private static int sizeOf(final WebSocketMessage<?> message) {
+    if (message instanceof BinaryMessage) {
+      return ((BinaryMessage) message).getPayload().remaining();
+    }
+    return ((TextMessage) message).getPayload().getBytes(StandardCharsets.UTF_8).length;
+  }
+}
@@ -0,0 +1,64 @@
+package org.kurento.tutorial.loadtest;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+// Web application serving the FakeKmsHandler at /kurento, started by LoadTest in
+// its own context (and port) before the player connects to it
+@Configuration
+@EnableAutoConfiguration
+@EnableWebSocket
+public class FakeKms implements WebSocketConfigurer {
+
+  @Value("${fakekms.threads:4}")
+  private int threads;
+
+  @Value("${fakekms.latency-ms:2}")
+  private long latencyMillis;
+
+  @Value("${fakekms.jitter-ms:1}")
+  private long jitterMillis;
+
+  // Negative for endpoints that never connect
+  @Value("${fakekms.connect-delay-ms:200}")
+  private long connectDelayMillis;
+
+  @Value("${fakekms.video-duration-ms:7200000}")
+  private long videoDurationMillis;
+
+  @Bean(destroyMethod = "shutdownNow")
+  public ScheduledExecutorService fakeKmsScheduler() {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("fake-kms-");
+    threadFactory.setDaemon(true);
+    return Executors.newScheduledThreadPool(threads, threadFactory);
+  }
+
+  @Bean
+  public FakeKmsHandler fakeKmsHandler() {
+    return new FakeKmsHandler(latencyMillis, jitterMillis, connectDelayMillis, videoDurationMillis,
+        fakeKmsScheduler());
+  }
+
+  // Transactions of whole rooms are much larger than the signaling messages
+  @Bean
+  public ServletServerContainerFactoryBean createServletServerContainerFactoryBean() {
+    ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+    container.setMaxTextMessageBufferSize(1024 * 1024);
+    return container;
+  }
+
+  @Override
+  public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+    registry.addHandler(fakeKmsHandler(), "/kurento");
+  }
+}
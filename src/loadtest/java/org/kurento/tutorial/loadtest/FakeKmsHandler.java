@@ -0,0 +1,462 @@
+package org.kurento.tutorial.loadtest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+// Stand-in for the JSON-RPC interface of Kurento Media Server, with just enough of
+// it for the player to run rooms: media objects are ids with the properties set on
+// them, every request is answered after a configurable latency, and the
+// WebRtcEndpoints emit the events a real browser connection would cause.
+// No media is involved, so what it measures is the signaling server alone.
+public class FakeKmsHandler extends TextWebSocketHandler {
+  private static final Logger log = LoggerFactory.getLogger(FakeKmsHandler.class);
+
+  private static final String SERVER_MANAGER = "manager_ServerManager";
+  private static final String NEWREF = "newref:";
+  // JSON-RPC error codes of KMS
+  private static final int OBJECT_NOT_FOUND = 40101;
+  private static final int METHOD_NOT_FOUND = -32601;
+
+  private static final String SDP_ANSWER = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=Kurento Media Server\r\n"
+      + "c=IN IP4 127.0.0.1\r\nt=0 0\r\nm=video 40000 UDP/TLS/RTP/SAVPF 96\r\na=mid:0\r\n"
+      + "a=rtpmap:96 VP8/90000\r\na=sendonly\r\n";
+
+  private static class RpcException extends RuntimeException {
+    private final int code;
+
+    private RpcException(final int code, final String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  // A media object: its type, the properties set by the player and who subscribed
+  // to which of its events
+  private static class MediaObject {
+    private final String id;
+    private final String type;
+    private final String pipeline;
+    private final Map<String, JsonElement> properties = new ConcurrentHashMap<>();
+    // Event type -> session of the subscriber
+    private final Map<String, WebSocketSession> subscriptions = new ConcurrentHashMap<>();
+    // Subscriptions not yet dropped: unlike the map, a listener added twice for the
+    // same event counts twice, as it does on KMS
+    private final AtomicInteger listeners = new AtomicInteger();
+    // Playback of a PlayerEndpoint, guarded by the object's monitor
+    private boolean playing;
+    private long position;
+    private long playingSince;
+
+    private MediaObject(final String id, final String type, final String pipeline) {
+      this.id = id;
+      this.type = type;
+      this.pipeline = pipeline;
+    }
+
+    private synchronized long getPosition() {
+      return playing ? position + (System.currentTimeMillis() - playingSince) : position;
+    }
+
+    private synchronized void setPlaying(final boolean playing) {
+      position = getPosition();
+      playingSince = System.currentTimeMillis();
+      this.playing = playing;
+    }
+
+    private synchronized void setPosition(final long position) {
+      this.position = position;
+      playingSince = System.currentTimeMillis();
+    }
+  }
+
+  private final long latencyMillis;
+  private final long jitterMillis;
+  // From processOffer to the MediaStateChanged event of a WebRtcEndpoint
+  private final long connectDelayMillis;
+  private final long videoDurationMillis;
+  private final ScheduledExecutorService scheduler;
+  private final String serverSessionId = UUID.randomUUID().toString();
+  private final Map<String, MediaObject> objects = new ConcurrentHashMap<>();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder events = new LongAdder();
+
+  public FakeKmsHandler(final long latencyMillis, final long jitterMillis, final long connectDelayMillis,
+      final long videoDurationMillis, final ScheduledExecutorService scheduler) {
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.connectDelayMillis = connectDelayMillis;
+    this.videoDurationMillis = videoDurationMillis;
+    this.scheduler = scheduler;
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getEvents() {
+    return events.sum();
+  }
+
+  public int getObjects() {
+    return objects.size();
+  }
+
+  // Live objects of the given type (e.g. "MediaPipeline")
+  public int getObjects(final String type) {
+    int count = 0;
+    for (MediaObject object : objects.values()) {
+      if (type.equals(object.type)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // Live subscriptions to the events of any object
+  public int getSubscriptions() {
+    return getSubscriptions(null);
+  }
+
+  // Same, only on the objects of the given type (e.g. "PlayerEndpoint")
+  public int getSubscriptions(final String type) {
+    int count = 0;
+    for (MediaObject object : objects.values()) {
+      if (type == null || type.equals(object.type)) {
+        count += object.listeners.get();
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void afterConnectionEstablished(final WebSocketSession session) {
+    // Responses and events are sent from the scheduler threads
+    session.getAttributes().put(FakeKmsHandler.class.getName(),
+        new ConcurrentWebSocketSessionDecorator(session, 10_000, 64 * 1024 * 1024));
+  }
+
+  @Override
+  public void afterConnectionClosed(final WebSocketSession session, final CloseStatus status) {
+    for (MediaObject object : objects.values()) {
+      object.subscriptions.values().removeIf(subscriber -> subscriber.getId().equals(session.getId()));
+    }
+  }
+
+  @Override
+  protected void handleTextMessage(final WebSocketSession session, final TextMessage message) {
+    JsonObject request = JsonParser.parseString(message.getPayload()).getAsJsonObject();
+    if (!request.has("method")) {
+      return;
+    }
+    requests.increment();
+
+    WebSocketSession out = (WebSocketSession) session.getAttributes().get(FakeKmsHandler.class.getName());
+    JsonObject response = new JsonObject();
+    response.addProperty("jsonrpc", "2.0");
+    response.add("id", request.get("id"));
+    try {
+      JsonObject params = request.has("params") ? request.getAsJsonObject("params") : new JsonObject();
+      response.add("result", handle(out, request.get("method").getAsString(), params));
+    } catch (RpcException e) {
+      JsonObject error = new JsonObject();
+      error.addProperty("code", e.code);
+      error.addProperty("message", e.getMessage());
+      response.add("error", error);
+    }
+    if (request.has("id")) {
+      later(out, response.toString(), 0);
+    }
+  }
+
+  private JsonObject handle(final WebSocketSession session, final String method, final JsonObject params) {
+    JsonObject result = new JsonObject();
+    switch (method) {
+      case "ping":
+        result.addProperty("value", "pong");
+        break;
+      case "connect":
+        break;
+      case "create":
+        result.addProperty("value", create(params.get("type").getAsString(),
+            params.has("constructorParams") ? params.getAsJsonObject("constructorParams") : new JsonObject()));
+        break;
+      case "invoke":
+        result.add("value", invoke(session, find(params.get("object").getAsString()),
+            params.get("operation").getAsString(),
+            params.has("operationParams") ? params.getAsJsonObject("operationParams") : new JsonObject()));
+        break;
+      case "subscribe": {
+        MediaObject object = find(params.get("object").getAsString());
+        String type = params.get("type").getAsString();
+        object.subscriptions.put(type, session);
+        object.listeners.incrementAndGet();
+        result.addProperty("value", object.id + "#" + type);
+        break;
+      }
+      case "unsubscribe": {
+        String subscription = params.get("subscription").getAsString();
+        int separator = subscription.lastIndexOf('#');
+        MediaObject object = objects.get(params.get("object").getAsString());
+        if (object != null && separator > 0) {
+          object.subscriptions.remove(subscription.substring(separator + 1));
+          object.listeners.updateAndGet(n -> Math.max(0, n - 1));
+        }
+        break;
+      }
+      case "release":
+        release(find(params.get("object").getAsString()));
+        break;
+      case "describe": {
+        MediaObject object = find(params.get("object").getAsString());
+        result.addProperty("type", object.type);
+        result.addProperty("qualifiedType", "kurento." + object.type);
+        result.add("hierarchy", new JsonArray());
+        break;
+      }
+      case "transaction":
+        result.add("value", transaction(session, params.getAsJsonArray("operations")));
+        break;
+      default:
+        throw new RpcException(METHOD_NOT_FOUND, "Method not found: " + method);
+    }
+    result.addProperty("sessionId", serverSessionId);
+    return result;
+  }
+
+  // Objects created in a transaction are referred to as 'newref:<operation id>' by
+  // the later operations of the same transaction
+  private JsonArray transaction(final WebSocketSession session, final JsonArray operations) {
+    Map<String, String> created = new ConcurrentHashMap<>();
+    JsonArray results = new JsonArray();
+    for (JsonElement element : operations) {
+      JsonObject operation = element.getAsJsonObject();
+      JsonObject params = resolve(operation.getAsJsonObject("params"), created).getAsJsonObject();
+      JsonObject result = handle(session, operation.get("method").getAsString(), params);
+      if ("create".equals(operation.get("method").getAsString())) {
+        created.put(NEWREF + operation.get("id").getAsString(), result.get("value").getAsString());
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  private static JsonElement resolve(final JsonElement value, final Map<String, String> created) {
+    if (value == null) {
+      return new JsonObject();
+    }
+    if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+      String ref = created.get(value.getAsString());
+      return ref != null ? new JsonPrimitive(ref) : value;
+    }
+    if (value.isJsonObject()) {
+      JsonObject resolved = new JsonObject();
+      for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+        resolved.add(entry.getKey(), resolve(entry.getValue(), created));
+      }
+      return resolved;
+    }
+    if (value.isJsonArray()) {
+      JsonArray resolved = new JsonArray();
+      for (JsonElement item : value.getAsJsonArray()) {
+        resolved.add(resolve(item, created));
+      }
+      return resolved;
+    }
+    return value;
+  }
+
+  private MediaObject find(final String id) {
+    MediaObject object = objects.get(id);
+    if (object == null && !SERVER_MANAGER.equals(id)) {
+      throw new RpcException(OBJECT_NOT_FOUND, "Object '" + id + "' not found");
+    }
+    return object != null ? object : new MediaObject(SERVER_MANAGER, "ServerManager", null);
+  }
+
+  private String create(final String type, final JsonObject constructorParams) {
+    String suffix = UUID.randomUUID() + "_kurento." + type;
+    if ("MediaPipeline".equals(type)) {
+      objects.put(suffix, new MediaObject(suffix, type, suffix));
+      return suffix;
+    }
+
+    String pipeline;
+    if (constructorParams.has("mediaPipeline")) {
+      pipeline = find(constructorParams.get("mediaPipeline").getAsString()).id;
+    } else if (constructorParams.has("hub")) {
+      pipeline = find(constructorParams.get("hub").getAsString()).pipeline;
+    } else {
+      throw new RpcException(METHOD_NOT_FOUND, "Cannot tell the pipeline of a new " + type);
+    }
+    String id = pipeline + "/" + suffix;
+    objects.put(id, new MediaObject(id, type, pipeline));
+    return id;
+  }
+
+  private void release(final MediaObject object) {
+    objects.remove(object.id);
+    if (object.id.equals(object.pipeline)) {
+      objects.values().removeIf(child -> object.id.equals(child.pipeline));
+    }
+  }
+
+  private JsonElement invoke(final WebSocketSession session, final MediaObject object, final String operation,
+      final JsonObject params) {
+    switch (operation) {
+      case "processOffer":
+        if (connectDelayMillis >= 0) {
+          JsonObject state = new JsonObject();
+          state.addProperty("oldState", "DISCONNECTED");
+          state.addProperty("newState", "CONNECTED");
+          emit(object, "MediaStateChanged", state, connectDelayMillis);
+        }
+        return new JsonPrimitive(SDP_ANSWER);
+      case "gatherCandidates": {
+        JsonObject candidate = new JsonObject();
+        candidate.addProperty("__module__", "kurento");
+        candidate.addProperty("__type__", "IceCandidate");
+        candidate.addProperty("candidate", "candidate:1 1 UDP 2015363327 127.0.0.1 40000 typ host");
+        candidate.addProperty("sdpMid", "0");
+        candidate.addProperty("sdpMLineIndex", 0);
+        JsonObject found = new JsonObject();
+        found.add("candidate", candidate);
+        emit(object, "IceCandidateFound", found, 1);
+        emit(object, "IceGatheringDone", new JsonObject(), 2);
+        return JsonNull.INSTANCE;
+      }
+      case "play":
+        object.setPlaying(true);
+        return JsonNull.INSTANCE;
+      case "pause":
+      case "stop":
+        object.setPlaying(false);
+        return JsonNull.INSTANCE;
+      case "getPosition":
+        return new JsonPrimitive(object.getPosition());
+      case "setPosition":
+        object.setPosition(params.get("position").getAsLong());
+        return JsonNull.INSTANCE;
+      case "getVideoInfo": {
+        JsonObject info = new JsonObject();
+        info.addProperty("__module__", "kurento");
+        info.addProperty("__type__", "VideoInfo");
+        info.addProperty("isSeekable", true);
+        info.addProperty("seekableInit", 0);
+        info.addProperty("seekableEnd", videoDurationMillis);
+        info.addProperty("duration", videoDurationMillis);
+        return info;
+      }
+      case "getStats":
+        return new JsonObject();
+      case "getPipelines": {
+        JsonArray pipelines = new JsonArray();
+        for (MediaObject candidate : objects.values()) {
+          if (candidate.id.equals(candidate.pipeline)) {
+            pipelines.add(candidate.id);
+          }
+        }
+        return pipelines;
+      }
+      case "getUsedCpu":
+        return new JsonPrimitive(0.0f);
+      case "getGstreamerDot":
+        return new JsonPrimitive("digraph pipeline {}");
+      case "getName": {
+        JsonElement name = object.properties.get("name");
+        return name != null ? name : new JsonPrimitive(object.id);
+      }
+      default:
+        break;
+    }
+
+    // Plain properties: setX stores the first parameter, getX reads it back
+    if (operation.startsWith("set") && operation.length() > 3) {
+      for (Map.Entry<String, JsonElement> entry : params.entrySet()) {
+        object.properties.put(property(operation), entry.getValue());
+        break;
+      }
+      return JsonNull.INSTANCE;
+    }
+    if (operation.startsWith("get") && operation.length() > 3) {
+      JsonElement value = object.properties.get(property(operation));
+      return value != null ? value : JsonNull.INSTANCE;
+    }
+    if (operation.startsWith("is")) {
+      return new JsonPrimitive(false);
+    }
+    // connect, disconnect, addIceCandidate, setSource...
+    return JsonNull.INSTANCE;
+  }
+
+  private static String property(final String accessor) {
+    return Character.toLowerCase(accessor.charAt(3)) + accessor.substring(4);
+  }
+
+  // Sent after the response of the request that caused it, as KMS would
+  private void emit(final MediaObject object, final String type, final JsonObject data, final long delayMillis) {
+    final WebSocketSession subscriber = object.subscriptions.get(type);
+    if (subscriber == null) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    data.addProperty("source", object.id);
+    data.addProperty("type", type);
+    data.add("tags", new JsonArray());
+    data.addProperty("timestamp", Long.toString(now / 1000));
+    data.addProperty("timestampMillis", Long.toString(now));
+    JsonObject value = new JsonObject();
+    value.add("data", data);
+    value.addProperty("object", object.id);
+    value.addProperty("type", type);
+    JsonObject params = new JsonObject();
+    params.add("value", value);
+    JsonObject event = new JsonObject();
+    event.addProperty("jsonrpc", "2.0");
+    event.addProperty("method", "onEvent");
+    event.add("params", params);
+
+    WebSocketSession out = (WebSocketSession) subscriber.getAttributes().get(FakeKmsHandler.class.getName());
+    events.increment();
+    later(out != null ? out : subscriber, event.toString(), delayMillis);
+  }
+
+  private void later(final WebSocketSession session, final String payload, final long extraMillis) {
+    long delay = latencyMillis + extraMillis
+        + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+    Runnable send = () -> {
+      try {
+        session.sendMessage(new TextMessage(payload));
+      } catch (IOException | IllegalStateException e) {
+        log.debug("Could not send to {}: {}", session.getId(), e.getMessage());
+      }
+    };
+    if (delay <= 0) {
+      send.run();
+    } else {
+      scheduler.schedule(send, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.kurento.tutorial.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Round-trip times of the signaling commands, one series per command. Every sample
+// is kept (8 bytes each) so that the percentiles are exact.
+public class LatencyRecorder {
+
+  private static class Series {
+    private final LongAdder sent = new LongAdder();
+    private long[] samples = new long[1024];
+    private int count;
+
+    private synchronized void add(final long nanos) {
+      if (count == samples.length) {
+        samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = nanos;
+    }
+
+    private synchronized long[] sorted() {
+      long[] copy = Arrays.copyOf(samples, count);
+      Arrays.sort(copy);
+      return copy;
+    }
+  }
+
+  private final Map<String, Series> series = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+  public void sent(final String command) {
+    series(command).sent.increment();
+  }
+
+  public void answered(final String command, final long nanos) {
+    series(command).add(nanos);
+  }
+
+  public void error(final String message) {
+    errors.computeIfAbsent(message, m -> new LongAdder()).increment();
+  }
+
+  public long getErrors() {
+    long count = 0;
+    for (LongAdder n : errors.values()) {
+      count += n.sum();
+    }
+    return count;
+  }
+
+  public long getAnswered() {
+    long answered = 0;
+    for (Series s : series.values()) {
+      synchronized (s) {
+        answered += s.count;
+      }
+    }
+    return answered;
+  }
+
+  public String report(final double seconds) {
+    StringBuilder out = new StringBuilder(String.format("%-16s %9s %9s %9s %9s %9s %9s%n",
+        "command", "sent", "answered", "per s", "p50 ms", "p99 ms", "max ms"));
+    for (Map.Entry<String, Series> entry : new TreeMap<>(series).entrySet()) {
+      long[] sorted = entry.getValue().sorted();
+      out.append(String.format("%-16s %9d %9d %9.1f %9.2f %9.2f %9.2f%n", entry.getKey(),
+          entry.getValue().sent.sum(), sorted.length, sorted.length / seconds,
+          percentile(sorted, 0.50), percentile(sorted, 0.99),
+          sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+    }
+    for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+      out.append(String.format("error: %s (%d)%n", entry.getKey(), entry.getValue().sum()));
+    }
+    return out.toString();
+  }
+
+  private static double percentile(final long[] sorted, final double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+  }
+
+  private Series series(final String command) {
+    return series.computeIfAbsent(command, c -> new Series());
+  }
+}
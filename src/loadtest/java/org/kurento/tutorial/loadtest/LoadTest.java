@@ -0,0 +1,211 @@
+package org.kurento.tutorial.loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.tutorial.player.PlayerApp;
+import org.kurento.tutorial.player.PlayerHandler;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+// Measures how many viewers one player node can take, without KMS or browsers:
+// starts a FakeKms and the player against it in this JVM, opens rooms of simulated
+// clients, keeps them sending playback commands for a while and disconnects them,
+// then prints the latency of every command and the heap and GC of the JVM.
+//
+//   mvn -Ploadtest test-compile exec:java -Dloadtest.rooms=100 -Dloadtest.viewers=20
+//
+// Settings are system properties: loadtest.* below, fakekms.* (see FakeKms) and any
+// player.* property of the server itself. The clients share the JVM with the
+// server, so the heap figures are an upper bound for the server alone.
+public final class LoadTest {
+  private static final long TIMEOUT_SECONDS = 30;
+
+  private LoadTest() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int rooms = Integer.getInteger("loadtest.rooms", 100);
+    final int viewers = Integer.getInteger("loadtest.viewers", 20);
+    final long durationSeconds = Long.getLong("loadtest.duration-s", 60);
+    final long commandIntervalMillis = Long.getLong("loadtest.command-interval-ms", 2000);
+    final int concurrency = Integer.getInteger("loadtest.join-concurrency", 32);
+    final String videoUrl = System.getProperty("loadtest.video-url", "http://localhost/loadtest.mp4");
+    final long videoDurationMillis = Long.getLong("fakekms.video-duration-ms", 7_200_000);
+
+    ConfigurableApplicationContext kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false");
+    int kmsPort = ((WebServerApplicationContext) kms).getWebServer().getPort();
+    // Command-line arguments, so that they win over application.properties
+    ConfigurableApplicationContext player = new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=0", "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=ws://localhost:" + kmsPort + "/kurento");
+    int playerPort = ((WebServerApplicationContext) player).getWebServer().getPort();
+    final String url = "ws://localhost:" + playerPort + "/player";
+    FakeKmsHandler kmsHandler = kms.getBean(FakeKmsHandler.class);
+
+    final LatencyRecorder recorder = new LatencyRecorder();
+    final StandardWebSocketClient client = new StandardWebSocketClient();
+    final List<SimulatedClient> clients = new CopyOnWriteArrayList<>();
+    final List<SimulatedClient> admins = new CopyOnWriteArrayList<>();
+    HeapMonitor heap = new HeapMonitor();
+
+    long baseline = heap.usedAfterGc();
+    long rampStart = System.nanoTime();
+    ExecutorService joiners = Executors.newFixedThreadPool(concurrency);
+    for (int r = 0; r < rooms; r++) {
+      final int room = r;
+      joiners.execute(() -> {
+        try {
+          SimulatedClient admin = new SimulatedClient("admin-" + room, recorder);
+          admin.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          clients.add(admin);
+          admins.add(admin);
+          admin.start(videoUrl);
+          String uuid = admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          admin.sendCandidate();
+
+          List<SimulatedClient> members = new ArrayList<>();
+          for (int v = 0; v < viewers; v++) {
+            SimulatedClient viewer = new SimulatedClient("viewer-" + room + "-" + v, recorder);
+            viewer.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            clients.add(viewer);
+            viewer.register(uuid);
+            members.add(viewer);
+          }
+          for (SimulatedClient viewer : members) {
+            try {
+              viewer.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+              viewer.sendCandidate();
+            } catch (Exception e) {
+              recorder.error("join failed: " + e.getMessage());
+            }
+          }
+        } catch (Exception e) {
+          recorder.error("room not created: " + e.getMessage());
+        }
+      });
+    }
+    joiners.shutdown();
+    joiners.awaitTermination(rooms * TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+    long afterRamp = heap.usedAfterGc();
+    int joined = 0;
+    for (SimulatedClient c : clients) {
+      if (c.getStarted().isDone() && !c.getStarted().isCompletedExceptionally()) {
+        joined++;
+      }
+    }
+
+    // Steady state: every client sends a command per interval, at its own offset
+    Map<String, long[]> gcBefore = gc();
+    long answeredBefore = recorder.getAnswered();
+    heap.start();
+    long steadyStart = System.nanoTime();
+    ScheduledExecutorService tickers = Executors.newScheduledThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()));
+    for (final SimulatedClient c : clients) {
+      tickers.scheduleAtFixedRate(() -> c.tick(videoDurationMillis),
+          ThreadLocalRandom.current().nextLong(commandIntervalMillis), commandIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+    tickers.shutdownNow();
+    // Answers still on their way
+    Thread.sleep(2000);
+    double steadySeconds = (System.nanoTime() - steadyStart) / 1e9;
+    heap.stop();
+    Map<String, long[]> gcAfter = gc();
+    long answered = recorder.getAnswered() - answeredBefore;
+    int unanswered = 0;
+    for (SimulatedClient c : clients) {
+      unanswered += c.getUnanswered();
+    }
+
+    // Teardown: room admins leave with 'stop', viewers just drop their socket
+    for (SimulatedClient c : clients) {
+      if (admins.contains(c)) {
+        c.stop();
+      }
+      c.disconnect();
+    }
+    Thread.sleep(2000);
+
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%nLoad test: %d rooms x (1 + %d viewers), %d s, a command every %d ms per client%n",
+        rooms, viewers, durationSeconds, commandIntervalMillis));
+    report.append(String.format("Sessions: %d joined, %d failed, ramp-up %.1f s%n",
+        joined, rooms * (1 + viewers) - joined, rampSeconds));
+    report.append(String.format("Throughput: %.1f answered commands/s, %d unanswered%n%n",
+        answered / steadySeconds, unanswered));
+    // Rates over the steady state; start and register all happen in the ramp-up
+    report.append(recorder.report(steadySeconds));
+    report.append(String.format("%nHeap (whole JVM): %d MB baseline, %d MB after ramp-up (%.1f KB per session), "
+        + "%d MB peak%n", baseline >> 20, afterRamp >> 20,
+        clients.isEmpty() ? 0 : (afterRamp - baseline) / 1024.0 / clients.size(), heap.getPeak() >> 20));
+    for (Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+      long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+      report.append(String.format("GC %s: %d collections, %d ms in the steady state%n", entry.getKey(),
+          entry.getValue()[0] - before[0], entry.getValue()[1] - before[1]));
+    }
+    report.append(String.format("Fake KMS: %d requests, %d events, %d objects left%n", kmsHandler.getRequests(),
+        kmsHandler.getEvents(), kmsHandler.getObjects()));
+    report.append(String.format("After teardown: %d rooms left (viewers within player.session.grace-ms "
+        + "keep theirs)%n", player.getBean(PlayerHandler.class).getRooms().size()));
+    System.out.println(report);
+
+    player.close();
+    kms.close();
+  }
+
+  // Collector name -> {collections, milliseconds}
+  private static Map<String, long[]> gc() {
+    Map<String, long[]> result = new LinkedHashMap<>();
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      result.put(bean.getName(), new long[] { bean.getCollectionCount(), bean.getCollectionTime() });
+    }
+    return result;
+  }
+
+  // Peak heap usage, sampled while the load runs
+  private static class HeapMonitor {
+    private final AtomicLong peak = new AtomicLong();
+    private ScheduledExecutorService sampler;
+
+    private long usedAfterGc() throws InterruptedException {
+      System.gc();
+      Thread.sleep(500);
+      return used();
+    }
+
+    private static long used() {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private void start() {
+      sampler = Executors.newSingleThreadScheduledExecutor();
+      sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(used(), Math::max), 0, 250, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+      sampler.shutdownNow();
+    }
+
+    private long getPeak() {
+      return peak.get();
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package org.kurento.tutorial.loadtest;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// One headless browser tab: a signaling session that creates ('start') or joins
+// ('register') a room, sends an ICE candidate and then the playback commands the
+// LoadTest picks for it. Every command is timed until the message that answers it.
+public class SimulatedClient extends TextWebSocketHandler {
+  private static final String SDP_OFFER = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96\r\na=mid:0\r\na=rtpmap:96 VP8/90000\r\na=recvonly\r\n";
+
+  // A command waiting for its answer
+  private static class Pending {
+    private final String command;
+    private final long sentAt;
+
+    private Pending(final String command, final long sentAt) {
+      this.command = command;
+      this.sentAt = sentAt;
+    }
+  }
+
+  private final String nickname;
+  private final LatencyRecorder recorder;
+  // Answer id -> commands waiting for it, oldest first
+  private final Map<String, Queue<Pending>> pending = new ConcurrentHashMap<>();
+  private final CompletableFuture<String> room = new CompletableFuture<>();
+  private final CompletableFuture<Void> started = new CompletableFuture<>();
+  private volatile WebSocketSession session;
+  // Only touched by the thread ticking this client
+  private boolean paused;
+
+  public SimulatedClient(final String nickname, final LatencyRecorder recorder) {
+    this.nickname = nickname;
+    this.recorder = recorder;
+  }
+
+  public CompletableFuture<WebSocketSession> connect(final WebSocketClient client, final String url) {
+    return client.doHandshake(this, url).completable().thenApply(s -> {
+      session = new ConcurrentWebSocketSessionDecorator(s, 10_000, 1024 * 1024);
+      return session;
+    });
+  }
+
+  // UUID of the room, once created or joined
+  public CompletableFuture<String> getRoom() {
+    return room;
+  }
+
+  // Completed with the SDP answer
+  public CompletableFuture<Void> getStarted() {
+    return started;
+  }
+
+  public boolean isOpen() {
+    return session != null && session.isOpen();
+  }
+
+  public void start(final String videoUrl) {
+    JsonObject message = command("start");
+    message.add("user", user());
+    message.addProperty("videourl", videoUrl);
+    message.addProperty("sdpOffer", SDP_OFFER);
+    send("start", "startResponse", message);
+  }
+
+  public void register(final String roomId) {
+    room.complete(roomId);
+    JsonObject message = command("register");
+    message.addProperty("roomid", roomId);
+    message.add("user", user());
+    message.addProperty("sdpOffer", SDP_OFFER);
+    send("register", "startResponse", message);
+  }
+
+  public void sendCandidate() {
+    JsonObject candidate = new JsonObject();
+    candidate.addProperty("candidate", "candidate:1 1 UDP 2015363327 127.0.0.1 "
+        + (50000 + ThreadLocalRandom.current().nextInt(10000)) + " typ host");
+    candidate.addProperty("sdpMid", "0");
+    candidate.addProperty("sdpMLineIndex", 0);
+    JsonObject message = command("onIceCandidate");
+    message.add("candidate", candidate);
+    send("onIceCandidate", null, message);
+  }
+
+  // One playback command: mostly position polls, like the web client, with some
+  // pauses, resumes and seeks
+  public void tick(final long videoDurationMillis) {
+    int dice = ThreadLocalRandom.current().nextInt(100);
+    if (dice < 60) {
+      send("getPosition", "position", command("getPosition"));
+    } else if (dice < 85) {
+      paused = !paused;
+      send(paused ? "pause" : "resume", paused ? "paused" : "resumed", command(paused ? "pause" : "resume"));
+    } else {
+      JsonObject message = command("doSeek");
+      message.addProperty("position", ThreadLocalRandom.current().nextLong(videoDurationMillis));
+      send("doSeek", "seek", message);
+    }
+  }
+
+  public void stop() {
+    send("stop", null, command("stop"));
+  }
+
+  public void disconnect() {
+    WebSocketSession current = session;
+    if (current == null) {
+      return;
+    }
+    try {
+      current.close(CloseStatus.NORMAL);
+    } catch (IOException e) {
+      recorder.error("close: " + e.getMessage());
+    }
+  }
+
+  public int getUnanswered() {
+    int unanswered = 0;
+    for (Queue<Pending> queue : pending.values()) {
+      unanswered += queue.size();
+    }
+    return unanswered;
+  }
+
+  @Override
+  protected void handleTextMessage(final WebSocketSession s, final TextMessage message) {
+    long now = System.nanoTime();
+    JsonObject inbound = JsonParser.parseString(message.getPayload()).getAsJsonObject();
+    String id = inbound.has("id") ? inbound.get("id").getAsString() : "";
+
+    Queue<Pending> waiting = pending.get(id);
+    Pending answered = waiting == null ? null : waiting.poll();
+    if (answered != null) {
+      recorder.answered(answered.command, now - answered.sentAt);
+    }
+
+    switch (id) {
+      case "uuid":
+        room.complete(inbound.get("uuid").getAsString());
+        break;
+      case "startResponse":
+        started.complete(null);
+        break;
+      case "error":
+        String reason = inbound.has("message") ? inbound.get("message").getAsString() : "unknown";
+        recorder.error(reason);
+        if (!started.isDone()) {
+          started.completeExceptionally(new IllegalStateException(reason));
+        }
+        break;
+      case "rejected":
+        // Rate limits or admission control, see the player's settings
+        String refused = inbound.has("command") ? inbound.get("command").getAsString() : "frame";
+        recorder.error("rejected " + refused + ": " + inbound.get("reason").getAsString());
+        if (!started.isDone() && ("start".equals(refused) || "register".equals(refused))) {
+          started.completeExceptionally(new IllegalStateException(inbound.get("message").getAsString()));
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void afterConnectionClosed(final WebSocketSession s, final CloseStatus status) {
+    if (!started.isDone()) {
+      started.completeExceptionally(new IllegalStateException("Closed: " + status));
+    }
+  }
+
+  private void send(final String command, final String answer, final JsonObject message) {
+    WebSocketSession current = session;
+    if (current == null || !current.isOpen()) {
+      return;
+    }
+    if (answer != null) {
+      pending.computeIfAbsent(answer, a -> new ConcurrentLinkedQueue<>())
+          .add(new Pending(command, System.nanoTime()));
+    }
+    recorder.sent(command);
+    try {
+      current.sendMessage(new TextMessage(message.toString()));
+    } catch (IOException | IllegalStateException e) {
+      recorder.error("send: " + e.getMessage());
+    }
+  }
+
+  private static JsonObject command(final String id) {
+    JsonObject message = new JsonObject();
+    message.addProperty("id", id);
+    return message;
+  }
+
+  private JsonObject user() {
+    JsonObject avatar = new JsonObject();
+    avatar.addProperty("id", 1);
+    avatar.addProperty("path", "img/avatar1.png");
+    JsonObject user = new JsonObject();
+    user.addProperty("nickname", nickname);
+    user.add("avatar", avatar);
+    return user;
+  }
+}
@@ -0,0 +1,83 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides whether a new 'start' or 'register' is taken before any media is built
+// for it. Rejected when the media server that would host the viewer has used up its
+// endpoint budget (player.kms.max-endpoints), or when this node is already setting
+// up as many viewers as it allows at once: each setup is a burst of KMS calls, and
+// a crowd joining together would otherwise slow down every room on the node.
+public class AdmissionControl {
+
+  public enum Reason {
+    FULL("full"),
+    BUSY("busy");
+
+    private final String tag;
+
+    Reason(final String tag) {
+      this.tag = tag;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+  }
+
+  public static class Stats {
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedBusy = new LongAdder();
+
+    public long getAdmitted() { return admitted.sum(); }
+
+    public long getRejectedFull() { return rejectedFull.sum(); }
+
+    public long getRejectedBusy() { return rejectedBusy.sum(); }
+  }
+
+  // 0 means no limit
+  private final int maxConcurrentSetups;
+  private final long retryAfterMillis;
+  private final AtomicInteger setups = new AtomicInteger();
+  private final Stats stats = new Stats();
+
+  public AdmissionControl(final int maxConcurrentSetups, final long retryAfterMillis) {
+    this.maxConcurrentSetups = maxConcurrentSetups;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public int getSetups() {
+    return setups.get();
+  }
+
+  // Suggested wait before trying again
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  // Null if the setup may go on, in which case exit() must follow once it is done;
+  // a null node means that none had room for it
+  public Reason enter(final MediaNode node) {
+    if (node == null || !node.hasCapacity()) {
+      stats.rejectedFull.increment();
+      return Reason.FULL;
+    }
+    if (setups.incrementAndGet() > maxConcurrentSetups && maxConcurrentSetups > 0) {
+      setups.decrementAndGet();
+      stats.rejectedBusy.increment();
+      return Reason.BUSY;
+    }
+    stats.admitted.increment();
+    return null;
+  }
+
+  public void exit() {
+    setups.decrementAndGet();
+  }
+}
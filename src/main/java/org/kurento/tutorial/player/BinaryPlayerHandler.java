@@ -0,0 +1,42 @@
+package org.kurento.tutorial.player;
+
+import java.nio.ByteBuffer;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+
+// Signaling endpoint speaking CBOR binary frames instead of JSON text.
+// Clients pick the encoding by the endpoint they connect to; commands, rooms and
+// sessions are shared with the JSON endpoint, so viewers of both kinds can be in
+// the same room.
+public class BinaryPlayerHandler extends BinaryWebSocketHandler {
+
+  private final PlayerHandler handler;
+
+  public BinaryPlayerHandler(final PlayerHandler handler) {
+    this.handler = handler;
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) {
+    handler.onConnected(session, WireFormat.CBOR);
+  }
+
+  @Override
+  protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+    // The frame is decoded later on the dispatcher, but the container reuses its
+    // buffer as soon as this method returns
+    ByteBuffer payload = message.getPayload();
+    byte[] bytes = new byte[payload.remaining()];
+    payload.duplicate().get(bytes);
+    final BinaryMessage copy = new BinaryMessage(bytes);
+    handler.onMessage(session, copy, () -> CborCodec.decode(copy.getPayload()));
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+    handler.onClosed(session);
+  }
+}
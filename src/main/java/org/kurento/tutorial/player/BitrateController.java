@@ -0,0 +1,242 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Adjusts what each viewer is sent to what its link can take.
+// The outbound video stats of every viewer, read by the StatsSampler, are classified
+// by the BitratePolicy; a viewer moves one level at a time, and only after several
+// consecutive samples agree (fewer to go down than to go up), so a single bad
+// report does not make the quality flap. Admins can pin a level for the whole
+// room and viewers for themselves; pinned levels win over the automatic one.
+public class BitrateController {
+  private static final Logger log = LoggerFactory.getLogger(BitrateController.class);
+
+  // Counters shared by all the rooms of the server
+  public static class Stats {
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder upgrades = new LongAdder();
+    private final LongAdder downgrades = new LongAdder();
+    private final LongAdder changesApplied = new LongAdder();
+
+    public long getSamples() { return samples.sum(); }
+
+    public long getUpgrades() { return upgrades.sum(); }
+
+    public long getDowngrades() { return downgrades.sum(); }
+
+    public long getChangesApplied() { return changesApplied.sum(); }
+  }
+
+  // Bitrate state of a single viewer, kept in its UserSession
+  public static class ViewerBitrate {
+    // Level whose limits are set on the viewer's elements
+    private BitrateLevel applied;
+    // Level chosen by the policy
+    private BitrateLevel auto;
+    // Level pinned by the viewer, null for automatic
+    private BitrateLevel override;
+    // Level the last samples point to, and how many in a row did
+    private BitrateLevel candidate;
+    private int streak;
+
+    private ViewerBitrate(final BitrateLevel initial) {
+      this.applied = initial;
+      this.auto = initial;
+    }
+
+    public synchronized BitrateLevel getApplied() {
+      return applied;
+    }
+
+    public synchronized BitrateLevel getAuto() {
+      return auto;
+    }
+
+    public synchronized BitrateLevel getOverride() {
+      return override;
+    }
+
+    public synchronized void setOverride(final BitrateLevel override) {
+      this.override = override;
+    }
+
+    // Returns the new automatic level, or null if it did not move
+    private synchronized BitrateLevel offer(final BitrateLevel target, final int upSamples,
+        final int downSamples) {
+      if (target == auto) {
+        candidate = null;
+        streak = 0;
+        return null;
+      }
+
+      if (target == candidate) {
+        streak++;
+      } else {
+        candidate = target;
+        streak = 1;
+      }
+
+      boolean up = target.compareTo(auto) > 0;
+      if (streak < (up ? upSamples : downSamples)) {
+        return null;
+      }
+
+      auto = up ? auto.up() : auto.down();
+      candidate = null;
+      streak = 0;
+      return auto;
+    }
+  }
+
+  private final BitratePolicy policy;
+  private final long[] levelBps = new long[BitrateLevel.values().length];
+  private final BitrateLevel initialLevel;
+  private final int upSamples;
+  private final int downSamples;
+  private final boolean adaptive;
+  private final PlayerMetrics metrics;
+  private final Stats stats = new Stats();
+
+  public BitrateController(final BitratePolicy policy, final long lowBps, final long mediumBps,
+      final long highBps, final BitrateLevel initialLevel, final int upSamples, final int downSamples,
+      final boolean adaptive, final PlayerMetrics metrics) {
+    this.policy = policy;
+    this.levelBps[BitrateLevel.LOW.ordinal()] = lowBps;
+    this.levelBps[BitrateLevel.MEDIUM.ordinal()] = mediumBps;
+    this.levelBps[BitrateLevel.HIGH.ordinal()] = highBps;
+    this.initialLevel = initialLevel;
+    this.upSamples = upSamples;
+    this.downSamples = downSamples;
+    this.adaptive = adaptive;
+    this.metrics = metrics;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public long getBitrate(final BitrateLevel level) {
+    return levelBps[level.ordinal()];
+  }
+
+  public BitrateLevel getInitialLevel() {
+    return initialLevel;
+  }
+
+  public ViewerBitrate createViewer() {
+    return new ViewerBitrate(initialLevel);
+  }
+
+  // The HubPort caps what is encoded for the viewer (when KMS has to transcode), the
+  // WebRtcEndpoint what is announced to the browser's congestion control (kbps)
+  public void setLimits(final HubPort hubPort, final WebRtcEndpoint endpoint, final BitrateLevel level,
+      final Transaction tx) {
+    long bps = getBitrate(level);
+    hubPort.setMaxOutputBitrate((int) bps, tx);
+    endpoint.setMaxVideoSendBandwidth((int) (bps / 1000), tx);
+  }
+
+  // Called by the StatsSampler with every stats sample of a viewer
+  public void onSample(final StreamingRoom room, final UserSession user, final BitratePolicy.LinkSample sample) {
+    ViewerBitrate viewer = user.getBitrate();
+    if (!adaptive || viewer == null) {
+      return;
+    }
+    stats.samples.increment();
+
+    BitrateLevel target = policy.classify(sample);
+    if (target == null) {
+      return;
+    }
+
+    BitrateLevel previous = viewer.getAuto();
+    BitrateLevel moved = viewer.offer(target, upSamples, downSamples);
+    if (moved == null) {
+      return;
+    }
+
+    if (moved.compareTo(previous) > 0) {
+      stats.upgrades.increment();
+    } else {
+      stats.downgrades.increment();
+    }
+    log.debug("Viewer {} of room {} moves to {} (remb={} loss={})", user.getNick(), room.getUUID(),
+        moved, sample.getRembBps(), sample.getFractionLost());
+    // The viewer's tier is room state: moved on the room's mailbox
+    room.execute(() -> update(room, user));
+  }
+
+  // Sets the limits of the level the viewer should be at now: its own pinned level,
+  // else the room's, else the automatic one. Nothing is sent to KMS if it is the
+  // level already applied. Runs on the room's mailbox.
+  public void update(final StreamingRoom room, final UserSession user) {
+    ViewerBitrate viewer = user.getBitrate();
+    WebRtcEndpoint endpoint = user.getWebRtcEndpoint();
+    if (viewer == null || endpoint == null) {
+      return;
+    }
+
+    final BitrateLevel level;
+    final String mode;
+    synchronized (viewer) {
+      BitrateLevel roomOverride = room.getBitrateOverride();
+      if (viewer.override != null) {
+        level = viewer.override;
+        mode = "viewer";
+      } else if (roomOverride != null) {
+        level = roomOverride;
+        mode = "room";
+      } else {
+        level = viewer.auto;
+        mode = "auto";
+      }
+
+      if (level == viewer.applied) {
+        return;
+      }
+      viewer.applied = level;
+    }
+
+    // Begun locally: this runs on the room's mailbox, where asking the endpoint for
+    // its pipeline would block every other command of the room on KMS
+    Transaction tx = endpoint.beginTransaction();
+    // setViewerLevel records the new tier right away
+    final BitrateLevel previousTier = user.getTier();
+    room.setViewerLevel(user, level, tx);
+
+    final long start = System.nanoTime();
+    tx.commit(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        metrics.kms(PlayerMetrics.KmsOperation.SET_BITRATE, start);
+        stats.changesApplied.increment();
+        user.getSender().send(SignalingCodec.bitrate(level, getBitrate(level), mode));
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        metrics.kmsError(PlayerMetrics.KmsOperation.SET_BITRATE, start);
+        // Unknown state: the next update sets the limits again
+        synchronized (viewer) {
+          if (viewer.applied == level) {
+            viewer.applied = null;
+          }
+        }
+        // The viewer is still fed from its previous tier, unless the endpoint changed meanwhile
+        room.execute(() -> {
+          if (user.getWebRtcEndpoint() == endpoint && user.getTier() == level) {
+            user.setTier(previousTier);
+          }
+        });
+        log.debug("Could not change the bitrate of {}: {}", user.getNick(), cause.getMessage());
+      }
+    });
+  }
+}
@@ -0,0 +1,29 @@
+package org.kurento.tutorial.player;
+
+// Quality steps a viewer can be sent; the bitrate of each one is configured in
+// player.bitrate.levels.*
+public enum BitrateLevel {
+  LOW,
+  MEDIUM,
+  HIGH;
+
+  public BitrateLevel up() {
+    return this == LOW ? MEDIUM : HIGH;
+  }
+
+  public BitrateLevel down() {
+    return this == HIGH ? MEDIUM : LOW;
+  }
+
+  // As sent over signaling: "low", "medium", "high", or "auto" (null)
+  public static BitrateLevel parse(final String value) {
+    if (value == null || "auto".equalsIgnoreCase(value)) {
+      return null;
+    }
+    return valueOf(value.toUpperCase());
+  }
+
+  public String toWire() {
+    return name().toLowerCase();
+  }
+}
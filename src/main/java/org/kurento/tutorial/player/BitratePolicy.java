@@ -0,0 +1,38 @@
+package org.kurento.tutorial.player;
+
+// Classifies the link of a viewer into the level it can take right now.
+// The BitrateController calls it for every stats sample of the viewers under
+// automatic control, and only moves a viewer after several samples agree, so
+// implementations don't need to smooth their answers themselves.
+public interface BitratePolicy {
+
+  // What KMS reports about the video sent to a viewer
+  class LinkSample {
+    private final long rembBps;
+    private final double fractionLost;
+    private final double roundTripTime;
+
+    public LinkSample(final long rembBps, final double fractionLost, final double roundTripTime) {
+      this.rembBps = rembBps;
+      this.fractionLost = fractionLost;
+      this.roundTripTime = roundTripTime;
+    }
+
+    // Bandwidth estimate sent by the browser (REMB), 0 if none yet
+    public long getRembBps() {
+      return rembBps;
+    }
+
+    // Loss ratio of the last RTCP receiver report, 0..1
+    public double getFractionLost() {
+      return fractionLost;
+    }
+
+    public double getRoundTripTime() {
+      return roundTripTime;
+    }
+  }
+
+  // Null when the sample says nothing useful (e.g. no estimate yet)
+  BitrateLevel classify(LinkSample sample);
+}
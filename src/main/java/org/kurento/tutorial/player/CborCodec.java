@@ -0,0 +1,531 @@
+package org.kurento.tutorial.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+// Binary counterpart of SignalingCodec: the same messages, encoded as CBOR
+// (RFC 8949) maps. Only the subset needed by the protocol is supported: integers,
+// UTF-8 strings, booleans, null, doubles, arrays and maps (definite or indefinite
+// length). Strings are decoded straight from the frame's bytes.
+public final class CborCodec {
+  private static final int MAJOR_UNSIGNED = 0;
+  private static final int MAJOR_NEGATIVE = 1;
+  private static final int MAJOR_BYTES = 2;
+  private static final int MAJOR_TEXT = 3;
+  private static final int MAJOR_ARRAY = 4;
+  private static final int MAJOR_MAP = 5;
+  private static final int MAJOR_TAG = 6;
+  private static final int MAJOR_SIMPLE = 7;
+
+  private static final int FALSE = 0xF4;
+  private static final int TRUE = 0xF5;
+  private static final int NULL = 0xF6;
+  private static final int FLOAT16 = 0xF9;
+  private static final int FLOAT32 = 0xFA;
+  private static final int FLOAT64 = 0xFB;
+  private static final int BREAK = 0xFF;
+  private static final int INDEFINITE = 31;
+
+  private CborCodec() {
+  }
+
+  // Inbound
+
+  public static InboundMessage decode(final ByteBuffer payload) {
+    Reader in = new Reader(payload.duplicate());
+    InboundMessage message = new InboundMessage();
+    try {
+      long size = in.readMapHeader();
+      for (long i = 0; size < 0 ? !in.nextIsBreak() : i < size; i++) {
+        String name = in.readString();
+        if (in.nextIsNull()) {
+          in.skip();
+          continue;
+        }
+
+        switch (name) {
+          case "id":
+            message.id = in.readString();
+            break;
+          case "user":
+            message.user = SignalingCodec.gson.fromJson(in.readElement(), UserSession.class);
+            break;
+          case "sdpOffer":
+            message.sdpOffer = in.readString();
+            break;
+          case "videourl":
+            message.videoUrl = in.readString();
+            break;
+          case "roomid":
+            message.roomId = in.readString();
+            break;
+          case "room":
+            message.room = in.readString();
+            break;
+          case "target":
+            message.target = in.readString();
+            break;
+          case "position":
+            message.position = in.readLong();
+            break;
+          case "candidate":
+            message.candidate = readCandidate(in);
+            break;
+          case "candidates": {
+            message.candidates = new ArrayList<>();
+            long count = in.readHeader(MAJOR_ARRAY);
+            for (long j = 0; count < 0 ? !in.nextIsBreak() : j < count; j++) {
+              message.candidates.add(readCandidate(in));
+            }
+            break;
+          }
+          case "iceBatching":
+            message.iceBatching = in.readBoolean();
+            break;
+          case "bitrate":
+            message.bitrate = in.readString();
+            break;
+          case "tiers":
+            message.tiers = in.readBoolean();
+            break;
+          case "token":
+            message.token = in.readString();
+            break;
+          default:
+            in.skip();
+            break;
+        }
+      }
+    } catch (BufferUnderflowException | IllegalStateException | IndexOutOfBoundsException
+        | IllegalArgumentException e) {
+      throw new JsonParseException("Malformed message: " + e.getMessage(), e);
+    }
+
+    if (message.id == null) {
+      throw new JsonParseException("Message without id");
+    }
+    return message;
+  }
+
+  private static IceCandidate readCandidate(final Reader in) {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+
+    long size = in.readMapHeader();
+    for (long i = 0; size < 0 ? !in.nextIsBreak() : i < size; i++) {
+      String name = in.readString();
+      if (in.nextIsNull()) {
+        in.skip();
+        continue;
+      }
+
+      switch (name) {
+        case "candidate":
+          candidate = in.readString();
+          break;
+        case "sdpMid":
+          sdpMid = in.readString();
+          break;
+        case "sdpMLineIndex":
+          sdpMLineIndex = (int) in.readLong();
+          break;
+        default:
+          in.skip();
+          break;
+      }
+    }
+
+    if (candidate == null || sdpMid == null) {
+      throw new IllegalStateException("Incomplete ICE candidate");
+    }
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  private static class Reader {
+    private final ByteBuffer in;
+
+    private Reader(final ByteBuffer in) {
+      this.in = in;
+    }
+
+    // Like get(), it fails on a truncated frame with a BufferUnderflowException
+    private int peek() {
+      if (!in.hasRemaining()) {
+        throw new BufferUnderflowException();
+      }
+      return in.get(in.position()) & 0xFF;
+    }
+
+    private boolean nextIsNull() {
+      return peek() == NULL;
+    }
+
+    // Consumes the break that ends an indefinite-length container, if it's next
+    private boolean nextIsBreak() {
+      if (peek() == BREAK) {
+        in.get();
+        return true;
+      }
+      return false;
+    }
+
+    // Returns the argument of the next item header, or -1 if it's of indefinite length
+    private long readHeader(final int expectedMajor) {
+      int initial = in.get() & 0xFF;
+      int major = initial >>> 5;
+      if (major != expectedMajor) {
+        throw new IllegalStateException("Expected CBOR major type " + expectedMajor + " but found " + major);
+      }
+      return readArgument(initial & 0x1F);
+    }
+
+    private long readArgument(final int info) {
+      if (info < 24) {
+        return info;
+      }
+      switch (info) {
+        case 24:
+          return in.get() & 0xFF;
+        case 25:
+          return in.getShort() & 0xFFFF;
+        case 26:
+          return in.getInt() & 0xFFFFFFFFL;
+        case 27: {
+          long argument = in.getLong();
+          // Negative would read as an indefinite length
+          if (argument < 0) {
+            throw new IllegalStateException("CBOR argument out of range");
+          }
+          return argument;
+        }
+        case INDEFINITE:
+          return -1;
+        default:
+          throw new IllegalStateException("Invalid CBOR additional info " + info);
+      }
+    }
+
+    private long readMapHeader() {
+      return readHeader(MAJOR_MAP);
+    }
+
+    private String readString() {
+      long length = readHeader(MAJOR_TEXT);
+      if (length < 0) {
+        StringBuilder chunks = new StringBuilder();
+        while (!nextIsBreak()) {
+          chunks.append(readString());
+        }
+        return chunks.toString();
+      }
+      if (length > in.remaining()) {
+        throw new IllegalStateException("Truncated CBOR string");
+      }
+
+      String value;
+      if (in.hasArray()) {
+        value = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+      } else {
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        value = new String(bytes, StandardCharsets.UTF_8);
+      }
+      return value;
+    }
+
+    private boolean readBoolean() {
+      int initial = in.get() & 0xFF;
+      if (initial != TRUE && initial != FALSE) {
+        throw new IllegalStateException("Expected a CBOR boolean");
+      }
+      return initial == TRUE;
+    }
+
+    private long readLong() {
+      int initial = peek();
+      int major = initial >>> 5;
+      if (major == MAJOR_UNSIGNED) {
+        return readHeader(MAJOR_UNSIGNED);
+      }
+      if (major == MAJOR_NEGATIVE) {
+        return -1 - readHeader(MAJOR_NEGATIVE);
+      }
+      if (major == MAJOR_TEXT) {
+        try {
+          return Long.parseLong(readString());
+        } catch (NumberFormatException e) {
+          throw new IllegalStateException(e.getMessage());
+        }
+      }
+      if (initial == FLOAT16 || initial == FLOAT32 || initial == FLOAT64) {
+        return (long) readDouble();
+      }
+      throw new IllegalStateException("Expected a CBOR integer but found major type " + major);
+    }
+
+    private double readDouble() {
+      int initial = in.get() & 0xFF;
+      switch (initial) {
+        case FLOAT16:
+          return halfToFloat(in.getShort());
+        case FLOAT32:
+          return in.getFloat();
+        case FLOAT64:
+          return in.getDouble();
+        default:
+          throw new IllegalStateException("Expected a CBOR float");
+      }
+    }
+
+    // Generic decoding, used for the free-form parts of a message (the user profile)
+    private JsonElement readElement() {
+      int initial = peek();
+      int major = initial >>> 5;
+      switch (major) {
+        case MAJOR_UNSIGNED:
+        case MAJOR_NEGATIVE:
+          return new JsonPrimitive(readLong());
+        case MAJOR_TEXT:
+          return new JsonPrimitive(readString());
+        case MAJOR_ARRAY: {
+          JsonArray array = new JsonArray();
+          long size = readHeader(MAJOR_ARRAY);
+          for (long i = 0; size < 0 ? !nextIsBreak() : i < size; i++) {
+            array.add(readElement());
+          }
+          return array;
+        }
+        case MAJOR_MAP: {
+          JsonObject object = new JsonObject();
+          long size = readMapHeader();
+          for (long i = 0; size < 0 ? !nextIsBreak() : i < size; i++) {
+            String name = readString();
+            object.add(name, readElement());
+          }
+          return object;
+        }
+        case MAJOR_TAG:
+          readHeader(MAJOR_TAG);
+          return readElement();
+        case MAJOR_SIMPLE:
+          if (initial == TRUE || initial == FALSE) {
+            in.get();
+            return new JsonPrimitive(initial == TRUE);
+          }
+          if (initial == FLOAT16 || initial == FLOAT32 || initial == FLOAT64) {
+            return new JsonPrimitive(readDouble());
+          }
+          in.get();
+          return JsonNull.INSTANCE;
+        default:
+          throw new IllegalStateException("Unsupported CBOR major type " + major);
+      }
+    }
+
+    private void skip() {
+      int initial = peek();
+      int major = initial >>> 5;
+      if (major == MAJOR_BYTES) {
+        long length = readHeader(MAJOR_BYTES);
+        if (length < 0) {
+          while (!nextIsBreak()) {
+            skip();
+          }
+        } else if (length > in.remaining()) {
+          throw new IllegalStateException("Truncated CBOR byte string");
+        } else {
+          in.position(in.position() + (int) length);
+        }
+      } else if (major == MAJOR_SIMPLE && initial != FLOAT16 && initial != FLOAT32 && initial != FLOAT64) {
+        in.get();
+      } else {
+        readElement();
+      }
+    }
+
+    private static float halfToFloat(final short bits) {
+      int mantissa = bits & 0x03FF;
+      int exponent = (bits & 0x7C00) >>> 10;
+      float sign = (bits & 0x8000) != 0 ? -1f : 1f;
+      if (exponent == 0) {
+        return sign * (float) Math.scalb(mantissa, -24);
+      }
+      if (exponent == 0x1F) {
+        return mantissa == 0 ? sign * Float.POSITIVE_INFINITY : Float.NaN;
+      }
+      return sign * (float) Math.scalb(mantissa + 1024, exponent - 25);
+    }
+  }
+
+  // Outbound
+
+  static byte[] encode(final String id, final OutboundMessage.Body body) {
+    Writer writer = new Writer();
+    try {
+      writer.beginObject();
+      writer.name("id").value(id);
+      body.write(writer);
+      writer.endObject();
+    } catch (IOException e) {
+      // ByteArrayOutputStream does not throw
+      throw new IllegalStateException(e);
+    }
+    return writer.out.toByteArray();
+  }
+
+  // Containers are written with indefinite length, so that the message can be
+  // streamed without knowing the number of fields in advance.
+  private static class Writer implements MessageWriter {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+
+    @Override
+    public MessageWriter beginObject() {
+      out.write((MAJOR_MAP << 5) | INDEFINITE);
+      return this;
+    }
+
+    @Override
+    public MessageWriter endObject() {
+      out.write(BREAK);
+      return this;
+    }
+
+    @Override
+    public MessageWriter beginArray() {
+      out.write((MAJOR_ARRAY << 5) | INDEFINITE);
+      return this;
+    }
+
+    @Override
+    public MessageWriter endArray() {
+      out.write(BREAK);
+      return this;
+    }
+
+    @Override
+    public MessageWriter name(final String name) {
+      return value(name);
+    }
+
+    @Override
+    public MessageWriter value(final String value) {
+      if (value == null) {
+        out.write(NULL);
+        return this;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeHeader(MAJOR_TEXT, bytes.length);
+      out.write(bytes, 0, bytes.length);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final long value) {
+      if (value >= 0) {
+        writeHeader(MAJOR_UNSIGNED, value);
+      } else {
+        writeHeader(MAJOR_NEGATIVE, -1 - value);
+      }
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final boolean value) {
+      out.write(value ? TRUE : FALSE);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final float value) {
+      out.write(FLOAT32);
+      int bits = Float.floatToIntBits(value);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        out.write(bits >>> shift);
+      }
+      return this;
+    }
+
+    @Override
+    public MessageWriter user(final UserSession user) {
+      writeElement(SignalingCodec.gson.toJsonTree(user, UserSession.class));
+      return this;
+    }
+
+    private void writeElement(final JsonElement element) {
+      if (element == null || element.isJsonNull()) {
+        out.write(NULL);
+      } else if (element.isJsonObject()) {
+        beginObject();
+        for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+          name(field.getKey());
+          writeElement(field.getValue());
+        }
+        endObject();
+      } else if (element.isJsonArray()) {
+        beginArray();
+        for (JsonElement item : element.getAsJsonArray()) {
+          writeElement(item);
+        }
+        endArray();
+      } else {
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+          value(primitive.getAsBoolean());
+        } else if (primitive.isNumber()) {
+          double number = primitive.getAsDouble();
+          if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            value(primitive.getAsLong());
+          } else {
+            out.write(FLOAT64);
+            long bits = Double.doubleToLongBits(number);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+              out.write((int) (bits >>> shift));
+            }
+          }
+        } else {
+          value(primitive.getAsString());
+        }
+      }
+    }
+
+    private void writeHeader(final int major, final long argument) {
+      int type = major << 5;
+      if (argument < 24) {
+        out.write(type | (int) argument);
+      } else if (argument < 0x100) {
+        out.write(type | 24);
+        out.write((int) argument);
+      } else if (argument < 0x10000) {
+        out.write(type | 25);
+        out.write((int) (argument >>> 8));
+        out.write((int) argument);
+      } else if (argument < 0x100000000L) {
+        out.write(type | 26);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+          out.write((int) (argument >>> shift));
+        }
+      } else {
+        out.write(type | 27);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          out.write((int) (argument >>> shift));
+        }
+      }
+    }
+  }
+}
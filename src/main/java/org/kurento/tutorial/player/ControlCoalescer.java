@@ -0,0 +1,134 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Collects the playback commands (seek, pause, resume) of a room for a short window
+// and hands them over as a single Batch: the last seek wins and pause/resume collapse
+// into the final requested state, so a few users scrubbing the timeline at once cost
+// one KMS call and one notification per window instead of one per click.
+public class ControlCoalescer {
+  private static final Logger log = LoggerFactory.getLogger(ControlCoalescer.class);
+
+  // Counters shared by all the rooms of the server
+  public static class Stats {
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    public long getCommands() { return commands.sum(); }
+
+    public long getBatches() { return batches.sum(); }
+
+    public long getCommandsCoalesced() { return commands.sum() - batches.sum(); }
+  }
+
+  // What is left of the commands of one window
+  public static class Batch {
+    private Long seekPosition;
+    private Boolean playing;
+    private UserSession seekWinner;
+    private UserSession playWinner;
+    private final Set<UserSession> seekInitiators = new LinkedHashSet<>();
+    private final Set<UserSession> playInitiators = new LinkedHashSet<>();
+
+    // Null when nobody asked for a seek
+    public Long getSeekPosition() { return seekPosition; }
+
+    // Null when nobody asked for a pause or resume
+    public Boolean getPlaying() { return playing; }
+
+    // Whoever sent the command that won, i.e. the last one
+    public UserSession getSeekWinner() { return seekWinner; }
+
+    public UserSession getPlayWinner() { return playWinner; }
+
+    public List<UserSession> getSeekInitiators() { return new ArrayList<>(seekInitiators); }
+
+    public List<UserSession> getPlayInitiators() { return new ArrayList<>(playInitiators); }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final long windowMillis;
+  private final Consumer<Batch> applier;
+  private final Stats stats;
+
+  private Batch pending = null;
+
+  public ControlCoalescer(final ScheduledExecutorService scheduler, final long windowMillis,
+      final Consumer<Batch> applier, final Stats stats) {
+    this.scheduler = scheduler;
+    this.windowMillis = windowMillis;
+    this.applier = applier;
+    this.stats = stats;
+  }
+
+  public void seek(final UserSession initiator, final long position) {
+    submit(batch -> {
+      batch.seekPosition = position;
+      batch.seekWinner = initiator;
+      // Keeps the attribution order by most recent request
+      batch.seekInitiators.remove(initiator);
+      batch.seekInitiators.add(initiator);
+    });
+  }
+
+  public void play(final UserSession initiator, final boolean playing) {
+    submit(batch -> {
+      batch.playing = playing;
+      batch.playWinner = initiator;
+      batch.playInitiators.remove(initiator);
+      batch.playInitiators.add(initiator);
+    });
+  }
+
+  private void submit(final Consumer<Batch> command) {
+    stats.commands.increment();
+    if (windowMillis <= 0) {
+      Batch batch = new Batch();
+      command.accept(batch);
+      stats.batches.increment();
+      applier.accept(batch);
+      return;
+    }
+
+    boolean first;
+    synchronized (this) {
+      first = pending == null;
+      if (first) {
+        pending = new Batch();
+      }
+      command.accept(pending);
+    }
+    if (first) {
+      scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    Batch batch;
+    synchronized (this) {
+      batch = pending;
+      pending = null;
+    }
+    if (batch == null) {
+      return;
+    }
+
+    stats.batches.increment();
+    try {
+      applier.accept(batch);
+    } catch (RuntimeException e) {
+      // Nobody else would see it on the scheduler thread
+      log.warn("Could not apply the playback commands", e);
+    }
+  }
+}
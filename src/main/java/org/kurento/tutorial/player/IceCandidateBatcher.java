@@ -0,0 +1,188 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Coalesces the trickle-ICE candidates of a viewer in both directions.
+// Candidates found by KMS are held for a short window and sent to the client as a
+// single 'iceCandidates' message (only to clients that announced support for it);
+// candidates received from the client are handed to KMS in a single transaction
+// per window instead of an addIceCandidate RPC each.
+public class IceCandidateBatcher {
+  private static final Logger log = LoggerFactory.getLogger(IceCandidateBatcher.class);
+
+  // Counters shared by all the batchers of the server
+  public static class Stats {
+    private final LongAdder candidatesSent = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder candidatesReceived = new LongAdder();
+    private final LongAdder rpcsIssued = new LongAdder();
+
+    public long getCandidatesSent() { return candidatesSent.sum(); }
+
+    public long getFramesSent() { return framesSent.sum(); }
+
+    public long getFramesSaved() { return candidatesSent.sum() - framesSent.sum(); }
+
+    public long getCandidatesReceived() { return candidatesReceived.sum(); }
+
+    public long getRpcsIssued() { return rpcsIssued.sum(); }
+
+    public long getRpcsSaved() { return candidatesReceived.sum() - rpcsIssued.sum(); }
+  }
+
+  private final UserSession user;
+  // The endpoint the viewer had when this batcher was made: a new endpoint (see
+  // StreamingRoom.replaceEndpoint) comes with a new batcher
+  private final WebRtcEndpoint endpoint;
+  private final ScheduledExecutorService scheduler;
+  private final long windowMillis;
+  private final boolean clientBatching;
+  private final Stats stats;
+  private final PlayerMetrics metrics;
+
+  private List<IceCandidate> outbound = new ArrayList<>();
+  private List<IceCandidate> inbound = new ArrayList<>();
+  private boolean cancelled = false;
+
+  public IceCandidateBatcher(final UserSession user, final ScheduledExecutorService scheduler,
+      final long windowMillis, final boolean clientBatching, final Stats stats, final PlayerMetrics metrics) {
+    this.user = user;
+    this.endpoint = user.getWebRtcEndpoint();
+    this.scheduler = scheduler;
+    this.windowMillis = windowMillis;
+    this.clientBatching = clientBatching;
+    this.stats = stats;
+    this.metrics = metrics;
+  }
+
+  // Drops whatever is pending and everything that comes later: the endpoint was
+  // replaced, so its candidates mean nothing to the new peer connection
+  public synchronized void cancel() {
+    cancelled = true;
+    outbound = new ArrayList<>();
+    inbound = new ArrayList<>();
+  }
+
+  private synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  // A candidate gathered by KMS, to be sent to the client
+  public void candidateFound(final IceCandidate candidate) {
+    if (isCancelled()) {
+      return;
+    }
+    stats.candidatesSent.increment();
+    if (!clientBatching || windowMillis <= 0) {
+      stats.framesSent.increment();
+      user.getSender().send(SignalingCodec.iceCandidate(candidate), true);
+      return;
+    }
+
+    boolean first;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      first = outbound.isEmpty();
+      outbound.add(candidate);
+    }
+    if (first) {
+      scheduler.schedule(this::flushOutbound, windowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // A candidate sent by the client, to be added to the viewer's WebRtcEndpoint
+  public void candidateReceived(final IceCandidate candidate) {
+    if (isCancelled()) {
+      return;
+    }
+    stats.candidatesReceived.increment();
+    if (windowMillis <= 0) {
+      submit(List.of(candidate));
+      return;
+    }
+
+    boolean first;
+    synchronized (this) {
+      if (cancelled) {
+        return;
+      }
+      first = inbound.isEmpty();
+      inbound.add(candidate);
+    }
+    if (first) {
+      scheduler.schedule(this::flushInbound, windowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flushOutbound() {
+    List<IceCandidate> batch;
+    synchronized (this) {
+      batch = outbound;
+      outbound = new ArrayList<>();
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    stats.framesSent.increment();
+    user.getSender().send(SignalingCodec.iceCandidates(batch), true);
+  }
+
+  private void flushInbound() {
+    List<IceCandidate> batch;
+    synchronized (this) {
+      batch = inbound;
+      inbound = new ArrayList<>();
+    }
+    if (!batch.isEmpty()) {
+      submit(batch);
+    }
+  }
+
+  // Asynchronous, so that a slow KMS does not hold the scheduler thread
+  private void submit(final List<IceCandidate> batch) {
+    if (endpoint == null) {
+      return;
+    }
+
+    stats.rpcsIssued.increment();
+    final long start = System.nanoTime();
+    Continuation<Void> done = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        metrics.kms(PlayerMetrics.KmsOperation.ADD_ICE_CANDIDATES, start);
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        metrics.kmsError(PlayerMetrics.KmsOperation.ADD_ICE_CANDIDATES, start);
+        log.debug("Error adding {} ICE candidates for {}: {}", batch.size(), user.getNick(), cause.getMessage());
+      }
+    };
+
+    if (batch.size() == 1) {
+      endpoint.addIceCandidate(batch.get(0), done);
+      return;
+    }
+
+    // Begun locally: asking the endpoint for its pipeline would be a blocking call
+    Transaction tx = endpoint.beginTransaction();
+    for (IceCandidate candidate : batch) {
+      endpoint.addIceCandidate(tx, candidate);
+    }
+    tx.commit(done);
+  }
+}
@@ -0,0 +1,23 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registry of a single signaling node: every room is local
+public class InMemoryRoomRegistry implements RoomRegistry {
+  private final ConcurrentHashMap<String, RoomRecord> records = new ConcurrentHashMap<>();
+
+  @Override
+  public void register(final RoomRecord record) {
+    records.put(record.getUuid(), record);
+  }
+
+  @Override
+  public RoomRecord lookup(final String uuid) {
+    return uuid == null ? null : records.get(uuid);
+  }
+
+  @Override
+  public void unregister(final String uuid) {
+    records.remove(uuid);
+  }
+}
@@ -0,0 +1,106 @@
+package org.kurento.tutorial.player;
+
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+// A decoded signaling command. Only the fields used by the command's id are set,
+// the rest are left null.
+public class InboundMessage {
+  String id;
+  UserSession user;
+  String sdpOffer;
+  String videoUrl;
+  String roomId;
+  String room;
+  String target;
+  Long position;
+  IceCandidate candidate;
+  List<IceCandidate> candidates;
+  boolean iceBatching;
+  String bitrate;
+  Boolean tiers;
+  String token;
+  // System.nanoTime() when the frame arrived, set by the handler
+  long receivedAt;
+  // Records how long the command took, run by the handler once it is done; a
+  // command that goes on to run on its room's mailbox takes it along (inRoom)
+  Runnable completion;
+
+  public String getId() {
+    return id;
+  }
+
+  public UserSession getUser() {
+    return user;
+  }
+
+  public String getSdpOffer() {
+    return sdpOffer;
+  }
+
+  public String getVideoUrl() {
+    return videoUrl;
+  }
+
+  public String getRoomId() {
+    return roomId;
+  }
+
+  public String getRoom() {
+    return room;
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  public Long getPosition() {
+    return position;
+  }
+
+  public IceCandidate getCandidate() {
+    return candidate;
+  }
+
+  public List<IceCandidate> getCandidates() {
+    return candidates;
+  }
+
+  // "auto", "low", "medium" or "high"
+  public String getBitrate() {
+    return bitrate;
+  }
+
+  // Rendition tiers for a new room, null for the server's default
+  public Boolean getTiers() {
+    return tiers;
+  }
+
+  // Resume token of a 'rejoin'
+  public String getToken() {
+    return token;
+  }
+
+  // Whether the client understands 'iceCandidates' batches
+  public boolean isIceBatching() {
+    return iceBatching;
+  }
+
+  public long getReceivedAt() {
+    return receivedAt;
+  }
+
+  @Override
+  public String toString() {
+    // SDP offers are huge and already logged by the handler when processed
+    return "InboundMessage{id=" + id + ", user=" + (user == null ? null : user.getNick())
+        + ", roomId=" + roomId + ", room=" + room + ", target=" + target
+        + ", position=" + position + ", candidate=" + (candidate == null ? null : candidate.getCandidate())
+        + ", candidates=" + (candidates == null ? null : candidates.size())
+        + ", bitrate=" + bitrate
+        + ", tiers=" + tiers
+        + ", token=" + (token == null ? null : "<hidden>")
+        + "}";
+  }
+}
@@ -0,0 +1,40 @@
+package org.kurento.tutorial.player;
+
+// Default policy: the highest level that fits in the browser's bandwidth estimate,
+// capped when the viewer reports packet loss.
+public class LinkBitratePolicy implements BitratePolicy {
+  // Only this share of the estimate is used, to leave room for audio and overhead
+  private static final double HEADROOM = 0.85;
+
+  private final long mediumBps;
+  private final long highBps;
+  private final double mediumLoss;
+  private final double lowLoss;
+
+  // Losses above mediumLoss cap the viewer at MEDIUM, above lowLoss at LOW
+  public LinkBitratePolicy(final long mediumBps, final long highBps, final double mediumLoss,
+      final double lowLoss) {
+    this.mediumBps = mediumBps;
+    this.highBps = highBps;
+    this.mediumLoss = mediumLoss;
+    this.lowLoss = lowLoss;
+  }
+
+  @Override
+  public BitrateLevel classify(final LinkSample sample) {
+    if (sample.getFractionLost() > lowLoss) {
+      return BitrateLevel.LOW;
+    }
+    if (sample.getRembBps() <= 0) {
+      return null;
+    }
+
+    double usable = sample.getRembBps() * HEADROOM;
+    BitrateLevel level = usable >= highBps ? BitrateLevel.HIGH
+        : usable >= mediumBps ? BitrateLevel.MEDIUM : BitrateLevel.LOW;
+    if (level == BitrateLevel.HIGH && sample.getFractionLost() > mediumLoss) {
+      level = BitrateLevel.MEDIUM;
+    }
+    return level;
+  }
+}
@@ -0,0 +1,89 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.KurentoClient;
+
+// One Kurento Media Server of the pool, with the load this backend put on it.
+// Pipelines are counted per room and endpoints per viewer (WebRtcEndpoint); the CPU
+// usage is the one last reported by the server itself.
+public class MediaNode {
+  private final String uri;
+  private final KurentoClient client;
+  // 0 means no limit
+  private final int maxEndpoints;
+
+  private final AtomicInteger pipelines = new AtomicInteger();
+  private final AtomicInteger endpoints = new AtomicInteger();
+  private volatile float usedCpu = 0;
+
+  public MediaNode(final String uri, final KurentoClient client, final int maxEndpoints) {
+    this.uri = uri;
+    this.client = client;
+    this.maxEndpoints = maxEndpoints;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public KurentoClient getClient() {
+    return client;
+  }
+
+  public int getPipelines() {
+    return pipelines.get();
+  }
+
+  public int getEndpoints() {
+    return endpoints.get();
+  }
+
+  public int getMaxEndpoints() {
+    return maxEndpoints;
+  }
+
+  // Percentage, as reported by ServerManager.getUsedCpu
+  public float getUsedCpu() {
+    return usedCpu;
+  }
+
+  void setUsedCpu(final float usedCpu) {
+    this.usedCpu = usedCpu;
+  }
+
+  public boolean hasCapacity() {
+    return maxEndpoints <= 0 || endpoints.get() < maxEndpoints;
+  }
+
+  void pipelineCreated() {
+    pipelines.incrementAndGet();
+  }
+
+  void pipelineReleased() {
+    pipelines.decrementAndGet();
+  }
+
+  // Takes a slot for a new viewer, unless the node is full
+  boolean reserveEndpoint() {
+    while (true) {
+      int current = endpoints.get();
+      if (maxEndpoints > 0 && current >= maxEndpoints) {
+        return false;
+      }
+      if (endpoints.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  void releaseEndpoint() {
+    endpoints.decrementAndGet();
+  }
+
+  @Override
+  public String toString() {
+    return uri + " (pipelines=" + pipelines.get() + ", endpoints=" + endpoints.get()
+        + (maxEndpoints > 0 ? "/" + maxEndpoints : "") + ", cpu=" + usedCpu + "%)";
+  }
+}
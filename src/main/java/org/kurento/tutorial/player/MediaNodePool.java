@@ -0,0 +1,149 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// The Kurento Media Servers this backend can place rooms on.
+// A room lives entirely on the node picked when it is created; the placement
+// strategy only decides where new rooms go.
+public class MediaNodePool {
+  private static final Logger log = LoggerFactory.getLogger(MediaNodePool.class);
+
+  public enum PlacementStrategy {
+    // Node with the fewest rooms
+    LEAST_PIPELINES,
+    // Node with the fewest viewers
+    LEAST_ENDPOINTS,
+    // Random node, weighted by the idle CPU each one reports
+    CPU_WEIGHTED
+  }
+
+  // Period over which KMS averages the CPU usage it reports
+  private static final int CPU_SAMPLE_MILLIS = 1000;
+
+  private final List<MediaNode> nodes;
+  private final PlacementStrategy strategy;
+  private final PlayerMetrics metrics;
+
+  public MediaNodePool(final List<MediaNode> nodes, final PlacementStrategy strategy,
+      final PlayerMetrics metrics) {
+    if (nodes.isEmpty()) {
+      throw new IllegalArgumentException("At least one media server is needed");
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    this.strategy = strategy;
+    this.metrics = metrics;
+  }
+
+  // Connects to the given KMS URIs; an empty list means the single server set by
+  // the kms.url system property, as KurentoClient.create() does.
+  public static MediaNodePool connect(final List<String> uris, final PlacementStrategy strategy,
+      final int maxEndpoints, final PlayerMetrics metrics) {
+    List<MediaNode> nodes = new ArrayList<>();
+    if (uris.isEmpty()) {
+      nodes.add(new MediaNode(System.getProperty("kms.url", "ws://localhost:8888/kurento"), KurentoClient.create(), maxEndpoints));
+    }
+    for (String uri : uris) {
+      nodes.add(new MediaNode(uri, KurentoClient.create(uri), maxEndpoints));
+    }
+    log.info("Placing rooms on {} media server(s) by {}", nodes.size(), strategy);
+    return new MediaNodePool(nodes, strategy, metrics);
+  }
+
+  public List<MediaNode> getNodes() {
+    return nodes;
+  }
+
+  public PlacementStrategy getStrategy() {
+    return strategy;
+  }
+
+  // Node for a new room, or null when every node is full
+  public MediaNode select() {
+    List<MediaNode> candidates = new ArrayList<>(nodes.size());
+    for (MediaNode node : nodes) {
+      if (node.hasCapacity()) {
+        candidates.add(node);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+
+    switch (strategy) {
+      case LEAST_PIPELINES:
+        return Collections.min(candidates, (a, b) -> Integer.compare(a.getPipelines(), b.getPipelines()));
+      case CPU_WEIGHTED:
+        return selectByIdleCpu(candidates);
+      case LEAST_ENDPOINTS:
+      default:
+        return Collections.min(candidates, (a, b) -> Integer.compare(a.getEndpoints(), b.getEndpoints()));
+    }
+  }
+
+  // Weighted rather than "lowest CPU wins", so that the rooms created between two
+  // samples do not all land on the same node
+  private MediaNode selectByIdleCpu(final List<MediaNode> candidates) {
+    double[] weights = new double[candidates.size()];
+    double total = 0;
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = Math.max(1, 100 - candidates.get(i).getUsedCpu());
+      total += weights[i];
+    }
+
+    double pick = ThreadLocalRandom.current().nextDouble(total);
+    for (int i = 0; i < weights.length; i++) {
+      pick -= weights[i];
+      if (pick < 0) {
+        return candidates.get(i);
+      }
+    }
+    return candidates.get(weights.length - 1);
+  }
+
+  // Asks every node for its CPU usage. Asynchronous: KMS answers only after the
+  // sampling period, and an unreachable node must not hold the scheduler thread.
+  public void refreshCpu() {
+    for (MediaNode node : nodes) {
+      final long start = System.nanoTime();
+      node.getClient().getServerManager().getUsedCpu(CPU_SAMPLE_MILLIS, new Continuation<Float>() {
+        @Override
+        public void onSuccess(Float usedCpu) {
+          metrics.kms(PlayerMetrics.KmsOperation.GET_USED_CPU, start);
+          node.setUsedCpu(usedCpu);
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          metrics.kmsError(PlayerMetrics.KmsOperation.GET_USED_CPU, start);
+          log.debug("Could not read the CPU usage of {}: {}", node.getUri(), cause.getMessage());
+        }
+      });
+    }
+  }
+
+  public void startCpuPolling(final ScheduledExecutorService scheduler, final long periodMillis) {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        refreshCpu();
+      } catch (RuntimeException e) {
+        log.warn("Could not poll the media servers", e);
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void close() {
+    for (MediaNode node : nodes) {
+      node.getClient().destroy();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+
+// Format-agnostic writer used by SignalingCodec to describe outbound messages
+// once and render them either as JSON or as CBOR.
+interface MessageWriter {
+  MessageWriter beginObject() throws IOException;
+
+  MessageWriter endObject() throws IOException;
+
+  MessageWriter beginArray() throws IOException;
+
+  MessageWriter endArray() throws IOException;
+
+  MessageWriter name(String name) throws IOException;
+
+  MessageWriter value(String value) throws IOException;
+
+  MessageWriter value(long value) throws IOException;
+
+  MessageWriter value(boolean value) throws IOException;
+
+  MessageWriter value(float value) throws IOException;
+
+  // Public profile of a user, as seen by the other members of a room
+  MessageWriter user(UserSession user) throws IOException;
+}
@@ -0,0 +1,77 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+// A message to be sent to one or more clients. It is rendered lazily, at most
+// once per wire format, so a broadcast costs one serialization per format in use
+// regardless of the number of recipients.
+public final class OutboundMessage {
+
+  interface Body {
+    void write(MessageWriter out) throws IOException;
+  }
+
+  private final String id;
+  private final Body body;
+
+  private volatile TextMessage text;
+  private volatile byte[] binary;
+
+  OutboundMessage(final String id, final Body body) {
+    this.id = id;
+    this.body = body;
+  }
+
+  // A frame relayed as is from the node holding the room (see RoomForwarder); it
+  // can only be sent in the format it came in
+  static OutboundMessage forwarded(final WebSocketMessage<?> frame) {
+    OutboundMessage message = new OutboundMessage("forwarded", null);
+    if (frame instanceof BinaryMessage) {
+      // The container may reuse the buffer once the frame has been handled
+      ByteBuffer buffer = ((BinaryMessage) frame).getPayload();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      message.binary = bytes;
+    } else {
+      message.text = (TextMessage) frame;
+    }
+    return message;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public WebSocketMessage<?> encode(final WireFormat format) {
+    if (format == WireFormat.CBOR) {
+      byte[] payload = binary;
+      if (payload == null) {
+        payload = CborCodec.encode(id, body);
+        binary = payload;
+      }
+      // The container consumes the ByteBuffer of a BinaryMessage while sending it,
+      // so each recipient gets its own (cheap) wrapper around the shared bytes
+      return new BinaryMessage(payload);
+    }
+
+    TextMessage payload = text;
+    if (payload == null) {
+      payload = new TextMessage(SignalingCodec.toJson(id, body));
+      text = payload;
+    }
+    return payload;
+  }
+
+  @Override
+  public String toString() {
+    if (body == null) {
+      return id;
+    }
+    return ((TextMessage) encode(WireFormat.JSON)).getPayload();
+  }
+}
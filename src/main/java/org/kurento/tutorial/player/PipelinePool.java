@@ -0,0 +1,257 @@
+package org.kurento.tutorial.player;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.DispatcherOneToMany;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps a few media pipelines per media server ready for new rooms, each one with
+// its DispatcherOneToMany and the HubPort for the player already in place, so that
+// creating a room only costs the PlayerEndpoint (which needs the media URI).
+// Pipelines are built in the background with one asynchronous transaction each;
+// a node that sees no new rooms for a while is trimmed down to its minimum.
+public class PipelinePool {
+  private static final Logger log = LoggerFactory.getLogger(PipelinePool.class);
+
+  // Name of the pooled pipelines on KMS, until a room claims and renames one
+  public static final String PIPELINE_NAME = "kurento-player/pool";
+
+  // How often every node is topped up and checked for idleness
+  private static final long MAINTENANCE_MILLIS = 5000;
+
+  // A pipeline waiting for its room
+  public static class WarmPipeline {
+    private final MediaPipeline pipeline;
+    private final DispatcherOneToMany dispatcher;
+    private final HubPort playerHub;
+
+    private WarmPipeline(final MediaPipeline pipeline, final DispatcherOneToMany dispatcher,
+        final HubPort playerHub) {
+      this.pipeline = pipeline;
+      this.dispatcher = dispatcher;
+      this.playerHub = playerHub;
+    }
+
+    public MediaPipeline getPipeline() {
+      return pipeline;
+    }
+
+    public DispatcherOneToMany getDispatcher() {
+      return dispatcher;
+    }
+
+    public HubPort getPlayerHub() {
+      return playerHub;
+    }
+  }
+
+  public static class Stats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refills = new LongAdder();
+    private final LongAdder refillFailures = new LongAdder();
+    private final LongAdder refillNanos = new LongAdder();
+    private final AtomicLong maxRefillNanos = new AtomicLong();
+    private final LongAdder trimmed = new LongAdder();
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    public double getHitRate() {
+      long h = hits.sum();
+      long total = h + misses.sum();
+      return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getRefills() { return refills.sum(); }
+
+    public long getRefillFailures() { return refillFailures.sum(); }
+
+    public double getMeanRefillNanos() {
+      long n = refills.sum();
+      return n == 0 ? 0 : (double) refillNanos.sum() / n;
+    }
+
+    public long getMaxRefillNanos() { return maxRefillNanos.get(); }
+
+    public long getTotalRefillNanos() { return refillNanos.sum(); }
+
+    public long getTrimmed() { return trimmed.sum(); }
+
+    private void recordRefill(final long nanos) {
+      refills.increment();
+      refillNanos.add(nanos);
+      maxRefillNanos.accumulateAndGet(nanos, Math::max);
+    }
+  }
+
+  private static class NodePool {
+    private final MediaNode node;
+    private final ConcurrentLinkedDeque<WarmPipeline> ready = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger building = new AtomicInteger();
+    private volatile long lastClaim = System.nanoTime();
+
+    private NodePool(final MediaNode node) {
+      this.node = node;
+    }
+  }
+
+  private final Map<MediaNode, NodePool> pools = new HashMap<>();
+  private final int size;
+  private final int minSize;
+  private final long idleNanos;
+  private final PlayerMetrics metrics;
+  private final Stats stats = new Stats();
+  private volatile boolean closed = false;
+
+  public PipelinePool(final MediaNodePool nodes, final int size, final int minSize, final long idleMillis,
+      final PlayerMetrics metrics) {
+    this.metrics = metrics;
+    this.size = size;
+    this.minSize = Math.min(minSize, size);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    for (MediaNode node : nodes.getNodes()) {
+      pools.put(node, new NodePool(node));
+    }
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public void start(final ScheduledExecutorService scheduler) {
+    if (size <= 0) {
+      return;
+    }
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        maintain();
+      } catch (RuntimeException e) {
+        log.warn("Pipeline pool maintenance failed", e);
+      }
+    }, 0, MAINTENANCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  // A ready pipeline on the given node, or null if there is none (the caller then
+  // builds its own)
+  public WarmPipeline claim(final MediaNode node) {
+    NodePool pool = pools.get(node);
+    if (pool == null || size <= 0) {
+      return null;
+    }
+
+    pool.lastClaim = System.nanoTime();
+    WarmPipeline warm = pool.ready.pollFirst();
+    if (warm == null) {
+      stats.misses.increment();
+    } else {
+      stats.hits.increment();
+    }
+    fill(pool, size);
+    return warm;
+  }
+
+  private void maintain() {
+    long now = System.nanoTime();
+    for (NodePool pool : pools.values()) {
+      if (now - pool.lastClaim > idleNanos) {
+        trim(pool);
+      } else {
+        fill(pool, size);
+      }
+    }
+  }
+
+  private void fill(final NodePool pool, final int target) {
+    while (!closed) {
+      int building = pool.building.get();
+      if (pool.ready.size() + building >= target) {
+        return;
+      }
+      if (pool.building.compareAndSet(building, building + 1)) {
+        build(pool);
+      }
+    }
+  }
+
+  private void trim(final NodePool pool) {
+    fill(pool, minSize);
+    while (pool.ready.size() > minSize) {
+      // Oldest first: the newest ones are the most likely to still be valid
+      WarmPipeline warm = pool.ready.pollLast();
+      if (warm == null) {
+        return;
+      }
+      stats.trimmed.increment();
+      release(warm);
+    }
+  }
+
+  private void build(final NodePool pool) {
+    final long start = System.nanoTime();
+    Transaction tx = pool.node.getClient().beginTransaction();
+    MediaPipeline pipeline = pool.node.getClient().createMediaPipeline(tx);
+    pipeline.setName(PIPELINE_NAME, tx);
+    DispatcherOneToMany dispatcher = new DispatcherOneToMany.Builder(pipeline).build(tx);
+    HubPort playerHub = new HubPort.Builder(dispatcher).build(tx);
+    final WarmPipeline warm = new WarmPipeline(pipeline, dispatcher, playerHub);
+
+    tx.commit(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        stats.recordRefill(System.nanoTime() - start);
+        metrics.kms(PlayerMetrics.KmsOperation.PREPARE_PIPELINE, start);
+        pool.building.decrementAndGet();
+        if (closed) {
+          release(warm);
+        } else {
+          pool.ready.addFirst(warm);
+        }
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        stats.refillFailures.increment();
+        metrics.kmsError(PlayerMetrics.KmsOperation.PREPARE_PIPELINE, start);
+        pool.building.decrementAndGet();
+        log.debug("Could not pre-create a pipeline on {}: {}", pool.node.getUri(), cause.getMessage());
+      }
+    });
+  }
+
+  private void release(final WarmPipeline warm) {
+    warm.pipeline.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+      }
+
+      @Override
+      public void onError(Throwable cause) {
+        log.debug("Could not release a pre-created pipeline: {}", cause.getMessage());
+      }
+    });
+  }
+
+  public void close() {
+    closed = true;
+    for (NodePool pool : pools.values()) {
+      WarmPipeline warm;
+      while ((warm = pool.ready.pollFirst()) != null) {
+        release(warm);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.TimeUnit;
+
+// Server-side estimate of the position of a room's PlayerEndpoint.
+// It is anchored on every play/pause/seek issued by the room and periodically
+// corrected with the position reported by KMS, so reading it costs no RPC.
+public class PlaybackClock {
+
+  // What the clock showed at some point, to undo changes KMS did not apply
+  public static final class Saved {
+    private final long position;
+    private final long savedAt;
+    private final boolean playing;
+
+    private Saved(final long position, final long savedAt, final boolean playing) {
+      this.position = position;
+      this.savedAt = savedAt;
+      this.playing = playing;
+    }
+  }
+
+  private long anchorPosition = 0;
+  private long anchorNanos = System.nanoTime();
+  private boolean playing = false;
+  // Bumped on every local change: lets a resync detect that its KMS reading
+  // was taken before a play/pause/seek and is therefore outdated.
+  private long epoch = 0;
+
+  public synchronized long getPosition() {
+    if (!playing) {
+      return anchorPosition;
+    }
+    return anchorPosition + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - anchorNanos);
+  }
+
+  public synchronized boolean isPlaying() {
+    return playing;
+  }
+
+  public synchronized long getEpoch() {
+    return epoch;
+  }
+
+  public synchronized void play() {
+    if (!playing) {
+      anchor(anchorPosition);
+      playing = true;
+    }
+  }
+
+  public synchronized void pause() {
+    if (playing) {
+      anchor(getPosition());
+      playing = false;
+    }
+  }
+
+  public synchronized void seek(final long position) {
+    anchor(position);
+  }
+
+  public synchronized Saved save() {
+    return new Saved(getPosition(), System.nanoTime(), playing);
+  }
+
+  // Puts the clock back as if the changes since it was saved never happened,
+  // unless it changed again after them (its epoch is no longer changedEpoch)
+  public synchronized boolean restore(final Saved saved, final long changedEpoch) {
+    if (changedEpoch != epoch) {
+      return false;
+    }
+    long position = saved.position;
+    if (saved.playing) {
+      position += TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - saved.savedAt);
+    }
+    anchor(position);
+    playing = saved.playing;
+    return true;
+  }
+
+  // Applies a position read from KMS, unless the clock changed since the read started
+  public synchronized boolean resync(final long position, final long readEpoch) {
+    if (readEpoch != epoch) {
+      return false;
+    }
+    anchorPosition = position;
+    anchorNanos = System.nanoTime();
+    return true;
+  }
+
+  private void anchor(final long position) {
+    anchorPosition = position;
+    anchorNanos = System.nanoTime();
+    epoch++;
+  }
+}
@@ -1,9 +1,21 @@
 package org.kurento.tutorial.player;
 
-import org.kurento.client.KurentoClient;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
@@ -19,14 +31,227 @@ public class PlayerApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public BinaryPlayerHandler binaryHandler() {
+    return new BinaryPlayerHandler(handler());
+  }
+
+  @Bean
+  public PlayerMetrics playerMetrics(MeterRegistry registry) {
+    return new PlayerMetrics(registry);
+  }
+
+  // Media servers the rooms are placed on; CPU usage is only polled when the
+  // placement strategy needs it
+  @Bean(destroyMethod = "close")
+  public MediaNodePool mediaNodePool(@Value("${player.kms.uris:}") List<String> uris,
+      @Value("${player.kms.placement:LEAST_ENDPOINTS}") MediaNodePool.PlacementStrategy placement,
+      @Value("${player.kms.max-endpoints:0}") int maxEndpoints,
+      @Value("${player.kms.cpu-poll-ms:10000}") long cpuPollMillis, PlayerMetrics metrics) {
+    MediaNodePool pool = MediaNodePool.connect(uris, placement, maxEndpoints, metrics);
+    if (placement == MediaNodePool.PlacementStrategy.CPU_WEIGHTED && cpuPollMillis > 0) {
+      pool.startCpuPolling(scheduler(), cpuPollMillis);
+    }
+    metrics.bindMediaNodes(pool);
+    return pool;
+  }
+
+  @Bean
+  public VideoInfoCache videoInfoCache(@Value("${player.video-info.ttl-ms:60000}") long ttlMillis,
+      PlayerMetrics metrics) {
+    VideoInfoCache cache = new VideoInfoCache(ttlMillis, metrics);
+    metrics.bindVideoInfoCache(cache);
+    return cache;
+  }
+
+  @Bean
+  public RoomServices roomServices(VideoInfoCache videoInfoCache, PipelinePool pipelinePool,
+      PlayerMetrics metrics, BitrateController bitrateController,
+      @Qualifier("scheduler") ScheduledExecutorService scheduler,
+      @Qualifier("roomExecutor") ExecutorService roomExecutor,
+      @Value("${player.room.batch:16}") int roomBatch,
+      @Value("${player.control.window-ms:100}") long controlWindowMillis,
+      @Value("${player.tiers.enabled:false}") boolean renditionTiers) {
+    RoomServices services = new RoomServices(videoInfoCache, pipelinePool, metrics, bitrateController,
+        scheduler, roomExecutor, roomBatch, controlWindowMillis, renditionTiers);
+    metrics.bindControl(services.getControlStats());
+    return services;
+  }
+
+  // Classifies the viewers' links; replace this bean to plug in another policy
+  @Bean
+  public BitratePolicy bitratePolicy(@Value("${player.bitrate.levels.medium:3000000}") long mediumBps,
+      @Value("${player.bitrate.levels.high:20000000}") long highBps,
+      @Value("${player.bitrate.loss.medium:0.03}") double mediumLoss,
+      @Value("${player.bitrate.loss.low:0.10}") double lowLoss) {
+    return new LinkBitratePolicy(mediumBps, highBps, mediumLoss, lowLoss);
+  }
+
+  @Bean
+  public BitrateController bitrateController(BitratePolicy policy,
+      @Value("${player.bitrate.levels.low:800000}") long lowBps,
+      @Value("${player.bitrate.levels.medium:3000000}") long mediumBps,
+      @Value("${player.bitrate.levels.high:20000000}") long highBps,
+      @Value("${player.bitrate.initial:HIGH}") BitrateLevel initialLevel,
+      @Value("${player.bitrate.up-samples:5}") int upSamples,
+      @Value("${player.bitrate.down-samples:2}") int downSamples,
+      @Value("${player.bitrate.adaptive:true}") boolean adaptive,
+      PlayerMetrics metrics) {
+    BitrateController controller = new BitrateController(policy, lowBps, mediumBps, highBps, initialLevel,
+        upSamples, downSamples, adaptive, metrics);
+    metrics.bindBitrate(controller.getStats());
+    return controller;
+  }
+
+  // Where rooms live when several signaling nodes share the load; MEMORY for a
+  // single node, DIRECTORY for nodes sharing a directory (e.g. JVMs on one host)
+  @Bean
+  public RoomRegistry roomRegistry(@Value("${player.registry.type:MEMORY}") RoomRegistry.Type type,
+      @Value("${player.registry.directory:/tmp/kurento-player-rooms}") String directory) {
+    if (type == RoomRegistry.Type.DIRECTORY) {
+      return new SharedDirectoryRoomRegistry(Paths.get(directory));
+    }
+    return new InMemoryRoomRegistry();
+  }
+
+  @Bean
+  public RoomForwarder roomForwarder(@Value("${player.registry.connect-timeout-ms:5000}") long connectTimeoutMillis,
+      PlayerMetrics metrics) {
+    RoomForwarder forwarder = new RoomForwarder(connectTimeoutMillis);
+    metrics.bindForwarder(forwarder.getStats());
+    return forwarder;
+  }
+
+  // Keeps the media of a viewer whose socket dropped for a while, see SessionResumption
+  @Bean
+  public SessionResumption sessionResumption(@Value("${player.session.grace-ms:30000}") long graceMillis,
+      PlayerMetrics metrics) {
+    SessionResumption resumption = new SessionResumption(graceMillis, scheduler(),
+        user -> user.getRoom().execute(() -> user.getRoom().removeUser(user)));
+    metrics.bindResumption(resumption.getStats());
+    return resumption;
+  }
+
+  // Cleans up what the stop/close path missed; started by the handler, which knows
+  // the rooms. Without an explicit player.node.id no registered room can be told to
+  // be this node's from a previous run, so only unregistered pipelines are reclaimed.
+  @Bean
+  public RoomReaper roomReaper(MediaNodePool mediaNodePool, RoomRegistry roomRegistry,
+      SessionResumption sessionResumption,
+      @Value("${player.node.id:}") String nodeId,
+      @Value("${player.registry.type:MEMORY}") RoomRegistry.Type registryType,
+      @Value("${player.reaper.session-setup-ms:60000}") long sessionSetupMillis,
+      @Value("${player.reaper.room-idle-ms:600000}") long roomIdleMillis, PlayerMetrics metrics) {
+    RoomReaper reaper = new RoomReaper(mediaNodePool, roomRegistry, sessionResumption, nodeId,
+        registryType != RoomRegistry.Type.MEMORY, sessionSetupMillis, roomIdleMillis, metrics);
+    metrics.bindReaper(reaper.getStats());
+    return reaper;
+  }
+
+  // Per-session token buckets in front of the handler, see RateLimiter for the format
+  @Bean
+  public RateLimiter rateLimiter(@Value("${player.ratelimit.frames:50/100}") String frames,
+      @Value("${player.ratelimit.session:1/5}") String session,
+      @Value("${player.ratelimit.control:5/10}") String control,
+      @Value("${player.ratelimit.query:5/10}") String query,
+      @Value("${player.ratelimit.debug:0.2/2}") String debug,
+      @Value("${player.ratelimit.ice:50/100}") String ice,
+      @Value("${player.ratelimit.other:5/10}") String other, PlayerMetrics metrics) {
+    Map<RateLimiter.CommandClass, RateLimiter.Limit> limits = new EnumMap<>(RateLimiter.CommandClass.class);
+    limits.put(RateLimiter.CommandClass.SESSION, RateLimiter.Limit.parse(session));
+    limits.put(RateLimiter.CommandClass.CONTROL, RateLimiter.Limit.parse(control));
+    limits.put(RateLimiter.CommandClass.QUERY, RateLimiter.Limit.parse(query));
+    limits.put(RateLimiter.CommandClass.DEBUG, RateLimiter.Limit.parse(debug));
+    limits.put(RateLimiter.CommandClass.ICE, RateLimiter.Limit.parse(ice));
+    limits.put(RateLimiter.CommandClass.OTHER, RateLimiter.Limit.parse(other));
+    RateLimiter limiter = new RateLimiter(RateLimiter.Limit.parse(frames), limits);
+    metrics.bindRateLimiter(limiter.getStats());
+    return limiter;
+  }
+
+  @Bean
+  public AdmissionControl admissionControl(@Value("${player.admission.max-concurrent-setups:32}") int maxSetups,
+      @Value("${player.admission.retry-after-ms:5000}") long retryAfterMillis, PlayerMetrics metrics) {
+    AdmissionControl admission = new AdmissionControl(maxSetups, retryAfterMillis);
+    metrics.bindAdmission(admission);
+    return admission;
+  }
+
+  // Reads the stats of every endpoint; started by the handler, which knows the rooms
+  @Bean
+  public StatsSampler statsSampler(@Value("${player.stats.interval-ms:2000}") long intervalMillis,
+      @Value("${player.stats.batch-size:50}") int batchSize,
+      @Value("${player.stats.max-in-flight:200}") int maxInFlight,
+      @Value("${player.stats.capacity:150}") int capacity,
+      BitrateController bitrateController, PlayerMetrics metrics) {
+    StatsSampler sampler = new StatsSampler(intervalMillis, batchSize, maxInFlight, capacity,
+        bitrateController, metrics);
+    metrics.bindStatsSampler(sampler.getStats());
+    return sampler;
+  }
+
+  // GET /actuator/playerstats[/{room}]
+  @Bean
+  public PlayerStatsEndpoint playerStatsEndpoint() {
+    return new PlayerStatsEndpoint(handler());
+  }
+
+  // Pipelines pre-created on every media server, ready for new rooms
+  @Bean(destroyMethod = "close")
+  public PipelinePool pipelinePool(MediaNodePool mediaNodePool,
+      @Value("${player.pipeline-pool.size:2}") int size,
+      @Value("${player.pipeline-pool.min-size:0}") int minSize,
+      @Value("${player.pipeline-pool.idle-ms:600000}") long idleMillis, PlayerMetrics metrics,
+      RoomReaper roomReaper, @Value("${player.reaper.reconcile:true}") boolean reconcile) {
+    PipelinePool pool = new PipelinePool(mediaNodePool, size, minSize, idleMillis, metrics);
+    metrics.bindPipelinePool(pool.getStats());
+    // Before the pool fills, or its fresh pipelines would look like leftovers
+    if (reconcile) {
+      roomReaper.reconcile();
+    }
+    pool.start(scheduler());
+    return pool;
+  }
+
+  // Writers of the per-session outbound queues: at most one task per session is
+  // running at any time, so the pool grows only with the number of slow clients.
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService outboundExecutor() {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ws-outbound-");
+    threadFactory.setDaemon(true);
+    return Executors.newCachedThreadPool(threadFactory);
+  }
+
+  // Runs the signaling commands when player.dispatch.mode=POOLED, so that blocking
+  // round trips to KMS don't hold the WebSocket container threads.
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService dispatchExecutor(@Value("${player.dispatch.threads:64}") int threads) {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ws-dispatch-");
+    threadFactory.setDaemon(true);
+    return Executors.newFixedThreadPool(threads, threadFactory);
+  }
+
+  // Threads of the room mailboxes: a room runs on at most one of them at a time,
+  // and its tasks may block on KMS round trips, hence more threads than cores.
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService roomExecutor(@Value("${player.room.threads:32}") int threads) {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("room-loop-");
+    threadFactory.setDaemon(true);
+    return Executors.newFixedThreadPool(threads, threadFactory);
+  }
+
+  // Shared timer for the periodic room housekeeping (clock sync, position updates...)
+  @Bean(destroyMethod = "shutdownNow")
+  public ScheduledExecutorService scheduler() {
+    CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("room-timer-");
+    threadFactory.setDaemon(true);
+    return Executors.newSingleThreadScheduledExecutor(threadFactory);
   }
 
   @Bean
   public ServletServerContainerFactoryBean createServletServerContainerFactoryBean() {
     ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
     container.setMaxTextMessageBufferSize(32768);
+    container.setMaxBinaryMessageBufferSize(32768);
     return container;
   }
 
@@ -36,6 +261,8 @@ public class PlayerApp implements WebSocketConfigurer {
     // It's actually CORS and not some unauthorized error.
     // TODO: check if we can allow tornio.stream and 127.0.0.1
     registry.addHandler(handler(), "/player").setAllowedOrigins("*");
+    // Same protocol, CBOR-encoded in binary frames
+    registry.addHandler(binaryHandler(), "/player/cbor").setAllowedOrigins("*");
   }
 
   public static void main(String[] args) throws Exception {
@@ -0,0 +1,112 @@
+package org.kurento.tutorial.player;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+// JDK Flight Recorder events of the signaling and media-control hot path, see
+// player.jfc for the recording settings.
+// Call sites follow the usual pattern: begin(), end(), and only if shouldCommit()
+// fill in the fields and commit(). With the event disabled that is a couple of
+// flag checks and the JIT removes the allocation.
+final class PlayerEvents {
+  private static final String CATEGORY = "Kurento Player";
+
+  private PlayerEvents() {
+  }
+
+  @Name("org.kurento.tutorial.player.MessageReceived")
+  @Label("Message Received")
+  @Description("A signaling frame was decoded; the duration is the decoding time")
+  @Category({CATEGORY, "Signaling"})
+  @StackTrace(false)
+  static class MessageReceived extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Session")
+    String session;
+
+    @Label("Wire Format")
+    String format;
+  }
+
+  @Name("org.kurento.tutorial.player.MessageDispatched")
+  @Label("Message Dispatched")
+  @Description("A signaling command was handled; the duration is the handling time")
+  @Category({CATEGORY, "Signaling"})
+  @StackTrace(false)
+  @Threshold("1 ms")
+  static class MessageDispatched extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Session")
+    String session;
+
+    @Label("Queue Time")
+    @Description("From the frame arriving to the command starting to run")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueTime;
+  }
+
+  @Name("org.kurento.tutorial.player.Broadcast")
+  @Label("Broadcast")
+  @Description("A message was queued for the members of a room")
+  @Category({CATEGORY, "Signaling"})
+  @StackTrace(false)
+  static class Broadcast extends Event {
+    @Label("Message")
+    String message;
+
+    @Label("Room")
+    String room;
+
+    @Label("Recipients")
+    int recipients;
+  }
+
+  // Emitted once the call returns (or its continuation runs), so it is an instant
+  // event carrying the round trip as a field: asynchronous calls complete on
+  // another thread than the one that started them.
+  @Name("org.kurento.tutorial.player.KmsRpc")
+  @Label("KMS Request")
+  @Description("A request to a media server completed")
+  @Category({CATEGORY, "Media Server"})
+  @StackTrace(false)
+  static class KmsRpc extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Element Type")
+    String elementType;
+
+    @Label("Round Trip")
+    @Timespan(Timespan.NANOSECONDS)
+    long roundTrip;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Name("org.kurento.tutorial.player.SessionMonitorWait")
+  @Label("Session Monitor Wait")
+  @Description("Time spent waiting for the lock of a session's outbound queue")
+  @Category({CATEGORY, "Signaling"})
+  @StackTrace(false)
+  @Enabled(false)
+  @Threshold("1 ms")
+  static class SessionMonitorWait extends Event {
+    @Label("Session")
+    String session;
+
+    @Label("Queue Depth")
+    int depth;
+  }
+}
@@ -1,144 +1,411 @@
 package org.kurento.tutorial.player;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
 
 
-import com.google.gson.JsonElement;
 import org.kurento.client.*;
 import org.kurento.commons.exception.KurentoException;
-import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 
 public class PlayerHandler extends TextWebSocketHandler {
 
+  public enum DispatchMode {
+    // Commands run on the WebSocket container thread that received them
+    INLINE,
+    // Commands run on the dispatch pool, still one at a time per session
+    POOLED
+  }
+
+  private static final String DISPATCHER_ATTRIBUTE = PlayerHandler.class.getName() + ".dispatcher";
+  // Large enough for any 'stop', small enough to be decoded right away when the
+  // session is over its frame limit
+  private static final int MAX_STOP_FRAME = 256;
+
+  @Autowired
+  private MediaNodePool mediaNodes;
+
+  @Autowired
+  private RoomServices roomServices;
+
+  @Autowired
+  @Qualifier("dispatchExecutor")
+  private ExecutorService dispatchExecutor;
+
+  @Autowired
+  @Qualifier("scheduler")
+  private ScheduledExecutorService scheduler;
+
+  @Value("${player.position.sync-ms:5000}")
+  private long positionSyncMillis;
+
+  @Value("${player.position.broadcast-ms:0}")
+  private long positionBroadcastMillis;
+
+  @Autowired
+  private StatsSampler statsSampler;
+
+  @Autowired
+  private SessionResumption resumption;
+
+  @Autowired
+  private RoomRegistry roomRegistry;
+
+  @Autowired
+  private RoomForwarder forwarder;
+
+  @Autowired
+  private RoomReaper reaper;
+
+  @Autowired
+  private RateLimiter rateLimiter;
+
+  @Autowired
+  private AdmissionControl admission;
+
+  @Value("${player.reaper.interval-ms:30000}")
+  private long reaperIntervalMillis;
+
+  // Identity of this node in the room registry, and the base URL the other nodes
+  // reach it at
+  @Value("${player.node.id:${random.uuid}}")
+  private String nodeId;
+
+  @Value("${player.node.url:ws://localhost:8080}")
+  private String nodeUrl;
+
+  @Value("${player.ice.batch-window-ms:20}")
+  private long iceBatchWindowMillis;
+
+  @Value("${player.dispatch.mode:POOLED}")
+  private DispatchMode dispatchMode;
+
   @Autowired
-  private KurentoClient kurento;
+  @Qualifier("outboundExecutor")
+  private ExecutorService outboundExecutor;
+
+  @Value("${player.outbound.capacity:256}")
+  private int outboundCapacity;
+
+  @Value("${player.outbound.overflow:DISCONNECT}")
+  private SessionSender.OverflowPolicy outboundOverflow;
 
   private final Logger log = LoggerFactory.getLogger(PlayerHandler.class);
-  private final Gson gson = new GsonBuilder().create();
 
   private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<>();
   private final ConcurrentHashMap<String, StreamingRoom> rooms = new ConcurrentHashMap<>();
-  
+  private final SessionSender.Stats outboundStats = new SessionSender.Stats();
+  private final IceCandidateBatcher.Stats iceStats = new IceCandidateBatcher.Stats();
+
+  public SessionSender.Stats getOutboundStats() {
+    return outboundStats;
+  }
+
+  public IceCandidateBatcher.Stats getIceStats() {
+    return iceStats;
+  }
+
+  public ControlCoalescer.Stats getControlStats() {
+    return roomServices.getControlStats();
+  }
+
+  public PipelinePool.Stats getPipelinePoolStats() {
+    return roomServices.getPipelinePool().getStats();
+  }
+
+  public Collection<StreamingRoom> getRooms() {
+    return Collections.unmodifiableCollection(rooms.values());
+  }
+
+  public StreamingRoom getRoom(final String uuid) {
+    return rooms.get(uuid);
+  }
+
+  @Autowired
+  private PlayerMetrics metrics;
+
+  @PostConstruct
+  public void bindMetrics() {
+    metrics.bindSessions(users, rooms);
+    metrics.bindOutbound(outboundStats);
+    metrics.bindIce(iceStats);
+  }
+
+  @PostConstruct
+  public void startTimers() {
+    if (positionSyncMillis > 0) {
+      scheduler.scheduleWithFixedDelay(() -> forEachRoom(StreamingRoom::syncClock),
+          positionSyncMillis, positionSyncMillis, TimeUnit.MILLISECONDS);
+    }
+    if (positionBroadcastMillis > 0) {
+      scheduler.scheduleWithFixedDelay(() -> forEachRoom(StreamingRoom::broadcastPosition),
+          positionBroadcastMillis, positionBroadcastMillis, TimeUnit.MILLISECONDS);
+    }
+    statsSampler.start(scheduler, rooms::values);
+    reaper.start(scheduler, reaperIntervalMillis, rooms, users);
+  }
+
+  // For periodic tasks: an exception in a room must neither affect the others nor
+  // cancel the schedule
+  private void forEachRoom(final Consumer<StreamingRoom> action) {
+    for (StreamingRoom room : rooms.values()) {
+      try {
+        action.accept(room);
+      } catch (RuntimeException e) {
+        log.warn("Periodic task failed for room {}", room.getUUID(), e);
+      }
+    }
+  }
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) {
+    onConnected(session, WireFormat.JSON);
+  }
+
+  // Entry points shared with BinaryPlayerHandler, which speaks the same protocol
+  // over CBOR binary frames
+  void onConnected(final WebSocketSession session, final WireFormat format) {
+    SessionSender.attach(session, format, outboundExecutor, outboundCapacity, outboundOverflow, outboundStats);
+    rateLimiter.attach(session);
+    if (dispatchMode == DispatchMode.POOLED) {
+      session.getAttributes().put(DISPATCHER_ATTRIBUTE, new SerialExecutor(dispatchExecutor));
+    }
+  }
+
+  // Runs the task on the session's dispatcher, or right away in INLINE mode.
+  // Tasks of the same session never overlap and keep their arrival order.
+  private void dispatch(final WebSocketSession session, final Runnable task) {
+    SerialExecutor dispatcher = (SerialExecutor) session.getAttributes().get(DISPATCHER_ATTRIBUTE);
+    if (dispatcher == null) {
+      task.run();
+    } else {
+      dispatcher.execute(task);
+    }
+  }
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) {
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+    onMessage(session, message, () -> SignalingCodec.decode(message.getPayload()));
+  }
+
+  // Decoding runs on the dispatcher too, off the container thread
+  void onMessage(final WebSocketSession session, final WebSocketMessage<?> frame,
+      final Supplier<InboundMessage> decoder) {
+    final long receivedAt = System.nanoTime();
+    Supplier<InboundMessage> decode = decoder;
+    // Dropped before it takes any room in the session's queue, except for 'stop',
+    // which is never limited
+    long retryAfter = rateLimiter.acquireFrame(session);
+    if (retryAfter > 0) {
+      final InboundMessage stop = decodeStop(frame, decoder);
+      if (stop == null) {
+        SessionSender.of(session).send(SignalingCodec.rejected(null, "rateLimited", retryAfter,
+            "Too many messages, slow down."), true);
+        return;
+      }
+      decode = () -> stop;
+    }
+    final Supplier<InboundMessage> inbound = decode;
+    dispatch(session, () -> processMessage(session, frame, inbound, receivedAt));
+  }
+
+  // The frame decoded if it is a 'stop', otherwise null
+  private static InboundMessage decodeStop(final WebSocketMessage<?> frame, final Supplier<InboundMessage> decoder) {
+    if (frame.getPayloadLength() > MAX_STOP_FRAME) {
+      return null;
+    }
+    try {
+      InboundMessage message = decoder.get();
+      return "stop".equals(message.getId()) ? message : null;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private void processMessage(WebSocketSession session, WebSocketMessage<?> frame,
+      Supplier<InboundMessage> decoder, long receivedAt) {
+    // Sessions of rooms held by another node are relayed there, undecoded
+    if (forwarder.forward(session, frame)) {
+      return;
+    }
+
     String sessionId = session.getId();
-    log.debug("Incoming message {} from sessionId {}", jsonMessage, sessionId);
+    long start = System.nanoTime();
+    PlayerEvents.MessageReceived received = new PlayerEvents.MessageReceived();
+    received.begin();
+    InboundMessage inbound;
+    try {
+      inbound = decoder.get();
+    } catch (JsonParseException e) {
+      log.debug("Malformed message from sessionId {}: {}", sessionId, e.getMessage());
+      sendError(session, e.getMessage());
+      return;
+    }
+    received.end();
+    if (received.shouldCommit()) {
+      received.command = inbound.getId();
+      received.session = sessionId;
+      received.format = SessionSender.of(session).getFormat().name();
+      received.commit();
+    }
+    inbound.receivedAt = receivedAt;
+    long retryAfter = rateLimiter.acquire(session, inbound.getId());
+    if (retryAfter > 0) {
+      SessionSender.of(session).send(SignalingCodec.rejected(inbound.getId(), "rateLimited", retryAfter,
+          "Too many " + inbound.getId() + " requests, slow down."), true);
+      return;
+    }
+    UserSession sender = users.get(sessionId);
+    if (sender != null && sender.getRoom() != null) {
+      sender.getRoom().touch();
+    }
+    log.debug("Incoming message {} from sessionId {}", inbound, sessionId);
+
+    final PlayerEvents.MessageDispatched dispatched = new PlayerEvents.MessageDispatched();
+    dispatched.begin();
+    inbound.completion = () -> {
+      metrics.command(inbound.getId(), start);
+      dispatched.end();
+      if (dispatched.shouldCommit()) {
+        dispatched.command = inbound.getId();
+        dispatched.session = sessionId;
+        dispatched.queueTime = start - receivedAt;
+        dispatched.commit();
+      }
+    };
 
     try {
-      switch (jsonMessage.get("id").getAsString()) {
+      switch (inbound.getId()) {
         case "start":
-          createRoom(session, jsonMessage);
+          createRoom(session, inbound);
           break;
         case "stop":
           stop(sessionId);
           break;
         case "pause":
-          pause(sessionId);
+          pause(session, inbound);
           break;
         case "register":
-          joinRoom(session, jsonMessage);
+          joinRoom(session, inbound, frame);
           break;
         case "resume":
-          resume(session);
+          resume(session, inbound);
           break;
         case "inhibit":
-          inhibit(session, jsonMessage, true);
+          inhibit(session, inbound, true);
           break;
         case "uninhibit":
-          inhibit(session, jsonMessage, false);
+          inhibit(session, inbound, false);
           break;
         case "debugDot":
-          debugDot(session);
+        case "transcodingReport":
+          transcodingReport(session, inbound);
           break;
         case "doSeek":
-          doSeek(session, jsonMessage);
+          doSeek(session, inbound);
           break;
         case "showParticipants":
-          requestParticipants(session, jsonMessage);
+          requestParticipants(session, inbound);
           break;
         case "getPosition":
           getPosition(session);
           break;
         case "onIceCandidate":
-          onIceCandidate(sessionId, jsonMessage);
+          onIceCandidate(sessionId, inbound);
+          break;
+        case "onIceCandidates":
+          onIceCandidates(sessionId, inbound);
+          break;
+        case "setBitrate":
+          setBitrate(session, inbound);
+          break;
+        case "getStats":
+          getStats(session, inbound);
+          break;
+        case "rejoin":
+          rejoin(session, inbound);
           break;
         default:
-          sendError(session, "Invalid message with id " + jsonMessage.get("id").getAsString());
+          sendError(session, "Invalid message with id " + inbound.getId());
           break;
       }
     } catch (Throwable t) {
-      log.error("Exception handling message {} in sessionId {}", jsonMessage, sessionId, t);
+      log.error("Exception handling message {} in sessionId {}", inbound, sessionId, t);
       sendError(session, t.getMessage());
+    } finally {
+      // Null if the room has it now
+      Runnable completion = inbound.completion;
+      if (completion != null) {
+        completion.run();
+      }
     }
   }
 
-  private void requestParticipants(final WebSocketSession session, final JsonObject jsonMessage) {
-    JsonElement room = jsonMessage.get("room");
+  private void requestParticipants(final WebSocketSession session, final InboundMessage message) {
+    String room = message.getRoom();
     if (room == null) {
       sendError(session, "You need to specify target's room.");
       return;
     }
 
-    StreamingRoom r = rooms.get(room.getAsString());
+    StreamingRoom r = rooms.get(room);
     if (r == null) {
       sendError(session, "Room not found!");
       return;
     }
 
-    Gson gson = new Gson();
-    JsonElement userList = gson.toJsonTree(r.getUserList(), List.class);
-    
-    JsonObject response = new JsonObject();
-    response.addProperty("id", "responseParticipants");
-    response.add("users", userList);
-    sendMessage(session, response.toString());
+    sendMessage(session, SignalingCodec.participants(r.getUserList()));
   }
 
   // An admin can inhibit a user from controlling the movie: e.g. if they have been
   // repeatedly misbehaving.
-  private void inhibit(final WebSocketSession session, final JsonObject jsonMessage, final Boolean inhibit) {
-    UserSession user = this.users.get(session.getId());
+  private void inhibit(final WebSocketSession session, final InboundMessage message, final Boolean inhibit) {
+    final UserSession user = this.users.get(session.getId());
     if (user == null) {
       sendError(session, "You're not registered.");
       return;
     }
 
-    JsonElement target = jsonMessage.get("target");
+    final String target = message.getTarget();
     if (target == null) {
       sendError(session, "You need to specify target's nickname.");
       return;
     }
 
-    user.getRoom().setInhibitUser(user, target.getAsString(), inhibit);
+    final StreamingRoom room = user.getRoom();
+    inRoom(session, message, room, () -> room.setInhibitUser(user, target, inhibit));
   }
 
   // This gets called only the first time a room is registered
   // The user that calls it first is the one that becomes admin
-  private void createRoom(final WebSocketSession session, JsonObject jsonMessage) {
-    JsonElement usr = jsonMessage.get("user");
+  private void createRoom(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = message.getUser();
 
-    if (usr == null) {
+    if (user == null) {
       sendError(session, "Error, you have to set a nickname before creating the room");
       return;
     }
 
-    Gson gson = new Gson();
-    final UserSession user = gson.fromJson(usr, UserSession.class);
-
     user.setIsAdmin(true);
     user.setInhibited(false);
     user.setWs(session);
@@ -148,39 +415,59 @@ public class PlayerHandler extends TextWebSocketHandler {
       return;
     }
 
-    JsonElement videoURLJSON = jsonMessage.get("videourl");
-    if (videoURLJSON == null) {
+    String videoURL = message.getVideoUrl();
+    if (videoURL == null) {
       sendError(session, "You didn't provide any videoURL.");
+      return;
     }
 
-    String videoURL = videoURLJSON.getAsString();
-
-    StreamingRoom stream = new StreamingRoom(kurento, user, videoURL);
+    // Checked before any media is created, so that nothing is left behind
+    if (message.getSdpOffer() == null) {
+      sendError(session, "Empty sdpOffer, cannot proceed");
+      return;
+    }
 
-    String uuid = stream.getUUID();
+    MediaNode node = mediaNodes.select();
+    if (!admit(session, message, node)) {
+      return;
+    }
 
-    rooms.put(uuid, stream);
-    users.put(session.getId(), user);
+    try {
+      boolean tiered = message.getTiers() != null ? message.getTiers() : roomServices.isRenditionTiers();
+      StreamingRoom stream = new StreamingRoom(node, roomServices, user, videoURL, tiered);
+
+      String uuid = stream.getUUID();
+
+      rooms.put(uuid, stream);
+      roomRegistry.register(new RoomRegistry.RoomRecord(uuid, nodeId, nodeUrl, node.getUri(),
+          stream.getPipelineId()));
+      stream.setReleaseListener(released -> {
+        rooms.remove(released.getUUID(), released);
+        roomRegistry.unregister(released.getUUID());
+      });
+      users.put(session.getId(), user);
+
+      // The admin's own negotiation: it doesn't change the room, so it runs here
+      setupWebRTCOrLeave(user, stream, message);
+    } finally {
+      admission.exit();
+    }
+  }
 
-    if (jsonMessage.get("sdpOffer") == null) {
-      sendError(session, "Empty sdpOffer, cannot proceed");
+  private void joinRoom(final WebSocketSession session, final InboundMessage message,
+      final WebSocketMessage<?> frame) {
+    if (message.getRoomId() != null && !rooms.containsKey(message.getRoomId())
+        && forwardJoin(session, message.getRoomId(), frame)) {
       return;
     }
 
-    setupWebRTC(user, stream, jsonMessage.get("sdpOffer").getAsString());
-  }
-  
-  private void joinRoom(final WebSocketSession session, JsonObject jsonMessage) {
-    JsonElement usr = jsonMessage.get("user");
+    final UserSession user = message.getUser();
 
-    if (usr == null) {
+    if (user == null) {
       sendError(session, "Error, you have to set a nickname before joining the room");
       return;
     }
 
-    Gson gson = new Gson();
-    final UserSession user = gson.fromJson(usr, UserSession.class);
-
     user.setIsAdmin(false);
     user.setInhibited(false);
     user.setWs(session);
@@ -190,136 +477,282 @@ public class PlayerHandler extends TextWebSocketHandler {
       return;
     }
 
-    String room = jsonMessage.get("roomid").getAsString();
+    String room = message.getRoomId();
 
-    if (!rooms.containsKey(room)) {
+    if (room == null || !rooms.containsKey(room)) {
       sendError(session, "Error, room not found");
       return;
     }
     final StreamingRoom stream = rooms.get(room);
 
-    if (!stream.addUser(user)) {
+    if (message.getSdpOffer() == null) {
+      sendError(session, "Empty sdpOffer, cannot proceed");
       return;
     }
 
-    users.put(session.getId(), user);
-
-    if (jsonMessage.get("sdpOffer") == null) {
-      sendError(session, "Empty sdpOffer, cannot proceed");
+    if (!admit(session, message, stream.getNode())) {
       return;
     }
 
-    setupWebRTC(user, stream, jsonMessage.get("sdpOffer").getAsString());
+    try {
+      // Only the join itself runs on the room's mailbox. The session waits for it,
+      // so that whatever it sends next finds the viewer in the room, and then
+      // negotiates its media here without holding up the rest of the room.
+      boolean added = stream.call(() -> {
+        if (stream.isReleased()) {
+          sendError(session, "Error, room not found");
+          return false;
+        }
+        return stream.addUser(user);
+      });
+      if (!added) {
+        return;
+      }
+
+      users.put(session.getId(), user);
+
+      setupWebRTCOrLeave(user, stream, message);
+    } finally {
+      admission.exit();
+    }
   }
 
-  private void setupWebRTC(final UserSession user, final StreamingRoom stream, final String sdpOffer) {
-    // 2. WebRtcEndpoint
-    // ICE candidates
-    WebSocketSession session = user.getWs();
-    user.getWebRtcEndpoint().addIceCandidateFoundListener(event -> {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "iceCandidate");
-      response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+  // Runs a command on the room's mailbox, in order with everything else that
+  // changes the room; a failure is reported to the session like any other, and
+  // the command is timed until the task is done
+  private void inRoom(final WebSocketSession session, final InboundMessage message, final StreamingRoom room,
+      final Runnable task) {
+    final Runnable completion = message.completion;
+    message.completion = null;
+    room.execute(() -> {
       try {
-        synchronized (session) {
-          session.sendMessage(new TextMessage(response.toString()));
+        task.run();
+      } catch (RuntimeException e) {
+        log.error("Exception handling message {} in room {} for sessionId {}", message, room.getUUID(),
+            session.getId(), e);
+        sendError(session, e.getMessage());
+      } finally {
+        if (completion != null) {
+          completion.run();
         }
-      } catch (IOException e) {
-        log.debug(e.getMessage());
       }
     });
+  }
+
+  // Tells the client why its start/register was refused; true if it was admitted
+  private boolean admit(final WebSocketSession session, final InboundMessage message, final MediaNode node) {
+    AdmissionControl.Reason reason = admission.enter(node);
+    if (reason == null) {
+      return true;
+    }
+
+    String text;
+    if (reason == AdmissionControl.Reason.BUSY) {
+      text = "The server is busy, try again in a moment.";
+    } else if (node == null) {
+      text = "All the media servers are full, try again later.";
+    } else {
+      text = "The media server of this room is full, try again later.";
+    }
+    log.debug("Rejected {} from sessionId {}: {}", message.getId(), session.getId(), reason);
+    sendMessage(session, SignalingCodec.rejected(message.getId(), reason.getTag(),
+        admission.getRetryAfterMillis(), text));
+    return false;
+  }
+
+  // A user whose negotiation failed would keep its endpoint (and maybe the whole
+  // room) until the socket closes: it leaves the room right away instead
+  private void setupWebRTCOrLeave(final UserSession user, final StreamingRoom stream, final InboundMessage message) {
+    try {
+      setupWebRTC(user, stream, message);
+    } catch (RuntimeException e) {
+      stop(user.getWs().getId());
+      throw e;
+    }
+  }
+
+  // A room unknown here may be held by another node: the whole session is then
+  // relayed to it. Returns false if no other node has the room either.
+  private boolean forwardJoin(final WebSocketSession session, final String room, final WebSocketMessage<?> frame) {
+    RoomRegistry.RoomRecord record = roomRegistry.lookup(room);
+    if (record == null || nodeId.equals(record.getOwnerNode())) {
+      return false;
+    }
+
+    if (!forwarder.open(session, record, frame)) {
+      sendError(session, "The room is on a server that cannot be reached, try again later.");
+    }
+    return true;
+  }
+
+  private void setupWebRTC(final UserSession user, final StreamingRoom stream, final InboundMessage message) {
+    // 2. WebRtcEndpoint
+    // ICE candidates
+    WebSocketSession session = user.getWs();
+    String sdpOffer = message.getSdpOffer();
+    IceCandidateBatcher iceBatcher = new IceCandidateBatcher(user, scheduler, iceBatchWindowMillis,
+        message.isIceBatching(), iceStats, metrics);
+    IceCandidateBatcher previous = user.getIceBatcher();
+    if (previous != null) {
+      previous.cancel();
+    }
+    user.setIceBatcher(iceBatcher);
+    user.setMediaConnected(false);
+    long start = System.nanoTime();
+    user.getWebRtcEndpoint().addIceCandidateFoundListener(event -> iceBatcher.candidateFound(event.getCandidate()));
+    metrics.kms(PlayerMetrics.KmsOperation.SUBSCRIBE_VIEWER, start);
 
     // Continue the SDP Negotiation: Generate an SDP Answer
-    String sdpAnswer = user.getWebRtcEndpoint().processOffer(sdpOffer);
+    start = System.nanoTime();
+    String sdpAnswer;
+    try {
+      sdpAnswer = user.getWebRtcEndpoint().processOffer(sdpOffer);
+    } catch (KurentoException e) {
+      metrics.kmsError(PlayerMetrics.KmsOperation.PROCESS_OFFER, start);
+      throw e;
+    }
+    metrics.kms(PlayerMetrics.KmsOperation.PROCESS_OFFER, start);
 
     log.info("[Handler::start] SDP Offer from browser to KMS:\n{}", sdpOffer);
     log.info("[Handler::start] SDP Answer from KMS to browser:\n{}", sdpAnswer);
 
-    JsonObject response = new JsonObject();
-    response.addProperty("id", "startResponse");
-    response.addProperty("sdpAnswer", sdpAnswer);
-    sendMessage(session, response.toString());
-
-    user.getWebRtcEndpoint().addMediaStateChangedListener(event -> {
+    sendMessage(session, SignalingCodec.message("startResponse", "sdpAnswer", sdpAnswer));
+    issueResumeToken(user);
+    if ("start".equals(message.getId())) {
+      metrics.roomStarted(message.getReceivedAt());
+    } else {
+      metrics.roomJoined(message.getReceivedAt());
+    }
 
+    start = System.nanoTime();
+    user.getWebRtcEndpoint().addMediaStateChangedListener(event -> stream.execute(() -> {
+      user.setMediaConnected(event.getNewState() == MediaState.CONNECTED);
       if (event.getNewState() == MediaState.CONNECTED) {
-        VideoInfo videoInfo = stream.getPlayerEndpoint().getVideoInfo();
-
-        JsonObject response1 = new JsonObject();
-        response1.addProperty("id", "videoInfo");
-        response1.addProperty("isSeekable", videoInfo.getIsSeekable());
-        response1.addProperty("initSeekable", videoInfo.getSeekableInit());
-        response1.addProperty("endSeekable", videoInfo.getSeekableEnd());
-        response1.addProperty("videoDuration", videoInfo.getDuration());
-        sendMessage(session, response1.toString());
+        stream.sendVideoInfo(user);
       }
-    });
+    }));
+    metrics.kms(PlayerMetrics.KmsOperation.SUBSCRIBE_VIEWER, start);
 
+    start = System.nanoTime();
     user.getWebRtcEndpoint().gatherCandidates();
-
-    // 3. PlayEndpoint
-    stream.getPlayerEndpoint().addErrorListener(event -> {
-      log.info("ErrorEvent: {}", event.getDescription());
-      sendPlayEnd(session);
-    });
-
-    stream.getPlayerEndpoint().addEndOfStreamListener(event -> {
-      log.info("EndOfStreamEvent: {}", event.getTimestamp());
-      sendPlayEnd(session);
-    });
+    metrics.kms(PlayerMetrics.KmsOperation.GATHER_CANDIDATES, start);
   }
 
-  private void pause(String sessionId) {
-    UserSession user = users.get(sessionId);
+  private void pause(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
     if (user == null) {
       return;
     }
 
-    user.getRoom().pause(user);
+    inRoom(session, message, user.getRoom(), () -> user.getRoom().pause(user));
   }
 
-  private void resume(final WebSocketSession session) {
-    UserSession user = users.get(session.getId());
+  private void resume(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
     if (user == null) {
       return;
     }
 
-    user.getRoom().resume(user);
+    inRoom(session, message, user.getRoom(), () -> user.getRoom().resume(user));
   }
 
   private void stop(String sessionId) {
-    UserSession user = users.remove(sessionId);
+    final UserSession user = users.remove(sessionId);
     if (user != null) {
-      user.getRoom().removeUser(user);
+      resumption.forget(user);
+      user.getRoom().execute(() -> user.getRoom().removeUser(user));
     }
   }
 
-  private void debugDot(final WebSocketSession session) {
-    UserSession user = users.get(session.getId());
-    if (user != null) {
-      System.out.println("media trans" + user.getRoom().getPlayerEndpoint().isMediaTranscoding(MediaType.VIDEO));
-      System.out.println("play " + user.getWebRtcEndpoint().isMediaTranscoding(MediaType.VIDEO));
-      System.out.println("pppp " + user.getHubPort().isMediaTranscoding(MediaType.VIDEO));
+  private void issueResumeToken(final UserSession user) {
+    String token = resumption.issue(user);
+    if (token != null) {
+      sendMessage(user.getWs(), SignalingCodec.resumeToken(token, resumption.getGraceMillis()));
     }
   }
 
-  private void doSeek(final WebSocketSession session, JsonObject jsonMessage) {
-    UserSession user = users.get(session.getId());
+  // A viewer whose socket dropped comes back with its resume token. Its media was
+  // kept alive: if the client still has its peer connection only the signaling is
+  // rebound; if it sends a new offer it gets a new endpoint in the same room.
+  private void rejoin(final WebSocketSession session, final InboundMessage message) {
+    if (users.containsKey(session.getId())) {
+      sendError(session, "You're already in a room.");
+      return;
+    }
 
-    if (user != null) {
+    WebSocketSession previous = null;
+    UserSession current = resumption.peek(message.getToken());
+    if (current != null) {
+      previous = current.getWs();
+    }
+    final UserSession user = resumption.claim(message.getToken(), session);
+    if (user == null || user.getRoom() == null || user.getRoom().isReleased()) {
+      sendMessage(session, SignalingCodec.message("rejoinResponse", "error", "expired"));
+      return;
+    }
+    users.put(session.getId(), user);
+
+    // The client gave up on a socket that is still open on this side
+    if (previous != null && previous != session && users.remove(previous.getId(), user)) {
+      SessionSender.of(previous).close();
       try {
-        JsonElement position = jsonMessage.get("position");
-        if (position == null) {
-          sendError(session, "You need to set a new position");
-        }
-        user.getRoom().seek(user, position.getAsLong());
+        previous.close(CloseStatus.NORMAL);
+      } catch (IOException e) {
+        log.debug("Error closing the previous session of {}: {}", user.getNick(), e.getMessage());
+      }
+    }
+
+    final StreamingRoom room = user.getRoom();
+    // As for a join, only the changes to the room run on its mailbox
+    room.call(() -> {
+      room.rebind(user);
+      if (message.getSdpOffer() != null) {
+        room.replaceEndpoint(user);
+      }
+      return null;
+    });
+    if (message.getSdpOffer() != null) {
+      setupWebRTC(user, room, message);
+    } else {
+      issueResumeToken(user);
+    }
+  }
+
+  // Tells the requester which viewers of its room KMS is transcoding for
+  private void transcodingReport(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
+    if (user == null) {
+      return;
+    }
+
+    inRoom(session, message, user.getRoom(), () -> {
+      try {
+        sendMessage(session, SignalingCodec.transcoding(user.getRoom().getTranscodingReport()));
       } catch (KurentoException e) {
-        log.debug("The seek cannot be performed");
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "seek");
-        response.addProperty("message", "Seek failed");
-        sendMessage(session, response.toString());
+        log.debug("Could not build the transcoding report: {}", e.getMessage());
+        sendError(session, "Could not check the transcoding of the room.");
+      }
+    });
+  }
+
+  private void doSeek(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
+
+    if (user != null) {
+      final Long position = message.getPosition();
+      if (position == null) {
+        sendError(session, "You need to set a new position");
+        return;
       }
+
+      inRoom(session, message, user.getRoom(), () -> {
+        try {
+          user.getRoom().seek(user, position);
+        } catch (KurentoException e) {
+          log.debug("The seek cannot be performed");
+          sendMessage(session, SignalingCodec.message("seek", "message", "Seek failed"));
+        }
+      });
     }
   }
 
@@ -327,56 +760,83 @@ public class PlayerHandler extends TextWebSocketHandler {
     UserSession user = users.get(session.getId());
 
     if (user != null) {
-      long position = user.getRoom().getPlayerEndpoint().getPosition();
+      long position = user.getRoom().getPosition();
+      SessionSender.of(session).send(SignalingCodec.message("position", "position", position), true);
+    }
+  }
 
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "position");
-      response.addProperty("position", position);
-      sendMessage(session, response.toString());
+  // Pins the quality of a viewer ('target') or of the whole room, or gives it back
+  // to the bitrate controller with "auto"
+  private void setBitrate(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
+    if (user == null) {
+      sendError(session, "You're not registered.");
+      return;
+    }
+
+    final BitrateLevel level;
+    try {
+      level = BitrateLevel.parse(message.getBitrate());
+    } catch (IllegalArgumentException e) {
+      sendError(session, "Unknown bitrate " + message.getBitrate() + ", use auto, low, medium or high.");
+      return;
     }
+
+    inRoom(session, message, user.getRoom(), () -> user.getRoom().setBitrate(user, message.getTarget(), level));
   }
 
-  private void onIceCandidate(String sessionId, JsonObject jsonMessage) {
+  // Stats series of the admin's room, or of one of its viewers ('target')
+  private void getStats(final WebSocketSession session, final InboundMessage message) {
+    final UserSession user = users.get(session.getId());
+    if (user == null) {
+      sendError(session, "You're not registered.");
+      return;
+    }
+
+    inRoom(session, message, user.getRoom(), () -> user.getRoom().sendStats(user, message.getTarget()));
+  }
+
+  private void onIceCandidate(String sessionId, InboundMessage message) {
     UserSession user = users.get(sessionId);
 
-    if (user != null) {
-      JsonObject jsonCandidate = jsonMessage.get("candidate").getAsJsonObject();
-      IceCandidate candidate =
-          new IceCandidate(jsonCandidate.get("candidate").getAsString(), jsonCandidate
-              .get("sdpMid").getAsString(), jsonCandidate.get("sdpMLineIndex").getAsInt());
-      user.addCandidate(candidate);
+    if (user != null && message.getCandidate() != null) {
+      user.addCandidate(message.getCandidate());
     }
   }
 
-  public void sendPlayEnd(WebSocketSession session) {
-    if (users.containsKey(session.getId())) {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "playEnd");
-      sendMessage(session, response.toString());
+  private void onIceCandidates(String sessionId, InboundMessage message) {
+    UserSession user = users.get(sessionId);
+
+    if (user != null && message.getCandidates() != null) {
+      for (IceCandidate candidate : message.getCandidates()) {
+        user.addCandidate(candidate);
+      }
     }
   }
 
   private void sendError(WebSocketSession session, String message) {
-    //if (users.containsKey(session.getId())) {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "error");
-      response.addProperty("message", message);
-      sendMessage(session, response.toString());
-    //}
+    sendMessage(session, SignalingCodec.error(message));
   }
 
-  private void sendMessage(WebSocketSession session, String message) {
-    try {
-      synchronized (session) {
-        session.sendMessage(new TextMessage(message));
-      }
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
-    }
+  private void sendMessage(WebSocketSession session, OutboundMessage message) {
+    SessionSender.of(session).send(message);
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
-    stop(session.getId());
+    onClosed(session);
+  }
+
+  void onClosed(final WebSocketSession session) {
+    // Queued behind any command still pending for this session
+    dispatch(session, () -> {
+      forwarder.close(session);
+      final UserSession user = users.remove(session.getId());
+      // Within the grace period the user can still resume from a new socket
+      if (user != null && !resumption.suspend(user, session)) {
+        user.getRoom().execute(() -> user.getRoom().removeUser(user));
+      }
+      SessionSender.of(session).close();
+    });
   }
 }
@@ -0,0 +1,303 @@
+package org.kurento.tutorial.player;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+// Micrometer meters of the server, scraped by Prometheus at /actuator/prometheus.
+// Every meter is registered up front, so recording is a lookup in a fixed table
+// plus Timer.record(long): nothing is allocated per message or per KMS call. The
+// counters kept by the components themselves (outbound queues, ICE batching...)
+// are exposed as function meters and read only when scraped.
+public class PlayerMetrics {
+
+  // Every kind of request this server makes to a media server, with the type of
+  // the element it targets
+  public enum KmsOperation {
+    // Pipeline, dispatcher and player of a new room
+    CREATE_ROOM_MEDIA("MediaPipeline"),
+    // WebRtcEndpoint and HubPort of a new viewer
+    CONNECT_VIEWER("WebRtcEndpoint"),
+    PROCESS_OFFER("WebRtcEndpoint"),
+    GATHER_CANDIDATES("WebRtcEndpoint"),
+    ADD_ICE_CANDIDATES("WebRtcEndpoint"),
+    SUBSCRIBE_PLAYER("PlayerEndpoint"),
+    SUBSCRIBE_VIEWER("WebRtcEndpoint"),
+    UNSUBSCRIBE_PLAYER("PlayerEndpoint"),
+    RELEASE_VIEWER("WebRtcEndpoint"),
+    RELEASE_PIPELINE("MediaPipeline"),
+    // Seek/pause/resume
+    PLAYBACK_CONTROL("PlayerEndpoint"),
+    GET_POSITION("PlayerEndpoint"),
+    GET_VIDEO_INFO("PlayerEndpoint"),
+    GET_STATS("WebRtcEndpoint"),
+    GET_PLAYER_STATS("PlayerEndpoint"),
+    SET_BITRATE("WebRtcEndpoint"),
+    GET_TRANSCODING("MediaElement"),
+    SET_SOURCE("DispatcherOneToMany"),
+    // Background work of the pipeline pool and the placement
+    PREPARE_PIPELINE("MediaPipeline"),
+    GET_USED_CPU("ServerManager"),
+    // Liveness check of the rooms' pipelines by the reaper
+    GET_PIPELINES("ServerManager");
+
+    private final String tag = name().toLowerCase().replace('_', '-');
+    private final String elementType;
+
+    KmsOperation(final String elementType) {
+      this.elementType = elementType;
+    }
+
+    public String getElementType() {
+      return elementType;
+    }
+  }
+
+  // Known signaling commands; anything else is recorded as "other" so that a
+  // misbehaving client cannot create new time series
+  private static final String[] COMMANDS = {
+      "start", "stop", "pause", "register", "resume", "inhibit", "uninhibit", "debugDot",
+      "transcodingReport", "doSeek", "showParticipants", "getPosition", "onIceCandidate", "onIceCandidates",
+      "setBitrate", "getStats", "rejoin"
+  };
+
+  private final MeterRegistry registry;
+  private final Map<String, Timer> commandTimers = new HashMap<>();
+  private final Timer otherCommandTimer;
+  private final Timer startTimer;
+  private final Timer joinTimer;
+  private final Timer[] kmsTimers;
+  private final Counter[] kmsErrors;
+
+  public PlayerMetrics(final MeterRegistry registry) {
+    this.registry = registry;
+
+    for (String command : COMMANDS) {
+      commandTimers.put(command, commandTimer(command));
+    }
+    otherCommandTimer = commandTimer("other");
+
+    startTimer = Timer.builder("player.room.setup")
+        .description("From the start/register message to the SDP answer being queued")
+        .tag("kind", "start")
+        .register(registry);
+    joinTimer = Timer.builder("player.room.setup")
+        .description("From the start/register message to the SDP answer being queued")
+        .tag("kind", "join")
+        .register(registry);
+
+    KmsOperation[] operations = KmsOperation.values();
+    kmsTimers = new Timer[operations.length];
+    kmsErrors = new Counter[operations.length];
+    for (KmsOperation op : operations) {
+      kmsTimers[op.ordinal()] = Timer.builder("player.kms.rpc")
+          .description("Round trip of the requests to the media servers")
+          .tag("operation", op.tag)
+          .register(registry);
+      kmsErrors[op.ordinal()] = Counter.builder("player.kms.errors")
+          .tag("operation", op.tag)
+          .register(registry);
+    }
+  }
+
+  private Timer commandTimer(final String command) {
+    return Timer.builder("player.command")
+        .description("Handling time of the signaling commands")
+        .tag("command", command)
+        .register(registry);
+  }
+
+  // Recording
+
+  public void command(final String id, final long startNanos) {
+    Timer timer = commandTimers.get(id);
+    if (timer == null) {
+      timer = otherCommandTimer;
+    }
+    timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void roomStarted(final long receivedNanos) {
+    startTimer.record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void roomJoined(final long receivedNanos) {
+    joinTimer.record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  // Every KMS call goes through here, so this is also where the flight recorder
+  // hears about them
+  public void kms(final KmsOperation op, final long startNanos) {
+    kms(op, startNanos, false);
+  }
+
+  // Also records the time it took to fail
+  public void kmsError(final KmsOperation op, final long startNanos) {
+    kms(op, startNanos, true);
+    kmsErrors[op.ordinal()].increment();
+  }
+
+  private void kms(final KmsOperation op, final long startNanos, final boolean failed) {
+    long elapsed = System.nanoTime() - startNanos;
+    kmsTimers[op.ordinal()].record(elapsed, TimeUnit.NANOSECONDS);
+
+    PlayerEvents.KmsRpc event = new PlayerEvents.KmsRpc();
+    if (event.shouldCommit()) {
+      event.operation = op.tag;
+      event.elementType = op.elementType;
+      event.roundTrip = elapsed;
+      event.failed = failed;
+      event.commit();
+    }
+  }
+
+  // Binding of the state and counters owned by the other components
+
+  public void bindSessions(final Map<String, UserSession> users, final Map<String, StreamingRoom> rooms) {
+    Gauge.builder("player.users.active", users, Map::size).register(registry);
+    Gauge.builder("player.rooms.active", rooms, Map::size).register(registry);
+  }
+
+  public void bindOutbound(final SessionSender.Stats stats) {
+    FunctionCounter.builder("player.outbound.messages", stats, SessionSender.Stats::getQueued)
+        .tag("result", "queued").register(registry);
+    FunctionCounter.builder("player.outbound.messages", stats, SessionSender.Stats::getDropped)
+        .tag("result", "dropped").register(registry);
+    FunctionCounter.builder("player.outbound.messages", stats, SessionSender.Stats::getFailed)
+        .tag("result", "failed").register(registry);
+    FunctionCounter.builder("player.outbound.disconnections", stats, SessionSender.Stats::getDisconnected)
+        .description("Clients disconnected because their outbound queue was full")
+        .register(registry);
+    Gauge.builder("player.outbound.depth", stats, SessionSender.Stats::getDepth).register(registry);
+    FunctionTimer.builder("player.outbound.latency", stats, SessionSender.Stats::getSent,
+        SessionSender.Stats::getTotalSendLatencyNanos, TimeUnit.NANOSECONDS)
+        .description("From enqueued to written on the socket")
+        .register(registry);
+  }
+
+  public void bindIce(final IceCandidateBatcher.Stats stats) {
+    FunctionCounter.builder("player.ice.candidates", stats, IceCandidateBatcher.Stats::getCandidatesSent)
+        .tag("direction", "out").register(registry);
+    FunctionCounter.builder("player.ice.candidates", stats, IceCandidateBatcher.Stats::getCandidatesReceived)
+        .tag("direction", "in").register(registry);
+    FunctionCounter.builder("player.ice.batches", stats, IceCandidateBatcher.Stats::getFramesSent)
+        .tag("direction", "out").register(registry);
+    FunctionCounter.builder("player.ice.batches", stats, IceCandidateBatcher.Stats::getRpcsIssued)
+        .tag("direction", "in").register(registry);
+  }
+
+  public void bindControl(final ControlCoalescer.Stats stats) {
+    FunctionCounter.builder("player.control.commands", stats, ControlCoalescer.Stats::getCommands)
+        .register(registry);
+    FunctionCounter.builder("player.control.batches", stats, ControlCoalescer.Stats::getBatches)
+        .register(registry);
+  }
+
+  public void bindBitrate(final BitrateController.Stats stats) {
+    FunctionCounter.builder("player.bitrate.samples", stats, BitrateController.Stats::getSamples)
+        .register(registry);
+    FunctionCounter.builder("player.bitrate.moves", stats, BitrateController.Stats::getUpgrades)
+        .tag("direction", "up").register(registry);
+    FunctionCounter.builder("player.bitrate.moves", stats, BitrateController.Stats::getDowngrades)
+        .tag("direction", "down").register(registry);
+    FunctionCounter.builder("player.bitrate.changes", stats, BitrateController.Stats::getChangesApplied)
+        .register(registry);
+  }
+
+  public void bindForwarder(final RoomForwarder.Stats stats) {
+    FunctionCounter.builder("player.forward.relays", stats, RoomForwarder.Stats::getRelaysOpened)
+        .tag("result", "opened").register(registry);
+    FunctionCounter.builder("player.forward.relays", stats, RoomForwarder.Stats::getRelayFailures)
+        .tag("result", "failed").register(registry);
+    FunctionCounter.builder("player.forward.frames", stats, RoomForwarder.Stats::getFramesForwarded)
+        .register(registry);
+  }
+
+  public void bindResumption(final SessionResumption.Stats stats) {
+    FunctionCounter.builder("player.sessions.suspended", stats, SessionResumption.Stats::getSuspended)
+        .register(registry);
+    FunctionCounter.builder("player.sessions.resumed", stats, SessionResumption.Stats::getResumed)
+        .register(registry);
+    FunctionCounter.builder("player.sessions.expired", stats, SessionResumption.Stats::getExpired)
+        .register(registry);
+  }
+
+  public void bindRateLimiter(final RateLimiter.Stats stats) {
+    FunctionCounter.builder("player.ratelimit.rejected", stats, RateLimiter.Stats::getFramesRejected)
+        .tag("class", "frame").register(registry);
+    for (final RateLimiter.CommandClass commandClass : RateLimiter.CommandClass.values()) {
+      FunctionCounter.builder("player.ratelimit.rejected", stats, s -> s.getCommandsRejected(commandClass))
+          .tag("class", commandClass.name().toLowerCase()).register(registry);
+    }
+  }
+
+  public void bindAdmission(final AdmissionControl admission) {
+    AdmissionControl.Stats stats = admission.getStats();
+    FunctionCounter.builder("player.admission", stats, AdmissionControl.Stats::getAdmitted)
+        .tag("result", "admitted").register(registry);
+    FunctionCounter.builder("player.admission", stats, AdmissionControl.Stats::getRejectedFull)
+        .tag("result", "full").register(registry);
+    FunctionCounter.builder("player.admission", stats, AdmissionControl.Stats::getRejectedBusy)
+        .tag("result", "busy").register(registry);
+    Gauge.builder("player.admission.setups", admission, AdmissionControl::getSetups).register(registry);
+  }
+
+  public void bindReaper(final RoomReaper.Stats stats) {
+    FunctionCounter.builder("player.reaper.sessions", stats, RoomReaper.Stats::getSessionsReaped)
+        .register(registry);
+    FunctionCounter.builder("player.reaper.rooms", stats, RoomReaper.Stats::getRoomsReaped)
+        .tag("reason", "idle").register(registry);
+    FunctionCounter.builder("player.reaper.rooms", stats, RoomReaper.Stats::getRoomsLost)
+        .tag("reason", "lost").register(registry);
+    FunctionCounter.builder("player.reaper.pipelines", stats, RoomReaper.Stats::getPipelinesReconciled)
+        .register(registry);
+  }
+
+  public void bindStatsSampler(final StatsSampler.Stats stats) {
+    FunctionCounter.builder("player.stats.samples", stats, StatsSampler.Stats::getSamples)
+        .register(registry);
+    FunctionCounter.builder("player.stats.failures", stats, StatsSampler.Stats::getFailures)
+        .register(registry);
+    FunctionCounter.builder("player.stats.skipped", stats, StatsSampler.Stats::getSkipped)
+        .register(registry);
+  }
+
+  public void bindPipelinePool(final PipelinePool.Stats stats) {
+    FunctionCounter.builder("player.pipeline-pool.claims", stats, PipelinePool.Stats::getHits)
+        .tag("result", "hit").register(registry);
+    FunctionCounter.builder("player.pipeline-pool.claims", stats, PipelinePool.Stats::getMisses)
+        .tag("result", "miss").register(registry);
+    FunctionCounter.builder("player.pipeline-pool.refill-failures", stats, PipelinePool.Stats::getRefillFailures)
+        .register(registry);
+    FunctionCounter.builder("player.pipeline-pool.trimmed", stats, PipelinePool.Stats::getTrimmed)
+        .register(registry);
+    FunctionTimer.builder("player.pipeline-pool.refill", stats, PipelinePool.Stats::getRefills,
+        PipelinePool.Stats::getTotalRefillNanos, TimeUnit.NANOSECONDS)
+        .register(registry);
+  }
+
+  public void bindVideoInfoCache(final VideoInfoCache cache) {
+    FunctionCounter.builder("player.video-info.lookups", cache, VideoInfoCache::getHits)
+        .tag("result", "hit").register(registry);
+    FunctionCounter.builder("player.video-info.lookups", cache, VideoInfoCache::getMisses)
+        .tag("result", "miss").register(registry);
+  }
+
+  public void bindMediaNodes(final MediaNodePool pool) {
+    for (MediaNode node : pool.getNodes()) {
+      Gauge.builder("player.kms.pipelines", node, MediaNode::getPipelines)
+          .tag("node", node.getUri()).register(registry);
+      Gauge.builder("player.kms.endpoints", node, MediaNode::getEndpoints)
+          .tag("node", node.getUri()).register(registry);
+      Gauge.builder("player.kms.cpu", node, MediaNode::getUsedCpu)
+          .tag("node", node.getUri()).baseUnit("percent").register(registry);
+    }
+  }
+}
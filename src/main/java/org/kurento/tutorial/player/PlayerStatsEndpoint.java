@@ -0,0 +1,78 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+
+// Actuator view of the StatsSampler series, for operators rather than room admins:
+// /actuator/playerstats lists the rooms with the last sample of every viewer, and
+// /actuator/playerstats/{room} returns the whole series of one room.
+// Like the other actuator endpoints it has to be exposed explicitly
+// (management.endpoints.web.exposure.include), and it must stay on the management
+// port (management.server.port): the room UUIDs it lists let anyone join them.
+@Endpoint(id = "playerstats")
+public class PlayerStatsEndpoint {
+  private final PlayerHandler handler;
+
+  public PlayerStatsEndpoint(final PlayerHandler handler) {
+    this.handler = handler;
+  }
+
+  @ReadOperation
+  public Map<String, Object> rooms() {
+    List<Object> rooms = new ArrayList<>();
+    for (StreamingRoom room : handler.getRooms()) {
+      rooms.add(describe(room, 1));
+    }
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("bytesPerSample", StatsSeries.BYTES_PER_SAMPLE);
+    result.put("rooms", rooms);
+    return result;
+  }
+
+  // Null (404) for an unknown room
+  @ReadOperation
+  public Map<String, Object> room(@Selector final String room) {
+    StreamingRoom r = handler.getRoom(room);
+    return r == null ? null : describe(r, 0);
+  }
+
+  private static Map<String, Object> describe(final StreamingRoom room, final int samples) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("room", room.getUUID());
+    result.put("tiered", room.isTiered());
+    if (room.getPlayerStats() != null) {
+      StatsSeries.Snapshot player = room.getPlayerStats().snapshot(samples);
+      Map<String, Object> series = new LinkedHashMap<>();
+      series.put("time", player.getTime());
+      series.put("latency", player.getLatency());
+      result.put("player", series);
+    }
+
+    List<Object> viewers = new ArrayList<>();
+    for (UserSession user : room.getUserList()) {
+      Map<String, Object> viewer = new LinkedHashMap<>();
+      viewer.put("user", user.getNick());
+      if (user.getBitrate() != null) {
+        viewer.put("level", user.getBitrate().getApplied());
+      }
+      if (user.getStatsSeries() != null) {
+        StatsSeries.Snapshot series = user.getStatsSeries().snapshot(samples);
+        viewer.put("time", series.getTime());
+        viewer.put("bitrate", series.getBitrate());
+        viewer.put("remb", series.getRemb());
+        viewer.put("rtt", series.getRoundTripTime());
+        viewer.put("loss", series.getFractionLost());
+        viewer.put("jitter", series.getJitter());
+      }
+      viewers.add(viewer);
+    }
+    result.put("viewers", viewers);
+    return result;
+  }
+}
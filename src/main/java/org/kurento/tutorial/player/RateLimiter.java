@@ -0,0 +1,198 @@
+package org.kurento.tutorial.player;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.web.socket.WebSocketSession;
+
+// Token buckets per WebSocket session, so that a misbehaving client cannot flood
+// the shared handler path: one bucket for every frame, checked before the frame is
+// even queued for decoding, and one per class of command, checked once decoded.
+// A limit is written "rate/burst": commands per second, and how many can be sent
+// at once after a quiet period. A rate of 0 means no limit.
+public class RateLimiter {
+  private static final String ATTRIBUTE = RateLimiter.class.getName();
+
+  public enum CommandClass {
+    // Joining and leaving rooms
+    SESSION,
+    // Seek/pause/resume and the admin commands
+    CONTROL,
+    // Answered from the server's state, but may cost a KMS call or a large reply
+    QUERY,
+    // Reports that walk the whole pipeline on KMS
+    DEBUG,
+    ICE,
+    OTHER;
+
+    // Null for commands that are never limited: leaving always works
+    public static CommandClass of(final String command) {
+      switch (command) {
+        case "stop":
+          return null;
+        case "start":
+        case "register":
+        case "rejoin":
+          return SESSION;
+        case "pause":
+        case "resume":
+        case "doSeek":
+        case "inhibit":
+        case "uninhibit":
+        case "setBitrate":
+          return CONTROL;
+        case "getPosition":
+        case "showParticipants":
+        case "getStats":
+          return QUERY;
+        case "debugDot":
+        case "transcodingReport":
+          return DEBUG;
+        case "onIceCandidate":
+        case "onIceCandidates":
+          return ICE;
+        default:
+          return OTHER;
+      }
+    }
+  }
+
+  public static class Limit {
+    private final double rate;
+    private final int burst;
+
+    public Limit(final double rate, final int burst) {
+      this.rate = rate;
+      this.burst = Math.max(1, burst);
+    }
+
+    public static Limit parse(final String value) {
+      int slash = value.indexOf('/');
+      if (slash < 0) {
+        double rate = Double.parseDouble(value.trim());
+        return new Limit(rate, (int) Math.ceil(rate));
+      }
+      return new Limit(Double.parseDouble(value.substring(0, slash).trim()),
+          Integer.parseInt(value.substring(slash + 1).trim()));
+    }
+
+    public boolean isUnlimited() {
+      return rate <= 0;
+    }
+
+    @Override
+    public String toString() {
+      return isUnlimited() ? "unlimited" : rate + "/" + burst;
+    }
+  }
+
+  public static class Stats {
+    private final LongAdder framesRejected = new LongAdder();
+    private final Map<CommandClass, LongAdder> commandsRejected = new EnumMap<>(CommandClass.class);
+
+    private Stats() {
+      for (CommandClass commandClass : CommandClass.values()) {
+        commandsRejected.put(commandClass, new LongAdder());
+      }
+    }
+
+    public long getFramesRejected() { return framesRejected.sum(); }
+
+    public long getCommandsRejected(final CommandClass commandClass) {
+      return commandsRejected.get(commandClass).sum();
+    }
+  }
+
+  private static class TokenBucket {
+    private final Limit limit;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    private TokenBucket(final Limit limit) {
+      this.limit = limit;
+      this.tokens = limit.burst;
+    }
+
+    // 0 if a token was taken, otherwise the milliseconds until there is one
+    private synchronized long tryAcquire() {
+      long now = System.nanoTime();
+      tokens = Math.min(limit.burst, tokens + (now - refilledAt) / 1e9 * limit.rate);
+      refilledAt = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - tokens) / limit.rate * 1000));
+    }
+  }
+
+  // The buckets of one session
+  private static class Buckets {
+    private final TokenBucket frames;
+    private final Map<CommandClass, TokenBucket> commands = new EnumMap<>(CommandClass.class);
+
+    private Buckets(final Limit frameLimit, final Map<CommandClass, Limit> limits) {
+      frames = frameLimit.isUnlimited() ? null : new TokenBucket(frameLimit);
+      for (Map.Entry<CommandClass, Limit> entry : limits.entrySet()) {
+        if (!entry.getValue().isUnlimited()) {
+          commands.put(entry.getKey(), new TokenBucket(entry.getValue()));
+        }
+      }
+    }
+  }
+
+  private final Limit frameLimit;
+  private final Map<CommandClass, Limit> limits;
+  private final Stats stats = new Stats();
+
+  public RateLimiter(final Limit frameLimit, final Map<CommandClass, Limit> limits) {
+    this.frameLimit = frameLimit;
+    this.limits = new EnumMap<>(limits);
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public void attach(final WebSocketSession session) {
+    session.getAttributes().put(ATTRIBUTE, new Buckets(frameLimit, limits));
+  }
+
+  // 0 if the frame may go on, otherwise the milliseconds the client should wait;
+  // the caller lets a refused frame through if it turns out to be a 'stop'
+  public long acquireFrame(final WebSocketSession session) {
+    Buckets buckets = (Buckets) session.getAttributes().get(ATTRIBUTE);
+    if (buckets == null || buckets.frames == null) {
+      return 0;
+    }
+    long wait = buckets.frames.tryAcquire();
+    if (wait > 0) {
+      stats.framesRejected.increment();
+    }
+    return wait;
+  }
+
+  // Same for a decoded command
+  public long acquire(final WebSocketSession session, final String command) {
+    Buckets buckets = (Buckets) session.getAttributes().get(ATTRIBUTE);
+    if (buckets == null) {
+      return 0;
+    }
+    CommandClass commandClass = CommandClass.of(command);
+    TokenBucket bucket = commandClass == null ? null : buckets.commands.get(commandClass);
+    if (bucket == null) {
+      return 0;
+    }
+    long wait = bucket.tryAcquire();
+    if (wait > 0) {
+      stats.commandsRejected.get(commandClass).increment();
+    }
+    return wait;
+  }
+
+  @Override
+  public String toString() {
+    return "frames " + frameLimit + ", commands " + limits;
+  }
+}
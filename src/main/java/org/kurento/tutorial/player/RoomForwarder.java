@@ -0,0 +1,149 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.WebSocketClient;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+// Relays the sessions of viewers that joined a room held by another node.
+// The first frame of such a session (its 'join') opens a WebSocket to the owner's
+// signaling endpoint of the same wire format; from then on every frame is passed
+// through untouched in both directions, so the owner sees an ordinary viewer and
+// the client never knows it is not talking to the room's node.
+public class RoomForwarder {
+  private static final Logger log = LoggerFactory.getLogger(RoomForwarder.class);
+
+  private static final String ATTRIBUTE = RoomForwarder.class.getName();
+
+  public static class Stats {
+    private final LongAdder relaysOpened = new LongAdder();
+    private final LongAdder relayFailures = new LongAdder();
+    private final LongAdder framesForwarded = new LongAdder();
+
+    public long getRelaysOpened() { return relaysOpened.sum(); }
+
+    public long getRelayFailures() { return relayFailures.sum(); }
+
+    public long getFramesForwarded() { return framesForwarded.sum(); }
+  }
+
+  private final WebSocketClient client = new StandardWebSocketClient();
+  private final long connectTimeoutMillis;
+  private final Stats stats = new Stats();
+
+  public RoomForwarder(final long connectTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  // Connects the session to the room's owner and hands it the first frame. Returns
+  // false if the owner cannot be reached.
+  public boolean open(final WebSocketSession session, final RoomRegistry.RoomRecord record,
+      final WebSocketMessage<?> first) {
+    String path = SessionSender.of(session).getFormat() == WireFormat.CBOR ? "/player/cbor" : "/player";
+    WebSocketSession upstream;
+    try {
+      upstream = client.doHandshake(new Relay(session), record.getOwnerUrl() + path)
+          .get(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+      upstream.sendMessage(detach(first));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stats.relayFailures.increment();
+      return false;
+    } catch (ExecutionException | TimeoutException | IOException e) {
+      stats.relayFailures.increment();
+      log.warn("Cannot reach node {} of room {}: {}", record.getOwnerNode(), record.getUuid(), e.getMessage());
+      return false;
+    }
+
+    session.getAttributes().put(ATTRIBUTE, upstream);
+    stats.relaysOpened.increment();
+    stats.framesForwarded.increment();
+    log.debug("Session {} relayed to node {} for room {}", session.getId(), record.getOwnerNode(),
+        record.getUuid());
+    return true;
+  }
+
+  // Passes the frame on if the session is relayed; false if it is handled here
+  public boolean forward(final WebSocketSession session, final WebSocketMessage<?> frame) {
+    WebSocketSession upstream = (WebSocketSession) session.getAttributes().get(ATTRIBUTE);
+    if (upstream == null) {
+      return false;
+    }
+
+    try {
+      // Frames of a session are dispatched one at a time, so sends never overlap
+      upstream.sendMessage(detach(frame));
+      stats.framesForwarded.increment();
+    } catch (IOException e) {
+      log.debug("Relay of session {} failed: {}", session.getId(), e.getMessage());
+      closeQuietly(session, CloseStatus.SERVER_ERROR);
+    }
+    return true;
+  }
+
+  // Binary frames are sent from another thread than the one that received them,
+  // after the container may have reused their buffer: they go out as a copy
+  private static WebSocketMessage<?> detach(final WebSocketMessage<?> frame) {
+    if (!(frame instanceof BinaryMessage)) {
+      return frame;
+    }
+    ByteBuffer payload = ((BinaryMessage) frame).getPayload();
+    byte[] bytes = new byte[payload.remaining()];
+    payload.duplicate().get(bytes);
+    return new BinaryMessage(bytes);
+  }
+
+  public void close(final WebSocketSession session) {
+    WebSocketSession upstream = (WebSocketSession) session.getAttributes().remove(ATTRIBUTE);
+    if (upstream != null) {
+      closeQuietly(upstream, CloseStatus.NORMAL);
+    }
+  }
+
+  private static void closeQuietly(final WebSocketSession session, final CloseStatus status) {
+    try {
+      session.close(status);
+    } catch (IOException e) {
+      log.debug("Error closing session {}: {}", session.getId(), e.getMessage());
+    }
+  }
+
+  // Client side of the relay: what the owner sends goes back to the viewer through
+  // its usual outbound queue
+  private class Relay extends AbstractWebSocketHandler {
+    private final WebSocketSession downstream;
+
+    private Relay(final WebSocketSession downstream) {
+      this.downstream = downstream;
+    }
+
+    @Override
+    public void handleMessage(final WebSocketSession upstream, final WebSocketMessage<?> message) {
+      SessionSender.of(downstream).send(OutboundMessage.forwarded(message));
+    }
+
+    @Override
+    public void afterConnectionClosed(final WebSocketSession upstream, final CloseStatus status) {
+      // The owner dropped the viewer (or went away): so does this node
+      if (downstream.getAttributes().remove(ATTRIBUTE, upstream)) {
+        closeQuietly(downstream, CloseStatus.GOING_AWAY);
+      }
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package org.kurento.tutorial.player;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.kurento.commons.exception.KurentoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Last line of defence for the resources that the normal stop/close path missed:
+// sessions whose socket is gone, viewers whose media never connected (or dropped
+// for good), rooms nobody uses anymore, and rooms whose pipeline vanished from
+// their media server (e.g. after a KMS restart). On startup it also releases the
+// pipelines a previous run of the player left behind on the media servers.
+public class RoomReaper {
+  private static final Logger log = LoggerFactory.getLogger(RoomReaper.class);
+
+  public static class Stats {
+    private final LongAdder sessionsReaped = new LongAdder();
+    private final LongAdder roomsReaped = new LongAdder();
+    private final LongAdder roomsLost = new LongAdder();
+    private final LongAdder pipelinesReconciled = new LongAdder();
+
+    public long getSessionsReaped() { return sessionsReaped.sum(); }
+
+    public long getRoomsReaped() { return roomsReaped.sum(); }
+
+    // Rooms whose pipeline was no longer on their media server
+    public long getRoomsLost() { return roomsLost.sum(); }
+
+    // Leftover pipelines released on startup
+    public long getPipelinesReconciled() { return pipelinesReconciled.sum(); }
+  }
+
+  private final MediaNodePool nodes;
+  private final RoomRegistry registry;
+  private final SessionResumption resumption;
+  private final String nodeId;
+  // Other nodes may be using the same media servers: their pools are not ours
+  private final boolean sharedRegistry;
+  private final long sessionSetupNanos;
+  private final long roomIdleNanos;
+  private final PlayerMetrics metrics;
+  private final Stats stats = new Stats();
+
+  public RoomReaper(final MediaNodePool nodes, final RoomRegistry registry, final SessionResumption resumption,
+      final String nodeId, final boolean sharedRegistry, final long sessionSetupMillis, final long roomIdleMillis,
+      final PlayerMetrics metrics) {
+    this.nodes = nodes;
+    this.registry = registry;
+    this.resumption = resumption;
+    this.nodeId = nodeId;
+    this.sharedRegistry = sharedRegistry;
+    this.sessionSetupNanos = TimeUnit.MILLISECONDS.toNanos(sessionSetupMillis);
+    this.roomIdleNanos = TimeUnit.MILLISECONDS.toNanos(roomIdleMillis);
+    this.metrics = metrics;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  // Releases the pipelines of the player that no live room or pool owns. Must run
+  // before the pipeline pool starts filling, as this node owns nothing yet.
+  public void reconcile() {
+    for (MediaNode node : nodes.getNodes()) {
+      int released = 0;
+      try {
+        for (MediaPipeline pipeline : node.getClient().getServerManager().getPipelines()) {
+          if (isOrphan(pipeline.getName())) {
+            pipeline.release();
+            released++;
+          }
+        }
+      } catch (KurentoException e) {
+        log.warn("Could not reconcile the pipelines of {}: {}", node.getUri(), e.getMessage());
+      }
+      if (released > 0) {
+        stats.pipelinesReconciled.add(released);
+        log.info("Released {} leftover pipelines on {}", released, node.getUri());
+      }
+    }
+  }
+
+  private boolean isOrphan(final String name) {
+    if (name == null) {
+      return false;
+    }
+    if (name.equals(PipelinePool.PIPELINE_NAME)) {
+      return !sharedRegistry;
+    }
+    if (!name.startsWith(StreamingRoom.PIPELINE_NAME_PREFIX)) {
+      // Not created by the player
+      return false;
+    }
+
+    String uuid = name.substring(StreamingRoom.PIPELINE_NAME_PREFIX.length());
+    RoomRegistry.RoomRecord record = registry.lookup(uuid);
+    if (record == null) {
+      return true;
+    }
+    if (record.getOwnerNode().equals(nodeId)) {
+      // Left registered by a previous run of this very node
+      registry.unregister(uuid);
+      return true;
+    }
+    return false;
+  }
+
+  public void start(final ScheduledExecutorService scheduler, final long intervalMillis,
+      final ConcurrentMap<String, StreamingRoom> rooms, final ConcurrentMap<String, UserSession> users) {
+    if (intervalMillis <= 0) {
+      return;
+    }
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        reap(rooms, users);
+        checkPipelines(rooms, users);
+      } catch (RuntimeException e) {
+        log.warn("Reaper round failed", e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void reap(final ConcurrentMap<String, StreamingRoom> rooms,
+      final ConcurrentMap<String, UserSession> users) {
+    long now = System.nanoTime();
+
+    for (Map.Entry<String, UserSession> entry : users.entrySet()) {
+      UserSession user = entry.getValue();
+      StreamingRoom room = user.getRoom();
+      if (room == null || room.isReleased()) {
+        if (users.remove(entry.getKey(), user)) {
+          stats.sessionsReaped.increment();
+        }
+        continue;
+      }
+      if (user.getResumeExpiry() != null) {
+        // Suspended: SessionResumption takes care of it
+        continue;
+      }
+
+      String reason = null;
+      if (!user.getWs().isOpen()) {
+        reason = "socket closed";
+      } else if (!user.isMediaConnected() && now - user.getMediaChangedAt() > sessionSetupNanos) {
+        reason = "media not connected";
+      }
+      if (reason != null && users.remove(entry.getKey(), user)) {
+        log.info("Reaping session of {} in room {}: {}", user.getNick(), room.getUUID(), reason);
+        resumption.forget(user);
+        stats.sessionsReaped.increment();
+        room.execute(() -> {
+          try {
+            room.removeUser(user);
+          } catch (RuntimeException e) {
+            log.warn("Could not remove {} from room {}: {}", user.getNick(), room.getUUID(), e.getMessage());
+          }
+        });
+      }
+    }
+
+    for (StreamingRoom room : rooms.values()) {
+      if (room.isReleased()) {
+        if (rooms.remove(room.getUUID(), room)) {
+          registry.unregister(room.getUUID());
+          stats.roomsReaped.increment();
+        }
+        continue;
+      }
+      if (now - room.getLastActivity() > roomIdleNanos && !room.hasConnectedMedia()) {
+        log.info("Reaping room {}: idle", room.getUUID());
+        evict(room, "The room was closed because nobody was using it.", users);
+        stats.roomsReaped.increment();
+      }
+    }
+  }
+
+  // Rooms whose pipeline is gone from their media server cannot recover: their
+  // members are told and the room dropped
+  private void checkPipelines(final ConcurrentMap<String, StreamingRoom> rooms,
+      final ConcurrentMap<String, UserSession> users) {
+    for (final MediaNode node : nodes.getNodes()) {
+      final long start = System.nanoTime();
+      node.getClient().getServerManager().getPipelines(new Continuation<List<MediaPipeline>>() {
+        @Override
+        public void onSuccess(List<MediaPipeline> pipelines) {
+          metrics.kms(PlayerMetrics.KmsOperation.GET_PIPELINES, start);
+          Set<String> ids = new HashSet<>();
+          for (MediaPipeline pipeline : pipelines) {
+            ids.add(pipeline.getId());
+          }
+          for (StreamingRoom room : rooms.values()) {
+            // Only rooms older than the request can be judged by its answer
+            if (room.getNode() == node && !room.isReleased() && room.getCreatedAt() < start
+                && !ids.contains(room.getPipelineId())) {
+              log.warn("Pipeline of room {} is gone from {}", room.getUUID(), node.getUri());
+              evict(room, "The media server of the room was lost.", users);
+              stats.roomsLost.increment();
+            }
+          }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          metrics.kmsError(PlayerMetrics.KmsOperation.GET_PIPELINES, start);
+          log.debug("Could not list the pipelines of {}: {}", node.getUri(), cause.getMessage());
+        }
+      });
+    }
+  }
+
+  private void evict(final StreamingRoom room, final String reason, final ConcurrentMap<String, UserSession> users) {
+    room.execute(() -> {
+      for (UserSession user : room.evict(reason)) {
+        resumption.forget(user);
+        users.remove(user.getWs().getId(), user);
+      }
+    });
+  }
+}
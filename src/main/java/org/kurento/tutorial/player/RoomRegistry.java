@@ -0,0 +1,62 @@
+package org.kurento.tutorial.player;
+
+// Where every room lives, shared by all the signaling nodes of a deployment.
+// The StreamingRoom itself (its members, clock and KMS objects) only exists on the
+// node that created it; the registry lets any other node find that owner, so that
+// a viewer hitting the wrong node can be forwarded to it (see RoomForwarder).
+public interface RoomRegistry {
+
+  // Implementations selectable with player.registry.type
+  enum Type {
+    // Single node: InMemoryRoomRegistry
+    MEMORY,
+    // Nodes sharing a directory: SharedDirectoryRoomRegistry
+    DIRECTORY
+  }
+
+  class RoomRecord {
+    private final String uuid;
+    private final String ownerNode;
+    private final String ownerUrl;
+    private final String kmsUri;
+    private final String pipelineId;
+
+    public RoomRecord(final String uuid, final String ownerNode, final String ownerUrl, final String kmsUri,
+        final String pipelineId) {
+      this.uuid = uuid;
+      this.ownerNode = ownerNode;
+      this.ownerUrl = ownerUrl;
+      this.kmsUri = kmsUri;
+      this.pipelineId = pipelineId;
+    }
+
+    public String getUuid() {
+      return uuid;
+    }
+
+    // player.node.id of the node holding the room
+    public String getOwnerNode() {
+      return ownerNode;
+    }
+
+    // Base URL the other nodes reach its signaling endpoints at, e.g. ws://10.0.0.2:8080
+    public String getOwnerUrl() {
+      return ownerUrl;
+    }
+
+    public String getKmsUri() {
+      return kmsUri;
+    }
+
+    public String getPipelineId() {
+      return pipelineId;
+    }
+  }
+
+  void register(RoomRecord record);
+
+  // Null if no node holds the room
+  RoomRecord lookup(String uuid);
+
+  void unregister(String uuid);
+}
@@ -0,0 +1,77 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Server-wide collaborators and settings handed to every StreamingRoom, so that
+// the room constructor does not grow with each of them.
+public class RoomServices {
+  private final VideoInfoCache videoInfoCache;
+  private final PipelinePool pipelinePool;
+  private final PlayerMetrics metrics;
+  private final BitrateController bitrateController;
+  private final ScheduledExecutorService scheduler;
+  // Runs the rooms' mailboxes, see StreamingRoom.execute
+  private final Executor roomExecutor;
+  private final int roomBatch;
+  private final long controlWindowMillis;
+  private final boolean renditionTiers;
+  private final ControlCoalescer.Stats controlStats = new ControlCoalescer.Stats();
+
+  public RoomServices(final VideoInfoCache videoInfoCache, final PipelinePool pipelinePool,
+      final PlayerMetrics metrics, final BitrateController bitrateController,
+      final ScheduledExecutorService scheduler, final Executor roomExecutor, final int roomBatch,
+      final long controlWindowMillis, final boolean renditionTiers) {
+    this.videoInfoCache = videoInfoCache;
+    this.pipelinePool = pipelinePool;
+    this.metrics = metrics;
+    this.bitrateController = bitrateController;
+    this.scheduler = scheduler;
+    this.roomExecutor = roomExecutor;
+    this.roomBatch = roomBatch;
+    this.controlWindowMillis = controlWindowMillis;
+    this.renditionTiers = renditionTiers;
+  }
+
+  public VideoInfoCache getVideoInfoCache() {
+    return videoInfoCache;
+  }
+
+  public PipelinePool getPipelinePool() {
+    return pipelinePool;
+  }
+
+  public PlayerMetrics getMetrics() {
+    return metrics;
+  }
+
+  // Whether new rooms use rendition tiers unless they ask otherwise
+  public boolean isRenditionTiers() {
+    return renditionTiers;
+  }
+
+  public BitrateController getBitrateController() {
+    return bitrateController;
+  }
+
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  public Executor getRoomExecutor() {
+    return roomExecutor;
+  }
+
+  // Tasks a room runs before letting the other rooms have the thread
+  public int getRoomBatch() {
+    return roomBatch;
+  }
+
+  public long getControlWindowMillis() {
+    return controlWindowMillis;
+  }
+
+  public ControlCoalescer.Stats getControlStats() {
+    return controlStats;
+  }
+}
@@ -0,0 +1,64 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs the submitted tasks one at a time, in submission order, on top of a shared
+// executor. Different SerialExecutors run concurrently with each other.
+public class SerialExecutor implements Executor {
+  private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+  private final Executor executor;
+  // Tasks run in one go before the thread is handed back to the shared executor,
+  // so that a busy queue does not starve the others; 0 drains the whole queue
+  private final int maxBatch;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean running = new AtomicBoolean(false);
+
+  public SerialExecutor(final Executor executor) {
+    this(executor, 0);
+  }
+
+  public SerialExecutor(final Executor executor, final int maxBatch) {
+    this.executor = executor;
+    this.maxBatch = maxBatch;
+  }
+
+  @Override
+  public void execute(final Runnable task) {
+    tasks.add(task);
+    schedule();
+  }
+
+  private void schedule() {
+    if (running.compareAndSet(false, true)) {
+      executor.execute(this::runTasks);
+    }
+  }
+
+  private void runTasks() {
+    try {
+      Runnable task;
+      int ran = 0;
+      while ((maxBatch <= 0 || ran < maxBatch) && (task = tasks.poll()) != null) {
+        ran++;
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          log.error("Unhandled exception in serial task", e);
+        }
+      }
+    } finally {
+      running.set(false);
+      // Either the batch is over, or a task was added after the last poll but
+      // before the flag was cleared
+      if (!tasks.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package org.kurento.tutorial.player;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+// Lets a viewer whose WebSocket drops come back to the same UserSession, with its
+// endpoint, HubPort and room untouched. Every viewer gets a token when it joins;
+// when its socket closes the session is suspended instead of removed, and it is
+// only dropped from its room if no new socket claims the token within the grace
+// period. Tokens are single use: a new one is issued on every rebind.
+public class SessionResumption {
+  private static final Logger log = LoggerFactory.getLogger(SessionResumption.class);
+
+  public static class Stats {
+    private final LongAdder suspended = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public long getSuspended() { return suspended.sum(); }
+
+    public long getResumed() { return resumed.sum(); }
+
+    public long getExpired() { return expired.sum(); }
+  }
+
+  private final long graceMillis;
+  private final ScheduledExecutorService scheduler;
+  private final Consumer<UserSession> onExpired;
+  private final Stats stats = new Stats();
+  // Token -> session, for active and suspended sessions alike
+  private final ConcurrentHashMap<String, UserSession> sessions = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+
+  public SessionResumption(final long graceMillis, final ScheduledExecutorService scheduler,
+      final Consumer<UserSession> onExpired) {
+    this.graceMillis = graceMillis;
+    this.scheduler = scheduler;
+    this.onExpired = onExpired;
+  }
+
+  public boolean isEnabled() {
+    return graceMillis > 0;
+  }
+
+  public long getGraceMillis() {
+    return graceMillis;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  // A fresh token for the user, replacing the previous one; null if disabled
+  public String issue(final UserSession user) {
+    if (!isEnabled()) {
+      return null;
+    }
+
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    synchronized (user) {
+      if (user.getResumeToken() != null) {
+        sessions.remove(user.getResumeToken(), user);
+      }
+      user.setResumeToken(token);
+      sessions.put(token, user);
+    }
+    return token;
+  }
+
+  // The user left for good
+  public void forget(final UserSession user) {
+    synchronized (user) {
+      if (user.getResumeToken() != null) {
+        sessions.remove(user.getResumeToken(), user);
+        user.setResumeToken(null);
+      }
+      cancelExpiry(user);
+    }
+  }
+
+  // Called when the socket of the user closed. Returns false if the user has to be
+  // removed from its room right away (no token, or resumption disabled).
+  public boolean suspend(final UserSession user, final WebSocketSession closed) {
+    synchronized (user) {
+      if (user.getWs() != closed) {
+        // Already rebound to a newer socket
+        return true;
+      }
+      final String token = user.getResumeToken();
+      if (!isEnabled() || token == null) {
+        return false;
+      }
+
+      cancelExpiry(user);
+      user.setResumeExpiry(scheduler.schedule(() -> expire(user, token), graceMillis, TimeUnit.MILLISECONDS));
+    }
+    stats.suspended.increment();
+    log.debug("Session of {} suspended for {} ms", user.getNick(), graceMillis);
+    return true;
+  }
+
+  // The session owning the token, without claiming it
+  public UserSession peek(final String token) {
+    return token == null ? null : sessions.get(token);
+  }
+
+  // Rebinds the session owning the token to the new socket, or returns null if the
+  // token is unknown or expired
+  public UserSession claim(final String token, final WebSocketSession session) {
+    if (token == null) {
+      return null;
+    }
+    UserSession user = sessions.remove(token);
+    if (user == null) {
+      return null;
+    }
+
+    synchronized (user) {
+      cancelExpiry(user);
+      user.setResumeToken(null);
+      user.setWs(session);
+    }
+    stats.resumed.increment();
+    return user;
+  }
+
+  private void expire(final UserSession user, final String token) {
+    // Whoever removes the token first wins: either this or a claim
+    if (!sessions.remove(token, user)) {
+      return;
+    }
+
+    synchronized (user) {
+      user.setResumeToken(null);
+      user.setResumeExpiry(null);
+    }
+    stats.expired.increment();
+    log.debug("Session of {} expired", user.getNick());
+    try {
+      onExpired.accept(user);
+    } catch (RuntimeException e) {
+      log.warn("Could not remove the expired session of {}", user.getNick(), e);
+    }
+  }
+
+  // Must be called while holding the user's monitor
+  private void cancelExpiry(final UserSession user) {
+    ScheduledFuture<?> expiry = user.getResumeExpiry();
+    if (expiry != null) {
+      expiry.cancel(false);
+      user.setResumeExpiry(null);
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+// Bounded outbound queue of a single WebSocket session.
+// Messages are enqueued by whoever wants to talk to the client (handler threads,
+// room broadcasts, KMS event threads) and written by one drain task at a time on
+// the shared executor, so a slow client only ever blocks its own writer.
+public class SessionSender {
+  private static final Logger log = LoggerFactory.getLogger(SessionSender.class);
+  private static final String ATTRIBUTE = SessionSender.class.getName();
+
+  public enum OverflowPolicy {
+    // Drop the oldest queued message to make room for the new one
+    DROP_OLDEST,
+    // Close the connection: the client is not keeping up
+    DISCONNECT
+  }
+
+  private static class Entry {
+    private final WebSocketMessage<?> message;
+    private final boolean droppable;
+    private final long enqueuedAt;
+
+    private Entry(final WebSocketMessage<?> message, final boolean droppable) {
+      this.message = message;
+      this.droppable = droppable;
+      this.enqueuedAt = System.nanoTime();
+    }
+  }
+
+  // Counters shared by all the senders of the server
+  public static class Stats {
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder depth = new LongAdder();
+    private final LongAdder sendLatencyNanos = new LongAdder();
+    private final AtomicLong maxSendLatencyNanos = new AtomicLong();
+
+    public long getQueued() { return queued.sum(); }
+
+    public long getSent() { return sent.sum(); }
+
+    public long getDropped() { return dropped.sum(); }
+
+    public long getFailed() { return failed.sum(); }
+
+    public long getDisconnected() { return disconnected.sum(); }
+
+    // Messages currently waiting in any queue
+    public long getDepth() { return depth.sum(); }
+
+    public long getMaxSendLatencyNanos() { return maxSendLatencyNanos.get(); }
+
+    public long getTotalSendLatencyNanos() { return sendLatencyNanos.sum(); }
+
+    public double getMeanSendLatencyNanos() {
+      long n = sent.sum();
+      return n == 0 ? 0 : (double) sendLatencyNanos.sum() / n;
+    }
+
+    private void recordSent(final long latency) {
+      sent.increment();
+      sendLatencyNanos.add(latency);
+      maxSendLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+  }
+
+  private final WebSocketSession session;
+  private final WireFormat format;
+  private final Executor executor;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final Stats stats;
+
+  private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+  private boolean draining = false;
+  private boolean closed = false;
+
+  public SessionSender(final WebSocketSession session, final WireFormat format, final Executor executor,
+      final int capacity, final OverflowPolicy overflowPolicy, final Stats stats) {
+    this.session = session;
+    this.format = format;
+    this.executor = executor;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.stats = stats;
+  }
+
+  public static SessionSender attach(final WebSocketSession session, final WireFormat format,
+      final Executor executor, final int capacity, final OverflowPolicy overflowPolicy, final Stats stats) {
+    SessionSender sender = new SessionSender(session, format, executor, capacity, overflowPolicy, stats);
+    session.getAttributes().put(ATTRIBUTE, sender);
+    return sender;
+  }
+
+  public static SessionSender of(final WebSocketSession session) {
+    SessionSender sender = (SessionSender) session.getAttributes().get(ATTRIBUTE);
+    if (sender == null) {
+      throw new IllegalStateException("No outbound queue attached to session " + session.getId());
+    }
+    return sender;
+  }
+
+  public WireFormat getFormat() {
+    return format;
+  }
+
+  public void send(final OutboundMessage message) {
+    send(message, false);
+  }
+
+  // Droppable messages (ICE candidates, positions) are superseded by newer ones, so
+  // they are always the first to go when the queue is full.
+  public void send(final OutboundMessage message, final boolean droppable) {
+    send(message.encode(format), droppable);
+  }
+
+  private void send(final WebSocketMessage<?> message, final boolean droppable) {
+    boolean schedule = false;
+    boolean overflow = false;
+
+    PlayerEvents.SessionMonitorWait wait = new PlayerEvents.SessionMonitorWait();
+    wait.begin();
+    synchronized (this) {
+      wait.end();
+      if (wait.shouldCommit()) {
+        wait.session = session.getId();
+        wait.depth = queue.size();
+        wait.commit();
+      }
+
+      if (closed) {
+        return;
+      }
+
+      if (queue.size() >= capacity && !makeRoom(droppable)) {
+        if (droppable) {
+          stats.dropped.increment();
+          return;
+        }
+        // Closed right here, so that only one sender goes on to disconnect
+        overflow = true;
+        closed = true;
+        stats.depth.add(-queue.size());
+        queue.clear();
+      } else {
+        queue.add(new Entry(message, droppable));
+        stats.queued.increment();
+        stats.depth.increment();
+        if (!draining) {
+          draining = true;
+          schedule = true;
+        }
+      }
+    }
+
+    if (overflow) {
+      disconnect();
+    } else if (schedule) {
+      executor.execute(this::drain);
+    }
+  }
+
+  public synchronized int getDepth() {
+    return queue.size();
+  }
+
+  // Stops accepting messages and forgets whatever is still queued
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      stats.depth.add(-queue.size());
+      queue.clear();
+    }
+  }
+
+  // Must be called while holding the monitor
+  private boolean makeRoom(final boolean droppable) {
+    Iterator<Entry> it = queue.iterator();
+    while (it.hasNext()) {
+      if (it.next().droppable) {
+        it.remove();
+        stats.depth.decrement();
+        stats.dropped.increment();
+        return true;
+      }
+    }
+
+    if (droppable || overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+      return false;
+    }
+
+    queue.poll();
+    stats.depth.decrement();
+    stats.dropped.increment();
+    return true;
+  }
+
+  // Runs on whoever overflowed the queue, often a room broadcast: the close frame
+  // is written on the executor, as it may wait behind the drain's stuck write
+  private void disconnect() {
+    log.warn("Outbound queue of session {} is full ({} messages), disconnecting", session.getId(), capacity);
+    stats.disconnected.increment();
+    try {
+      executor.execute(() -> {
+        try {
+          session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException | RuntimeException e) {
+          log.debug("Error closing session {}: {}", session.getId(), e.getMessage());
+        }
+      });
+    } catch (RuntimeException e) {
+      log.debug("Could not schedule the close of session {}: {}", session.getId(), e.getMessage());
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Entry entry;
+      synchronized (this) {
+        entry = queue.poll();
+        if (entry == null) {
+          draining = false;
+          return;
+        }
+        stats.depth.decrement();
+      }
+
+      try {
+        session.sendMessage(entry.message);
+        stats.recordSent(System.nanoTime() - entry.enqueuedAt);
+      } catch (IOException | RuntimeException e) {
+        stats.failed.increment();
+        log.debug("Error sending message to session {}: {}", session.getId(), e.getMessage());
+      }
+    }
+  }
+}
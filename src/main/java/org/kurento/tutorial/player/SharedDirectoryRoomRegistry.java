@@ -0,0 +1,103 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Registry kept in a directory that all the nodes can read and write, one small
+// properties file per room. Files are written to a temporary name and moved into
+// place, so a reader never sees half a record.
+// It is meant for several backend JVMs on one machine (or a shared volume); a
+// deployment across hosts would put the same records in its own shared store
+// behind the RoomRegistry interface.
+public class SharedDirectoryRoomRegistry implements RoomRegistry {
+  private static final Logger log = LoggerFactory.getLogger(SharedDirectoryRoomRegistry.class);
+
+  private final Path directory;
+
+  public SharedDirectoryRoomRegistry(final Path directory) {
+    this.directory = directory;
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot create the room registry at " + directory, e);
+    }
+  }
+
+  @Override
+  public void register(final RoomRecord record) {
+    Properties properties = new Properties();
+    properties.setProperty("uuid", record.getUuid());
+    properties.setProperty("ownerNode", record.getOwnerNode());
+    properties.setProperty("ownerUrl", record.getOwnerUrl());
+    properties.setProperty("kmsUri", record.getKmsUri());
+    properties.setProperty("pipelineId", record.getPipelineId());
+
+    Path file = file(record.getUuid());
+    try {
+      Path tmp = Files.createTempFile(directory, record.getUuid(), ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        properties.store(out, null);
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot register room " + record.getUuid(), e);
+    }
+  }
+
+  @Override
+  public RoomRecord lookup(final String uuid) {
+    Path file = file(uuid);
+    if (file == null) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      log.warn("Cannot read the record of room {}: {}", uuid, e.getMessage());
+      return null;
+    }
+    return new RoomRecord(properties.getProperty("uuid"), properties.getProperty("ownerNode"),
+        properties.getProperty("ownerUrl"), properties.getProperty("kmsUri"),
+        properties.getProperty("pipelineId"));
+  }
+
+  @Override
+  public void unregister(final String uuid) {
+    Path file = file(uuid);
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warn("Cannot unregister room {}: {}", uuid, e.getMessage());
+    }
+  }
+
+  // Room ids come from clients: anything but a UUID must not become a path
+  private Path file(final String uuid) {
+    if (uuid == null) {
+      return null;
+    }
+    try {
+      return directory.resolve(UUID.fromString(uuid) + ".room");
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
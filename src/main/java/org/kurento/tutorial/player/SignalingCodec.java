@@ -0,0 +1,426 @@
+package org.kurento.tutorial.player;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.client.VideoInfo;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+// Reads and writes the JSON signaling protocol, and builds the outbound messages
+// for every wire format.
+// Inbound frames are decoded in a single streaming pass straight into an
+// InboundMessage, without building a JsonObject tree first; outbound messages are
+// written field by field. All the methods are thread-safe.
+public final class SignalingCodec {
+  static final Gson gson = new Gson();
+
+  private SignalingCodec() {
+  }
+
+  public static InboundMessage decode(final String payload) {
+    InboundMessage message = new InboundMessage();
+    try (JsonReader in = new JsonReader(new StringReader(payload))) {
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+          continue;
+        }
+
+        switch (name) {
+          case "id":
+            message.id = in.nextString();
+            break;
+          case "user":
+            message.user = gson.fromJson(in, UserSession.class);
+            break;
+          case "sdpOffer":
+            message.sdpOffer = in.nextString();
+            break;
+          case "videourl":
+            message.videoUrl = in.nextString();
+            break;
+          case "roomid":
+            message.roomId = in.nextString();
+            break;
+          case "room":
+            message.room = in.nextString();
+            break;
+          case "target":
+            message.target = in.nextString();
+            break;
+          case "position":
+            // Accepts both numbers and numeric strings, as sent by the web client
+            message.position = in.nextLong();
+            break;
+          case "candidate":
+            message.candidate = readCandidate(in);
+            break;
+          case "candidates":
+            message.candidates = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+              message.candidates.add(readCandidate(in));
+            }
+            in.endArray();
+            break;
+          case "iceBatching":
+            message.iceBatching = in.nextBoolean();
+            break;
+          case "bitrate":
+            message.bitrate = in.nextString();
+            break;
+          case "tiers":
+            message.tiers = in.nextBoolean();
+            break;
+          case "token":
+            message.token = in.nextString();
+            break;
+          default:
+            in.skipValue();
+            break;
+        }
+      }
+      in.endObject();
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new JsonParseException("Malformed message: " + e.getMessage(), e);
+    }
+
+    if (message.id == null) {
+      throw new JsonParseException("Message without id");
+    }
+    return message;
+  }
+
+  private static IceCandidate readCandidate(final JsonReader in) throws IOException {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        continue;
+      }
+
+      switch (name) {
+        case "candidate":
+          candidate = in.nextString();
+          break;
+        case "sdpMid":
+          sdpMid = in.nextString();
+          break;
+        case "sdpMLineIndex":
+          sdpMLineIndex = in.nextInt();
+          break;
+        default:
+          in.skipValue();
+          break;
+      }
+    }
+    in.endObject();
+
+    if (candidate == null || sdpMid == null) {
+      throw new IllegalStateException("Incomplete ICE candidate");
+    }
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  // Outbound messages
+
+  public static OutboundMessage message(final String id) {
+    return new OutboundMessage(id, out -> { });
+  }
+
+  public static OutboundMessage message(final String id, final String name, final String value) {
+    return new OutboundMessage(id, out -> out.name(name).value(value));
+  }
+
+  public static OutboundMessage message(final String id, final String name, final long value) {
+    return new OutboundMessage(id, out -> out.name(name).value(value));
+  }
+
+  public static OutboundMessage error(final String message) {
+    return message("error", "message", message);
+  }
+
+  public static OutboundMessage user(final String id, final String name, final UserSession user) {
+    return new OutboundMessage(id, out -> out.name(name).user(user));
+  }
+
+  // 'initiator' is whoever sent the command that won, 'initiators' everyone whose
+  // command was coalesced into this one
+  public static OutboundMessage seek(final UserSession initiator, final List<UserSession> initiators,
+      final long newPosition) {
+    return new OutboundMessage("seek", out -> {
+      out.name("newPosition").value(newPosition);
+      out.name("initiator").user(initiator);
+      writeUsers(out, "initiators", initiators);
+    });
+  }
+
+  // 'paused' or 'resumed'
+  public static OutboundMessage playback(final String id, final UserSession initiator,
+      final List<UserSession> initiators) {
+    return new OutboundMessage(id, out -> {
+      out.name("initiator").user(initiator);
+      writeUsers(out, "initiators", initiators);
+    });
+  }
+
+  public static OutboundMessage iceCandidate(final IceCandidate candidate) {
+    return new OutboundMessage("iceCandidate", out -> {
+      out.name("candidate");
+      writeCandidate(out, candidate);
+    });
+  }
+
+  public static OutboundMessage iceCandidates(final List<IceCandidate> candidates) {
+    return new OutboundMessage("iceCandidates", out -> {
+      out.name("candidates").beginArray();
+      for (IceCandidate candidate : candidates) {
+        writeCandidate(out, candidate);
+      }
+      out.endArray();
+    });
+  }
+
+  public static OutboundMessage videoInfo(final VideoInfo videoInfo) {
+    return new OutboundMessage("videoInfo", out -> {
+      out.name("isSeekable").value(videoInfo.getIsSeekable());
+      out.name("initSeekable").value(videoInfo.getSeekableInit());
+      out.name("endSeekable").value(videoInfo.getSeekableEnd());
+      out.name("videoDuration").value(videoInfo.getDuration());
+    });
+  }
+
+  // mode: "auto", "room" or "viewer", i.e. who decided the level
+  public static OutboundMessage bitrate(final BitrateLevel level, final long maxBitrate, final String mode) {
+    return new OutboundMessage("bitrate", out -> {
+      out.name("level").value(level.toWire());
+      out.name("maxBitrate").value(maxBitrate);
+      out.name("mode").value(mode);
+    });
+  }
+
+  public static OutboundMessage transcoding(final TranscodingReport report) {
+    return new OutboundMessage("transcoding", out -> {
+      out.name("mode").value(report.isTiered() ? "tiers" : "viewer");
+      out.name("player").value(report.isPlayerTranscoding());
+      out.name("encoders").value(report.getEncoders());
+      out.name("transcodingViewers").value(report.getTranscodingViewers());
+      out.name("viewers").beginArray();
+      for (TranscodingReport.Viewer viewer : report.getViewers()) {
+        out.beginObject();
+        out.name("user").user(viewer.getUser());
+        if (viewer.getLevel() != null) {
+          out.name("level").value(viewer.getLevel().toWire());
+        }
+        out.name("source").value(viewer.isSourceTranscoding());
+        out.name("endpoint").value(viewer.isEndpointTranscoding());
+        out.endObject();
+      }
+      out.endArray();
+    });
+  }
+
+  // Time series of a room: the player's (when sampled) and one per viewer
+  public static OutboundMessage stats(final String room, final StatsSeries.Snapshot player,
+      final List<UserSession> users, final List<StatsSeries.Snapshot> series) {
+    return new OutboundMessage("stats", out -> {
+      out.name("room").value(room);
+      if (player != null) {
+        out.name("player").beginObject();
+        writeSeries(out, player, true);
+        out.endObject();
+      }
+      out.name("viewers").beginArray();
+      for (int i = 0; i < users.size(); i++) {
+        out.beginObject();
+        out.name("user").user(users.get(i));
+        writeSeries(out, series.get(i), false);
+        out.endObject();
+      }
+      out.endArray();
+    });
+  }
+
+  // Column by column: far smaller than an object per sample. The player only has
+  // a latency, and viewers everything but.
+  private static void writeSeries(final MessageWriter out, final StatsSeries.Snapshot series,
+      final boolean player) throws IOException {
+    out.name("time").beginArray();
+    for (long v : series.getTime()) {
+      out.value(v);
+    }
+    out.endArray();
+    if (player) {
+      writeColumn(out, "latency", series.getLatency());
+      return;
+    }
+    out.name("bitrate").beginArray();
+    for (long v : series.getBitrate()) {
+      out.value(v);
+    }
+    out.endArray();
+    out.name("remb").beginArray();
+    for (long v : series.getRemb()) {
+      out.value(v);
+    }
+    out.endArray();
+    writeColumn(out, "rtt", series.getRoundTripTime());
+    writeColumn(out, "loss", series.getFractionLost());
+    writeColumn(out, "jitter", series.getJitter());
+  }
+
+  private static void writeColumn(final MessageWriter out, final String name, final float[] values)
+      throws IOException {
+    out.name(name).beginArray();
+    for (float v : values) {
+      out.value(v);
+    }
+    out.endArray();
+  }
+
+  // Sent to every viewer that joined: 'rejoin' with this token within graceMillis of
+  // losing the socket gets the same session back
+  public static OutboundMessage resumeToken(final String token, final long graceMillis) {
+    return new OutboundMessage("resumeToken", out -> {
+      out.name("token").value(token);
+      out.name("graceMillis").value(graceMillis);
+    });
+  }
+
+  // A command refused before being processed: 'reason' is "rateLimited", "full" or
+  // "busy", and the command may be sent again after retryAfterMillis. The command is
+  // null when a whole frame was dropped undecoded.
+  public static OutboundMessage rejected(final String command, final String reason, final long retryAfterMillis,
+      final String message) {
+    return new OutboundMessage("rejected", out -> {
+      if (command != null) {
+        out.name("command").value(command);
+      }
+      out.name("reason").value(reason);
+      out.name("retryAfterMillis").value(retryAfterMillis);
+      out.name("message").value(message);
+    });
+  }
+
+  public static OutboundMessage participants(final List<UserSession> users) {
+    return new OutboundMessage("responseParticipants", out -> writeUsers(out, "users", users));
+  }
+
+  private static void writeUsers(final MessageWriter out, final String name, final List<UserSession> users)
+      throws IOException {
+    out.name(name).beginArray();
+    for (UserSession user : users) {
+      out.user(user);
+    }
+    out.endArray();
+  }
+
+  private static void writeCandidate(final MessageWriter out, final IceCandidate candidate) throws IOException {
+    out.beginObject();
+    out.name("candidate").value(candidate.getCandidate());
+    out.name("sdpMid").value(candidate.getSdpMid());
+    out.name("sdpMLineIndex").value(candidate.getSdpMLineIndex());
+    out.endObject();
+  }
+
+  static String toJson(final String id, final OutboundMessage.Body body) {
+    StringWriter buffer = new StringWriter();
+    try (JsonWriter out = new JsonWriter(buffer)) {
+      MessageWriter writer = new JsonMessageWriter(out);
+      writer.beginObject();
+      writer.name("id").value(id);
+      body.write(writer);
+      writer.endObject();
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new UncheckedIOException(e);
+    }
+    return buffer.toString();
+  }
+
+  private static class JsonMessageWriter implements MessageWriter {
+    private final JsonWriter out;
+
+    private JsonMessageWriter(final JsonWriter out) {
+      this.out = out;
+    }
+
+    @Override
+    public MessageWriter beginObject() throws IOException {
+      out.beginObject();
+      return this;
+    }
+
+    @Override
+    public MessageWriter endObject() throws IOException {
+      out.endObject();
+      return this;
+    }
+
+    @Override
+    public MessageWriter beginArray() throws IOException {
+      out.beginArray();
+      return this;
+    }
+
+    @Override
+    public MessageWriter endArray() throws IOException {
+      out.endArray();
+      return this;
+    }
+
+    @Override
+    public MessageWriter name(final String name) throws IOException {
+      out.name(name);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final String value) throws IOException {
+      out.value(value);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final long value) throws IOException {
+      out.value(value);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final boolean value) throws IOException {
+      out.value(value);
+      return this;
+    }
+
+    @Override
+    public MessageWriter value(final float value) throws IOException {
+      // As a Number, so that 0.1f is written as 0.1 and not widened to a double
+      out.value(Float.valueOf(value));
+      return this;
+    }
+
+    @Override
+    public MessageWriter user(final UserSession user) throws IOException {
+      gson.toJson(user, UserSession.class, out);
+      return this;
+    }
+  }
+}
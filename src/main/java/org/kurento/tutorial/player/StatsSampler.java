@@ -0,0 +1,217 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ElementStats;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Single place where the stats of the media elements are read from KMS: every
+// interval, the WebRtcEndpoint of every viewer and the PlayerEndpoint of every room
+// are asked for their video stats, and the answers go to the StatsSeries of each
+// one. The bitrate controller is fed from here as well.
+// The elements are split in batches spread over the interval, and a new request is
+// skipped while too many are still unanswered, so that a large server does not send
+// a burst of RPCs every round nor pile them up on a slow KMS.
+public class StatsSampler {
+  private static final Logger log = LoggerFactory.getLogger(StatsSampler.class);
+
+  public static class Stats {
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public long getRounds() { return rounds.sum(); }
+
+    public long getSamples() { return samples.sum(); }
+
+    public long getFailures() { return failures.sum(); }
+
+    public long getSkipped() { return skipped.sum(); }
+  }
+
+  // A viewer's endpoint, or the room's player when user is null
+  private static class Target {
+    private final StreamingRoom room;
+    private final UserSession user;
+
+    private Target(final StreamingRoom room, final UserSession user) {
+      this.room = room;
+      this.user = user;
+    }
+  }
+
+  private final long intervalMillis;
+  private final int batchSize;
+  private final int maxInFlight;
+  private final int capacity;
+  private final BitrateController bitrateController;
+  private final PlayerMetrics metrics;
+  private final Stats stats = new Stats();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  public StatsSampler(final long intervalMillis, final int batchSize, final int maxInFlight,
+      final int capacity, final BitrateController bitrateController, final PlayerMetrics metrics) {
+    // Checked here, at startup, rather than by every series the sampler creates
+    if (capacity < 1) {
+      throw new IllegalArgumentException("player.stats.capacity must be at least 1, not " + capacity);
+    }
+    this.intervalMillis = intervalMillis;
+    this.batchSize = Math.max(1, batchSize);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.capacity = capacity;
+    this.bitrateController = bitrateController;
+    this.metrics = metrics;
+  }
+
+  public Stats getStats() {
+    return stats;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public void start(final ScheduledExecutorService scheduler,
+      final Supplier<Collection<StreamingRoom>> rooms) {
+    if (intervalMillis <= 0) {
+      return;
+    }
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        round(scheduler, rooms.get());
+      } catch (RuntimeException e) {
+        log.warn("Stats sampling round failed", e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void round(final ScheduledExecutorService scheduler, final Collection<StreamingRoom> rooms) {
+    stats.rounds.increment();
+    List<Target> targets = new ArrayList<>();
+    for (StreamingRoom room : rooms) {
+      if (room.isReleased()) {
+        continue;
+      }
+      if (room.getPlayerStats() == null) {
+        room.setPlayerStats(new StatsSeries(capacity));
+      }
+      targets.add(new Target(room, null));
+      for (UserSession user : room.getUserList()) {
+        if (user.getWebRtcEndpoint() == null) {
+          continue;
+        }
+        if (user.getStatsSeries() == null) {
+          user.setStatsSeries(new StatsSeries(capacity));
+        }
+        targets.add(new Target(room, user));
+      }
+    }
+
+    int batches = (targets.size() + batchSize - 1) / batchSize;
+    long spacing = batches <= 1 ? 0 : intervalMillis / batches;
+    for (int b = 0; b < batches; b++) {
+      final List<Target> batch = targets.subList(b * batchSize, Math.min(targets.size(), (b + 1) * batchSize));
+      if (b == 0) {
+        sample(batch);
+      } else {
+        scheduler.schedule(() -> sample(batch), b * spacing, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void sample(final List<Target> batch) {
+    for (final Target target : batch) {
+      if (target.room.isReleased()) {
+        continue;
+      }
+      if (inFlight.incrementAndGet() > maxInFlight) {
+        inFlight.decrementAndGet();
+        stats.skipped.increment();
+        continue;
+      }
+
+      final MediaElement element = target.user == null ? target.room.getPlayerEndpoint()
+          : target.user.getWebRtcEndpoint();
+      final PlayerMetrics.KmsOperation op = target.user == null ? PlayerMetrics.KmsOperation.GET_PLAYER_STATS
+          : PlayerMetrics.KmsOperation.GET_STATS;
+      final long start = System.nanoTime();
+      try {
+        element.getStats(MediaType.VIDEO, new Continuation<Map<String, org.kurento.client.Stats>>() {
+          @Override
+          public void onSuccess(Map<String, org.kurento.client.Stats> result) {
+            inFlight.decrementAndGet();
+            metrics.kms(op, start);
+            stats.samples.increment();
+            record(target, result);
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            inFlight.decrementAndGet();
+            metrics.kmsError(op, start);
+            stats.failures.increment();
+            log.debug("Could not read the stats of {} in room {}: {}",
+                target.user == null ? "the player" : target.user.getNick(), target.room.getUUID(),
+                cause.getMessage());
+          }
+        });
+      } catch (RuntimeException e) {
+        inFlight.decrementAndGet();
+        metrics.kmsError(op, start);
+        stats.failures.increment();
+        log.debug("Could not ask for the stats of room {}: {}", target.room.getUUID(), e.getMessage());
+      }
+    }
+  }
+
+  private void record(final Target target, final Map<String, org.kurento.client.Stats> result) {
+    long now = System.currentTimeMillis();
+    if (target.user == null) {
+      for (org.kurento.client.Stats s : result.values()) {
+        if (s instanceof ElementStats) {
+          // Reported in nanoseconds
+          float latency = (float) (((ElementStats) s).getInputVideoLatency() / 1_000_000);
+          target.room.getPlayerStats().add(now, -1, 0, 0, 0, 0, latency);
+          return;
+        }
+      }
+      return;
+    }
+
+    RTCOutboundRTPStreamStats out = null;
+    float jitter = 0;
+    for (org.kurento.client.Stats s : result.values()) {
+      if (s instanceof RTCOutboundRTPStreamStats) {
+        out = (RTCOutboundRTPStreamStats) s;
+      } else if (s instanceof RTCInboundRTPStreamStats) {
+        // Only known for what the viewer sends, if anything
+        jitter = (float) ((RTCInboundRTPStreamStats) s).getJitter();
+      }
+    }
+    if (out == null) {
+      return;
+    }
+
+    // Reported as in the RTCP receiver reports, in 1/256 units
+    double loss = out.getFractionLost() / 256;
+    target.user.getStatsSeries().add(now, out.getBytesSent(), out.getRemb(), (float) out.getRoundTripTime(),
+        (float) loss, jitter, 0);
+    bitrateController.onSample(target.room, target.user,
+        new BitratePolicy.LinkSample(out.getRemb(), loss, out.getRoundTripTime()));
+  }
+}
@@ -0,0 +1,149 @@
+package org.kurento.tutorial.player;
+
+// Last N stats samples of one endpoint, kept in parallel primitive arrays used as a
+// ring buffer: recording a sample allocates nothing, and the memory taken is fixed
+// when the series is created, whatever the duration of the session.
+//
+// Each sample takes BYTES_PER_SAMPLE bytes, so with the default capacity of 150
+// (5 minutes at one sample every 2 s) a viewer costs about 6 KB, plus ~16 bytes
+// of header per array and the few scalar fields below.
+public class StatsSeries {
+  // time, bitrate, remb (long) + rtt, loss, jitter, latency (float)
+  public static final int BYTES_PER_SAMPLE = 3 * Long.BYTES + 4 * Float.BYTES;
+
+  // Copy of a series, oldest sample first
+  public static class Snapshot {
+    private final long[] time;
+    private final long[] bitrate;
+    private final long[] remb;
+    private final float[] roundTripTime;
+    private final float[] fractionLost;
+    private final float[] jitter;
+    private final float[] latency;
+
+    private Snapshot(final int size) {
+      time = new long[size];
+      bitrate = new long[size];
+      remb = new long[size];
+      roundTripTime = new float[size];
+      fractionLost = new float[size];
+      jitter = new float[size];
+      latency = new float[size];
+    }
+
+    public int size() {
+      return time.length;
+    }
+
+    // Wall clock time of the sample (ms)
+    public long[] getTime() {
+      return time;
+    }
+
+    // Bits per second sent since the previous sample
+    public long[] getBitrate() {
+      return bitrate;
+    }
+
+    public long[] getRemb() {
+      return remb;
+    }
+
+    // Seconds
+    public float[] getRoundTripTime() {
+      return roundTripTime;
+    }
+
+    // 0..1
+    public float[] getFractionLost() {
+      return fractionLost;
+    }
+
+    public float[] getJitter() {
+      return jitter;
+    }
+
+    // Input latency of the player's media (ms)
+    public float[] getLatency() {
+      return latency;
+    }
+  }
+
+  private final long[] time;
+  private final long[] bitrate;
+  private final long[] remb;
+  private final float[] roundTripTime;
+  private final float[] fractionLost;
+  private final float[] jitter;
+  private final float[] latency;
+  // Slot of the next sample, and number of valid samples
+  private int next;
+  private int size;
+  // To turn the byte counter into a bitrate
+  private long lastBytes = -1;
+  private long lastTime;
+
+  public StatsSeries(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("A stats series needs room for at least one sample");
+    }
+    time = new long[capacity];
+    bitrate = new long[capacity];
+    remb = new long[capacity];
+    roundTripTime = new float[capacity];
+    fractionLost = new float[capacity];
+    jitter = new float[capacity];
+    latency = new float[capacity];
+  }
+
+  public int getCapacity() {
+    return time.length;
+  }
+
+  // bytesSent is the endpoint's cumulative counter, or -1 if it has none
+  public synchronized void add(final long timeMillis, final long bytesSent, final long rembBps,
+      final float rtt, final float loss, final float jitterValue, final float latencyMillis) {
+    long bps = 0;
+    if (bytesSent >= 0) {
+      if (lastBytes >= 0 && bytesSent >= lastBytes && timeMillis > lastTime) {
+        bps = (bytesSent - lastBytes) * 8000 / (timeMillis - lastTime);
+      }
+      lastBytes = bytesSent;
+      lastTime = timeMillis;
+    }
+
+    time[next] = timeMillis;
+    bitrate[next] = bps;
+    remb[next] = rembBps;
+    roundTripTime[next] = rtt;
+    fractionLost[next] = loss;
+    jitter[next] = jitterValue;
+    latency[next] = latencyMillis;
+    next = (next + 1) % time.length;
+    if (size < time.length) {
+      size++;
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  // Only the last 'max' samples (or all of them if max <= 0)
+  public synchronized Snapshot snapshot(final int max) {
+    int n = max > 0 ? Math.min(max, size) : size;
+    Snapshot copy = new Snapshot(n);
+    int first = (next - n + time.length) % time.length;
+    for (int i = 0; i < n; i++) {
+      int slot = (first + i) % time.length;
+      copy.time[i] = time[slot];
+      copy.bitrate[i] = bitrate[slot];
+      copy.remb[i] = remb[slot];
+      copy.roundTripTime[i] = roundTripTime[slot];
+      copy.fractionLost[i] = fractionLost[slot];
+      copy.jitter[i] = jitter[slot];
+      copy.latency[i] = latency[slot];
+    }
+    return copy;
+  }
+}
@@ -1,45 +1,232 @@
 package org.kurento.tutorial.player;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import org.kurento.client.*;
 import org.kurento.commons.exception.KurentoException;
-import org.springframework.web.socket.TextMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
 import java.util.UUID;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class StreamingRoom {
+    private static final Logger log = LoggerFactory.getLogger(StreamingRoom.class);
+    // Name of the pipeline of a room on KMS is this plus the room's UUID, so that
+    // the RoomReaper can tell them apart after a restart
+    public static final String PIPELINE_NAME_PREFIX = "kurento-player/room/";
+
     private transient DispatcherOneToMany roomDispatcher;
     private transient MediaPipeline mediaPipeline;
     private transient PlayerEndpoint playerEndpoint;
+    // One branch per bitrate level off the player, shared by all the viewers of that
+    // level, or null when every viewer has its own HubPort on the dispatcher
+    private transient Map<BitrateLevel, PassThrough> tiers;
 
     private UserSession admin;
-    private List<UserSession> safeList = Collections.synchronizedList(new ArrayList<>());
+    // Both member collections are only written from the room's mailbox (see execute);
+    // they stay concurrent for the readers on other threads: the stats sampler, the
+    // reaper, 'showParticipants', the periodic position broadcast.
+    // Nickname -> member, used for every lookup. A nickname is reserved here as soon
+    // as a user starts joining.
+    private final ConcurrentHashMap<String, UserSession> members = new ConcurrentHashMap<>();
+    // Members that completed the join, iterated by the broadcasts: iterators work on
+    // a snapshot, so they never see a half-applied join or leave.
+    private final List<UserSession> safeList = new CopyOnWriteArrayList<>();
+
+    private final PlaybackClock clock = new PlaybackClock();
+    // Filled by the StatsSampler
+    private volatile StatsSeries playerStats;
+    // Level pinned by an admin for every viewer, null for automatic
+    private volatile BitrateLevel bitrateOverride;
+    private volatile boolean released = false;
+    private volatile Consumer<StreamingRoom> releaseListener;
+    // System.nanoTime of the creation and of the last command from any member
+    private final long createdAt = System.nanoTime();
+    private volatile long lastActivity = createdAt;
+
+    // Room-level subscriptions to the PlayerEndpoint events: one per room, no matter
+    // how many viewers come and go
+    private ListenerSubscription errorSubscription;
+    private ListenerSubscription endOfStreamSubscription;
 
     private final String uuid;
-
-    public StreamingRoom(final KurentoClient kurento, final UserSession userAdmin, final String mediaUri) {
+    // Media server hosting the whole room
+    private final MediaNode node;
+    private final String mediaUri;
+    private final VideoInfoCache videoInfoCache;
+    private final PlayerMetrics metrics;
+    private final BitrateController bitrateController;
+    // Seek/pause/resume requests are applied once per window, see applyControl
+    private final ControlCoalescer control;
+    // Changes to the room, applied one at a time in arrival order
+    private final SerialExecutor mailbox;
+
+    public StreamingRoom(final MediaNode node, final RoomServices services,
+                         final UserSession userAdmin, final String mediaUri, final boolean tiered) {
         uuid = UUID.randomUUID().toString();
+        this.node = node;
+        this.mediaUri = mediaUri;
+        this.videoInfoCache = services.getVideoInfoCache();
+        this.metrics = services.getMetrics();
+        this.bitrateController = services.getBitrateController();
+        this.mailbox = new SerialExecutor(services.getRoomExecutor(), services.getRoomBatch());
+        this.control = new ControlCoalescer(services.getScheduler(), services.getControlWindowMillis(),
+                batch -> execute(() -> applyControl(batch)), services.getControlStats());
         
-        mediaPipeline = kurento.createMediaPipeline();
-        roomDispatcher = new DispatcherOneToMany.Builder(mediaPipeline).build();
-        playerEndpoint = new PlayerEndpoint.Builder(mediaPipeline, mediaUri).build();
-
-        HubPort playerHub = new HubPort.Builder(roomDispatcher).build();
-        playerEndpoint.connect(playerHub);
+        PipelinePool.WarmPipeline warm = services.getPipelinePool().claim(node);
+        HubPort playerHub;
+        try {
+            playerHub = buildMedia(warm, tiered);
+        } catch (KurentoException e) {
+            if (warm == null) {
+                throw e;
+            }
+            // The pre-created pipeline may be gone, e.g. if KMS restarted
+            log.warn("Pre-created pipeline unusable for room {}, building a new one: {}", uuid, e.getMessage());
+            playerHub = buildMedia(null, tiered);
+        }
+        node.pipelineCreated();
+        subscribePlayerEvents();
 
-        playerEndpoint.setMaxOutputBitrate(Integer.MAX_VALUE);
         admin = userAdmin;
-        addUser(userAdmin);
+        if (!addUser(userAdmin)) {
+            release();
+            throw new IllegalStateException("The room could not be created on " + node.getUri());
+        }
+
+        if (roomDispatcher != null) {
+            long start = System.nanoTime();
+            roomDispatcher.setSource(playerHub);
+            metrics.kms(PlayerMetrics.KmsOperation.SET_SOURCE, start);
+        }
+    }
+
+    // Sets up the pipeline, the dispatcher and the player with a single transaction.
+    // With a warm pipeline from the pool only the PlayerEndpoint is left to build.
+    // Tiered rooms have no dispatcher: the player feeds one PassThrough per level,
+    // so KMS encodes once per level (and codec) instead of once per viewer.
+    private HubPort buildMedia(final PipelinePool.WarmPipeline warm, final boolean tiered) {
+        Transaction tx = node.getClient().beginTransaction();
+        HubPort playerHub = null;
+        if (warm != null) {
+            mediaPipeline = warm.getPipeline();
+            mediaPipeline.setName(PIPELINE_NAME_PREFIX + uuid, tx);
+            if (tiered) {
+                warm.getPlayerHub().release(tx);
+                warm.getDispatcher().release(tx);
+            } else {
+                roomDispatcher = warm.getDispatcher();
+                playerHub = warm.getPlayerHub();
+            }
+        } else {
+            mediaPipeline = node.getClient().createMediaPipeline(tx);
+            mediaPipeline.setName(PIPELINE_NAME_PREFIX + uuid, tx);
+            if (!tiered) {
+                roomDispatcher = new DispatcherOneToMany.Builder(mediaPipeline).build(tx);
+                playerHub = new HubPort.Builder(roomDispatcher).build(tx);
+            }
+        }
+
+        playerEndpoint = new PlayerEndpoint.Builder(mediaPipeline, mediaUri).build(tx);
+        playerEndpoint.setMaxOutputBitrate(Integer.MAX_VALUE, tx);
+        if (tiered) {
+            tiers = new EnumMap<>(BitrateLevel.class);
+            for (BitrateLevel level : BitrateLevel.values()) {
+                PassThrough tier = new PassThrough.Builder(mediaPipeline).build(tx);
+                tier.setMaxOutputBitrate((int) bitrateController.getBitrate(level), tx);
+                playerEndpoint.connect(tx, tier);
+                tiers.put(level, tier);
+            }
+        } else {
+            playerEndpoint.connect(tx, playerHub);
+        }
+
+        commit(tx, PlayerMetrics.KmsOperation.CREATE_ROOM_MEDIA);
+        return playerHub;
+    }
+
+    public boolean isTiered() {
+        return tiers != null;
+    }
+
+    // Commits a transaction, timing the round trip
+    private void commit(final Transaction tx, final PlayerMetrics.KmsOperation op) {
+        long start = System.nanoTime();
+        try {
+            tx.commit();
+        } catch (RuntimeException e) {
+            metrics.kmsError(op, start);
+            throw e;
+        }
+        metrics.kms(op, start);
+    }
+
+    private void subscribePlayerEvents() {
+        long start = System.nanoTime();
+        errorSubscription = playerEndpoint.addErrorListener(event -> execute(() -> {
+            log.info("ErrorEvent in room {}: {}", uuid, event.getDescription());
+            sendPlayEnd();
+        }));
+
+        endOfStreamSubscription = playerEndpoint.addEndOfStreamListener(event -> execute(() -> {
+            log.info("EndOfStreamEvent in room {}: {}", uuid, event.getTimestamp());
+            onEndOfStream();
+            sendPlayEnd();
+        }));
+        metrics.kms(PlayerMetrics.KmsOperation.SUBSCRIBE_PLAYER, start);
+    }
+
+    private void unsubscribePlayerEvents() {
+        long start = System.nanoTime();
+        try {
+            if (errorSubscription != null) {
+                playerEndpoint.removeErrorListener(errorSubscription);
+            }
+            if (endOfStreamSubscription != null) {
+                playerEndpoint.removeEndOfStreamListener(endOfStreamSubscription);
+            }
+            metrics.kms(PlayerMetrics.KmsOperation.UNSUBSCRIBE_PLAYER, start);
+        } catch (KurentoException e) {
+            metrics.kmsError(PlayerMetrics.KmsOperation.UNSUBSCRIBE_PLAYER, start);
+            log.debug("Could not unsubscribe from the player of room {}: {}", uuid, e.getMessage());
+        }
+        errorSubscription = null;
+        endOfStreamSubscription = null;
+    }
 
-        roomDispatcher.setSource(playerHub);
+    // Queues a change to the room. Joins, leaves, commands and KMS events all go
+    // through here and run one at a time in the order they were queued, so the
+    // room's state has a single writer and needs no locks; a room under load
+    // works through its backlog in batches (player.room.batch). Exceptions are
+    // logged and do not stop the tasks behind them.
+    public void execute(final Runnable task) {
+        mailbox.execute(task);
+    }
+
+    // Same, but waits for the task and returns its result, for callers that must
+    // not go on before the room has applied the change (e.g. a viewer negotiating
+    // its media once it has joined). Never call it from the mailbox itself.
+    public <T> T call(final Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, mailbox).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
     }
 
     public List<UserSession> getUserList() {
@@ -50,12 +237,43 @@ public class StreamingRoom {
         return this.uuid;
     }
 
-    private UserSession getUserFromUsername(final String username) {
-        for (UserSession us: safeList) {
-            if (us.getNick().equals(username)) return us;
+    public MediaNode getNode() {
+        return node;
+    }
+
+    public String getPipelineId() {
+        return mediaPipeline.getId();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    // Whether anyone is actually receiving the stream
+    public boolean hasConnectedMedia() {
+        for (UserSession user : safeList) {
+            if (user.isMediaConnected()) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        return null;
+    // Told once, after the room's media has been released
+    public void setReleaseListener(final Consumer<StreamingRoom> releaseListener) {
+        this.releaseListener = releaseListener;
+    }
+
+    private UserSession getUserFromUsername(final String username) {
+        return members.get(username);
     }
 
     public void setInhibitUser(final UserSession initiator, final String targetUsername, final Boolean status) {
@@ -78,91 +296,178 @@ public class StreamingRoom {
         notifyUsersInhibited(target, status);
     }
 
-    private void notifyUsersInhibited(final UserSession user, final Boolean inhibited) {
-        for (final UserSession us: safeList) {
-            JsonObject response = new JsonObject();
+    public StatsSeries getPlayerStats() {
+        return playerStats;
+    }
 
-            String operation = "userUninhibited";
-            if (inhibited) {
-                operation = "userInhibited";
-            }
+    public void setPlayerStats(final StatsSeries playerStats) {
+        this.playerStats = playerStats;
+    }
 
-            response.addProperty("id", operation);
+    // Sends the stats series of the room (or of a single viewer) to an admin
+    public void sendStats(final UserSession initiator, final String targetUsername) {
+        if (!initiator.isAdmin()) {
+            sendError(initiator.getWs(), "You're not authorized to see the stats of the room because you're not a room administrator.");
+            return;
+        }
 
-            Gson gson = new Gson();
-            JsonElement who = gson.toJsonTree(user);
+        List<UserSession> targets;
+        if (targetUsername == null) {
+            targets = new ArrayList<>(safeList);
+        } else {
+            UserSession target = getUserFromUsername(targetUsername);
+            if (target == null) {
+                sendError(initiator.getWs(), "The target user does not exist.");
+                return;
+            }
+            targets = Collections.singletonList(target);
+        }
 
-            response.add("user", who);
-            sendMessage(us.getWs(), response.toString());
+        List<UserSession> users = new ArrayList<>();
+        List<StatsSeries.Snapshot> series = new ArrayList<>();
+        for (final UserSession us : targets) {
+            if (us.getStatsSeries() != null) {
+                users.add(us);
+                series.add(us.getStatsSeries().snapshot(0));
+            }
         }
+        StatsSeries player = targetUsername == null ? playerStats : null;
+        sendMessage(initiator.getWs(), SignalingCodec.stats(uuid,
+                player == null ? null : player.snapshot(0), users, series));
     }
 
-    private void notifyUsersNewEntry(final UserSession user) {
-        for (final UserSession us: safeList) {
-            if (us == user) {
-                continue;
+    public BitrateLevel getBitrateOverride() {
+        return bitrateOverride;
+    }
+
+    // Pins (or with null, releases) the bitrate level of a viewer, or of the whole
+    // room when no target is given. Admins can do both, viewers only for themselves.
+    public void setBitrate(final UserSession initiator, final String targetUsername, final BitrateLevel level) {
+        if (targetUsername == null) {
+            if (!initiator.isAdmin()) {
+                sendError(initiator.getWs(), "You're not authorized to change the quality of the room because you're not a room administrator.");
+                return;
             }
-            // Notify other users
-            JsonObject response = new JsonObject();
-            response.addProperty("id", "newUser");
 
-            Gson gson = new Gson();
-            JsonElement who = gson.toJsonTree(user);
+            bitrateOverride = level;
+            for (final UserSession us : safeList) {
+                bitrateController.update(this, us);
+            }
+            return;
+        }
 
-            response.add("user", who);
-            sendMessage(us.getWs(), response.toString());
+        UserSession target = getUserFromUsername(targetUsername);
+        if (target == null || target.getBitrate() == null) {
+            sendError(initiator.getWs(), "The target user does not exist.");
+            return;
+        }
+        if (target != initiator && !initiator.isAdmin()) {
+            sendError(initiator.getWs(), "You can only change your own quality.");
+            return;
         }
+
+        target.getBitrate().setOverride(level);
+        bitrateController.update(this, target);
+    }
+
+    private void notifyUsersInhibited(final UserSession user, final Boolean inhibited) {
+        broadcast(SignalingCodec.user(inhibited ? "userInhibited" : "userUninhibited", "user", user));
+    }
+
+    private void notifyUsersNewEntry(final UserSession user) {
+        broadcast(SignalingCodec.user("newUser", "user", user), user);
     }
 
     private void notifyUsersExit(final UserSession user) {
+        broadcast(SignalingCodec.user("userLeft", "user", user), user);
+    }
+
+    private void meetTheOtherUsers(final UserSession user) {
         for (final UserSession us: safeList) {
             if (us == user) {
                 continue;
             }
-            // Notify other users
-            JsonObject response = new JsonObject();
-            response.addProperty("id", "userLeft");
+            sendMessage(user.getWs(), SignalingCodec.user("newUser", "user", us));
+        }
+    }
 
-            Gson gson = new Gson();
-            JsonElement who = gson.toJsonTree(user);
+    // Sends the same event to every member of the room: the message is serialized
+    // only once per wire format and the resulting frame is shared among all the
+    // recipients.
+    public void broadcast(final OutboundMessage message) {
+        broadcast(message, null);
+    }
 
-            response.add("user", who);
-            sendMessage(us.getWs(), response.toString());
-        }
+    // Same as above, but skips the given user (usually whoever caused the event).
+    public void broadcast(final OutboundMessage message, final UserSession except) {
+        broadcast(message, except, false);
     }
 
-    private void meetTheOtherUsers(final UserSession user) {
+    private void broadcast(final OutboundMessage message, final UserSession except, final boolean droppable) {
+        PlayerEvents.Broadcast event = new PlayerEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
         for (final UserSession us: safeList) {
-            if (us == user) {
+            if (us == except) {
                 continue;
             }
-            JsonObject response = new JsonObject();
-            response.addProperty("id", "newUser");
-            Gson gson = new Gson();
-            JsonElement who = gson.toJsonTree(user);
-
-            response.add("user", who);
-            sendMessage(user.getWs(), response.toString());
+            us.getSender().send(message, droppable);
+            recipients++;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.message = message.getId();
+            event.room = uuid;
+            event.recipients = recipients;
+            event.commit();
         }
     }
-    
+
     public boolean addUser(final UserSession user) {
-        if (getUserFromUsername(user.getNick()) != null) {
+        if (members.putIfAbsent(user.getNick(), user) != null) {
             sendError(user.getWs(), "There's already an user with your name.");
             return false;
         }
 
-        final WebRtcEndpoint webRtcEpUser = new WebRtcEndpoint.Builder(mediaPipeline).build();
-        user.setWebRtcEndpoint(webRtcEpUser);
+        if (!node.reserveEndpoint()) {
+            members.remove(user.getNick(), user);
+            sendError(user.getWs(), "The media server of this room is full.");
+            return false;
+        }
 
-        HubPort hubPort = new HubPort.Builder(roomDispatcher).build();
+        try {
+            connectUser(user);
+        } catch (RuntimeException e) {
+            members.remove(user.getNick(), user);
+            node.releaseEndpoint();
+            throw e;
+        }
+
+        return safeList.add(user);
+    }
+
+    private void connectUser(final UserSession user) {
+        // Everything the new viewer needs goes in a single transaction, so that KMS
+        // receives one request instead of a round trip per call.
+        Transaction tx = mediaPipeline.beginTransaction();
+
+        final WebRtcEndpoint webRtcEpUser = new WebRtcEndpoint.Builder(mediaPipeline).build(tx);
+        HubPort hubPort = null;
+        if (!isTiered()) {
+            hubPort = new HubPort.Builder(roomDispatcher).build(tx);
+        }
+        user.setWebRtcEndpoint(webRtcEpUser);
         user.setHubPort(hubPort);
 
-        webRtcEpUser.setMaxVideoRecvBandwidth(20000000);
-        //webRtcEpUser.setMinVideoRecvBandwidth(300000);
-        hubPort.setMaxOutputBitrate(20000000);
-        //hubPort.setMinOutputBitrate(800000);
-        hubPort.connect(webRtcEpUser);
+        // Starting level, adjusted to the viewer's link by the bitrate controller
+        BitrateController.ViewerBitrate bitrate = bitrateController.createViewer();
+        setViewerLevel(user, bitrate.getApplied(), tx);
+        if (hubPort != null) {
+            hubPort.connect(tx, webRtcEpUser);
+        }
+
+        commit(tx, PlayerMetrics.KmsOperation.CONNECT_VIEWER);
+        user.setBitrate(bitrate);
 
         // Make the users meet
         notifyUsersNewEntry(user);
@@ -170,48 +475,212 @@ public class StreamingRoom {
 
         // Send back the UUID
         sendUUID(user.getWs());
-        
+
         user.setRoom(this);
-        VideoInfo videoInfo = this.playerEndpoint.getVideoInfo();
+        sendVideoInfo(user);
+    }
+
+    // Adds to the transaction what it takes to send the viewer the given level: new
+    // limits on its own HubPort, or a move to another tier in tiered rooms
+    public void setViewerLevel(final UserSession user, final BitrateLevel requested, final Transaction tx) {
+        final BitrateLevel level = requested != null ? requested : levelOf(user, user.getTier());
+        WebRtcEndpoint endpoint = user.getWebRtcEndpoint();
+        if (!isTiered()) {
+            bitrateController.setLimits(user.getHubPort(), endpoint, level, tx);
+            return;
+        }
 
-        JsonObject response1 = new JsonObject();
-        response1.addProperty("id", "videoInfo");
-        response1.addProperty("isSeekable", videoInfo.getIsSeekable());
-        response1.addProperty("initSeekable", videoInfo.getSeekableInit());
-        response1.addProperty("endSeekable", videoInfo.getSeekableEnd());
-        response1.addProperty("videoDuration", videoInfo.getDuration());
-        sendMessage(user.getWs(), response1.toString());
+        BitrateLevel previous = user.getTier();
+        if (previous == level) {
+            return;
+        }
+        if (previous != null) {
+            tiers.get(previous).disconnect(tx, endpoint);
+        }
+        tiers.get(level).connect(tx, endpoint);
+        endpoint.setMaxVideoSendBandwidth((int) (bitrateController.getBitrate(level) / 1000), tx);
+        user.setTier(level);
+    }
 
-        return safeList.add(user);
+    // The level a viewer is meant to be at. The applied level is unknown after a
+    // failed change, so it falls back to the tier the viewer was on, to its
+    // automatic level, and to the starting level of every viewer.
+    private BitrateLevel levelOf(final UserSession user, final BitrateLevel previousTier) {
+        BitrateController.ViewerBitrate bitrate = user.getBitrate();
+        if (bitrate != null && bitrate.getApplied() != null) {
+            return bitrate.getApplied();
+        }
+        if (previousTier != null) {
+            return previousTier;
+        }
+        if (bitrate != null && bitrate.getAuto() != null) {
+            return bitrate.getAuto();
+        }
+        return bitrateController.getInitialLevel();
     }
-    
+
+    // Asks KMS, in one round trip, which of the elements serving the viewers are
+    // transcoding video. Comparing the report of a per-viewer room with the one of
+    // a tiered room playing the same media shows what the tiers save.
+    public TranscodingReport getTranscodingReport() {
+        List<UserSession> viewers = new ArrayList<>(safeList);
+        Transaction tx = mediaPipeline.beginTransaction();
+        TFuture<Boolean> player = playerEndpoint.isMediaTranscoding(tx, MediaType.VIDEO);
+        // A tier is asked once, whatever the number of viewers on it
+        Map<MediaElement, TFuture<Boolean>> sources = new IdentityHashMap<>();
+        List<TFuture<Boolean>> endpoints = new ArrayList<>();
+        List<MediaElement> viewerSources = new ArrayList<>();
+        for (final UserSession us : viewers) {
+            MediaElement source = isTiered() ? tiers.get(us.getTier()) : us.getHubPort();
+            viewerSources.add(source);
+            if (source != null && !sources.containsKey(source)) {
+                sources.put(source, source.isMediaTranscoding(tx, MediaType.VIDEO));
+            }
+            endpoints.add(us.getWebRtcEndpoint().isMediaTranscoding(tx, MediaType.VIDEO));
+        }
+        commit(tx, PlayerMetrics.KmsOperation.GET_TRANSCODING);
+
+        int encoders = 0;
+        for (TFuture<Boolean> source : sources.values()) {
+            if (source.get()) {
+                encoders++;
+            }
+        }
+        List<TranscodingReport.Viewer> entries = new ArrayList<>();
+        for (int i = 0; i < viewers.size(); i++) {
+            UserSession us = viewers.get(i);
+            MediaElement source = viewerSources.get(i);
+            boolean sourceTranscoding = source != null && sources.get(source).get();
+            boolean endpointTranscoding = endpoints.get(i).get();
+            if (endpointTranscoding) {
+                encoders++;
+            }
+            BitrateLevel level = us.getBitrate() == null ? null : us.getBitrate().getApplied();
+            entries.add(new TranscodingReport.Viewer(us, level, sourceTranscoding, endpointTranscoding));
+        }
+
+        TranscodingReport report = new TranscodingReport(isTiered(), player.get(), encoders, entries);
+        log.info("Transcoding in room {} ({}): {} encoders, {} of {} viewers transcoded", uuid,
+                isTiered() ? "tiers" : "per viewer", encoders, report.getTranscodingViewers(), viewers.size());
+        return report;
+    }
+
+    // A viewer came back on a new socket: its media is untouched, but the client may
+    // have missed anything sent in between, so it gets the room's state again
+    public void rebind(final UserSession user) {
+        sendMessage(user.getWs(), SignalingCodec.message("rejoinResponse", "room", uuid));
+        meetTheOtherUsers(user);
+        sendVideoInfo(user);
+        sendMessage(user.getWs(), SignalingCodec.message("position", "position", clock.getPosition()));
+    }
+
+    // Gives a resumed viewer that lost its peer connection a new WebRtcEndpoint on
+    // the same HubPort (or tier), leaving the rest of the room's media alone
+    public void replaceEndpoint(final UserSession user) {
+        WebRtcEndpoint previous = user.getWebRtcEndpoint();
+        BitrateLevel previousTier = user.getTier();
+        Transaction tx = mediaPipeline.beginTransaction();
+        final WebRtcEndpoint webRtcEpUser = new WebRtcEndpoint.Builder(mediaPipeline).build(tx);
+        previous.release(tx);
+        // Candidates still pending for the old endpoint must not reach the new one
+        if (user.getIceBatcher() != null) {
+            user.getIceBatcher().cancel();
+        }
+        user.setWebRtcEndpoint(webRtcEpUser);
+        user.setTier(null);
+        setViewerLevel(user, levelOf(user, previousTier), tx);
+        if (user.getHubPort() != null) {
+            user.getHubPort().connect(tx, webRtcEpUser);
+        }
+
+        try {
+            commit(tx, PlayerMetrics.KmsOperation.CONNECT_VIEWER);
+        } catch (RuntimeException e) {
+            user.setWebRtcEndpoint(previous);
+            user.setTier(previousTier);
+            throw e;
+        }
+    }
+
+    public VideoInfo getVideoInfo() {
+        return videoInfoCache.get(mediaUri, playerEndpoint);
+    }
+
+    // Drops the cached VideoInfo so that the next request asks KMS again
+    public void refreshVideoInfo() {
+        videoInfoCache.invalidate(mediaUri);
+    }
+
+    public void sendVideoInfo(final UserSession user) {
+        sendMessage(user.getWs(), SignalingCodec.videoInfo(getVideoInfo()));
+    }
+
     public Boolean removeUser(final UserSession user) {
-        if (!safeList.contains(user)) {
+        if (!members.remove(user.getNick(), user)) {
             return false;
         }
-        
-        if (!safeList.remove(user)) {
-            return false;
+        safeList.remove(user);
+
+        // Each step may fail on its own (e.g. the element is already gone), but the
+        // viewer leaves the room regardless
+        final HubPort hubPort = user.getHubPort();
+        final WebRtcEndpoint endpoint = user.getWebRtcEndpoint();
+        long start = System.nanoTime();
+        boolean clean = true;
+        if (hubPort != null) {
+            clean &= releaseStep(user, "disconnect the HubPort", () -> hubPort.disconnect(endpoint));
+            clean &= releaseStep(user, "release the HubPort", hubPort::release);
         }
-
-        user.getHubPort().disconnect(user.getWebRtcEndpoint());
-        user.getHubPort().release();
-        user.getWebRtcEndpoint().release();
+        // Releasing the endpoint also drops its connection to a tier
+        clean &= releaseStep(user, "release the WebRtcEndpoint", endpoint::release);
+        if (clean) {
+            metrics.kms(PlayerMetrics.KmsOperation.RELEASE_VIEWER, start);
+        } else {
+            metrics.kmsError(PlayerMetrics.KmsOperation.RELEASE_VIEWER, start);
+        }
+        node.releaseEndpoint();
 
         notifyUsersExit(user);
 
-        if (safeList.isEmpty()) {
-            mediaPipeline.release();
+        if (members.isEmpty()) {
+            release();
         }
 
-        if (!safeList.isEmpty() && this.admin.equals(user)) {
-            int randomIndex = ThreadLocalRandom.current().nextInt(this.safeList.size()) % this.safeList.size();
-            setAdmin(this.safeList.get(randomIndex));
+        if (this.admin.equals(user)) {
+            UserSession[] remaining = this.safeList.toArray(new UserSession[0]);
+            if (remaining.length > 0) {
+                setAdmin(remaining[ThreadLocalRandom.current().nextInt(remaining.length)]);
+            }
         }
         
         return true;
     }
 
+    private boolean releaseStep(final UserSession user, final String step, final Runnable call) {
+        try {
+            call.run();
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Could not {} of {} in room {}: {}", step, user.getNick(), uuid, e.getMessage());
+            return false;
+        }
+    }
+
+    // Closes the room on everyone: members are told why and dropped, and the media
+    // released with a single call on the pipeline rather than one per viewer, which
+    // also works when the pipeline is already gone. Returns the members dropped.
+    public List<UserSession> evict(final String reason) {
+        List<UserSession> evicted = new ArrayList<>(members.values());
+        members.clear();
+        safeList.clear();
+        for (UserSession user : evicted) {
+            sendError(user.getWs(), reason);
+            node.releaseEndpoint();
+        }
+        release();
+        return evicted;
+    }
+
     public void setAdmin(final UserSession newAdmin) {
         this.admin = newAdmin;
         newAdmin.setIsAdmin(true);
@@ -219,37 +688,93 @@ public class StreamingRoom {
     }
 
     private void notifyUsersNewAdmin(final UserSession newAdmin) {
-        for (final UserSession us: safeList) {
-            // Notify other users
-            JsonObject response = new JsonObject();
-            response.addProperty("id", "newAdmin");
+        broadcast(SignalingCodec.user("newAdmin", "user", newAdmin));
+    }
 
-            Gson gson = new Gson();
-            JsonElement who = gson.toJsonTree(newAdmin);
+    public PlayerEndpoint getPlayerEndpoint() {
+        return playerEndpoint;
+    }
 
-            response.add("user", who);
-            sendMessage(us.getWs(), response.toString());
+    public boolean isReleased() {
+        return released;
+    }
+
+    // Drops the event subscriptions and the whole media pipeline of the room
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        unsubscribePlayerEvents();
+        long start = System.nanoTime();
+        try {
+            mediaPipeline.release();
+            metrics.kms(PlayerMetrics.KmsOperation.RELEASE_PIPELINE, start);
+        } catch (KurentoException e) {
+            // The room is gone either way: e.g. KMS restarted and dropped the pipeline
+            metrics.kmsError(PlayerMetrics.KmsOperation.RELEASE_PIPELINE, start);
+            log.warn("Could not release the pipeline of room {}: {}", uuid, e.getMessage());
+        }
+        node.pipelineReleased();
+        if (releaseListener != null) {
+            releaseListener.accept(this);
         }
     }
 
-    public PlayerEndpoint getPlayerEndpoint() {
-        return playerEndpoint;
+    // Current playback position (ms), answered locally from the room's clock
+    public long getPosition() {
+        return clock.getPosition();
     }
-    
-    public void pause(final UserSession initiator) {
-        if (initiator.getInhibited()) {
-            sendError(initiator.getWs(), "You're inhibited. You cannot perform this operation.");
+
+    // Corrects the clock drift with the position reported by KMS. The call is
+    // asynchronous so that a slow room does not hold the scheduler thread.
+    public void syncClock() {
+        if (released) {
             return;
         }
 
-        playerEndpoint.pause();
+        final long epoch = clock.getEpoch();
+        final long start = System.nanoTime();
+        playerEndpoint.getPosition(new Continuation<Long>() {
+            @Override
+            public void onSuccess(Long position) {
+                metrics.kms(PlayerMetrics.KmsOperation.GET_POSITION, start);
+                execute(() -> clock.resync(position, epoch));
+            }
 
-        for (final UserSession us: safeList) {
-            if (us == initiator) {
-                continue;
+            @Override
+            public void onError(Throwable cause) {
+                metrics.kmsError(PlayerMetrics.KmsOperation.GET_POSITION, start);
+                log.debug("Could not sync the clock of room {}: {}", uuid, cause.getMessage());
             }
-            sendPause(us.getWs(), initiator);
+        });
+    }
+
+    // Pushes the current position to every member, so that clients don't need to poll
+    public void broadcastPosition() {
+        if (released || !clock.isPlaying()) {
+            return;
         }
+
+        broadcast(SignalingCodec.message("position", "position", clock.getPosition()), null, true);
+    }
+
+    private void onEndOfStream() {
+        clock.pause();
+        refreshVideoInfo();
+    }
+
+    private void sendPlayEnd() {
+        broadcast(SignalingCodec.message("playEnd"));
+    }
+
+    public void pause(final UserSession initiator) {
+        if (initiator.getInhibited()) {
+            sendError(initiator.getWs(), "You're inhibited. You cannot perform this operation.");
+            return;
+        }
+
+        control.play(initiator, false);
     }
     
     public void resume(final UserSession initiator) {
@@ -258,13 +783,7 @@ public class StreamingRoom {
             return;
         }
 
-        playerEndpoint.play();
-        for (final UserSession us: safeList) {
-            if (us == initiator) {
-                continue;
-            }
-            sendResume(us.getWs(), initiator);
-        }
+        control.play(initiator, true);
     }
 
     public void seek(final UserSession initiator, final long position) {
@@ -273,76 +792,125 @@ public class StreamingRoom {
             return;
         }
 
-        try {
-            playerEndpoint.setPosition(position);
-            for (final UserSession us: safeList) {
-                if (us == initiator) {
-                    continue;
+        control.seek(initiator, position);
+    }
+
+    // Applies what is left of a window of seek/pause/resume requests with a single
+    // KMS transaction, then tells the room about the outcome once.
+    private void applyControl(final ControlCoalescer.Batch batch) {
+        if (released) {
+            return;
+        }
+
+        final Long position = batch.getSeekPosition();
+        final Boolean playing = batch.getPlaying();
+        // A pause and a resume in the same window may cancel each other out
+        final boolean toggle = playing != null && playing != clock.isPlaying();
+
+        if (position == null && !toggle) {
+            if (playing != null) {
+                // Nothing to do on KMS, but the initiators may have updated their UI already
+                OutboundMessage state = SignalingCodec.playback(playing ? "resumed" : "paused",
+                        batch.getPlayWinner(), batch.getPlayInitiators());
+                for (final UserSession initiator : batch.getPlayInitiators()) {
+                    sendMessage(initiator.getWs(), state);
                 }
-                sendSeek(us.getWs(), initiator, position);
             }
-        } catch (KurentoException e) {
-            JsonObject response = new JsonObject();
-            response.addProperty("id", "seek");
-            response.addProperty("message", "Seek failed");
-            sendMessage(initiator.getWs(), response.toString());
+            return;
         }
-    }
 
-    private void sendSeek(final WebSocketSession session, final UserSession initiator, final long newPosition) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "seek");
+        Transaction tx = mediaPipeline.beginTransaction();
+        if (position != null) {
+            playerEndpoint.setPosition(tx, position);
+        }
+        if (toggle) {
+            if (playing) {
+                playerEndpoint.play(tx);
+            } else {
+                playerEndpoint.pause(tx);
+            }
+        }
 
-        Gson gson = new Gson();
-        JsonElement who = gson.toJsonTree(initiator);
+        // The clock moves right away, so that the next window compares against it;
+        // it is put back if the transaction fails
+        final PlaybackClock.Saved before = clock.save();
+        if (position != null) {
+            clock.seek(position);
+        }
+        if (toggle) {
+            if (playing) {
+                clock.play();
+            } else {
+                clock.pause();
+            }
+        }
+        final long changedEpoch = clock.getEpoch();
+
+        final long start = System.nanoTime();
+        tx.commit(new Continuation<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                metrics.kms(PlayerMetrics.KmsOperation.PLAYBACK_CONTROL, start);
+                // Back on the mailbox, so that the outcome is told in order with
+                // the joins and leaves around it
+                execute(() -> {
+                    if (position != null) {
+                        refreshVideoInfo();
+                        sendSeek(batch, position);
+                    }
+                    if (toggle) {
+                        sendPlayback(batch, playing);
+                    }
+                });
+            }
 
-        response.addProperty("newPosition", newPosition);
-        response.add("initiator", who);
-        sendMessage(session, response.toString());
+            @Override
+            public void onError(Throwable cause) {
+                metrics.kmsError(PlayerMetrics.KmsOperation.PLAYBACK_CONTROL, start);
+                log.debug("Playback commands failed in room {}: {}", uuid, cause.getMessage());
+                execute(() -> {
+                    // Otherwise a retry of the same command would look like a no-op
+                    clock.restore(before, changedEpoch);
+                    if (position != null) {
+                        OutboundMessage failed = SignalingCodec.message("seek", "message", "Seek failed");
+                        for (final UserSession initiator : batch.getSeekInitiators()) {
+                            sendMessage(initiator.getWs(), failed);
+                        }
+                    }
+                    if (toggle) {
+                        // The initiators may have updated their UI already
+                        OutboundMessage state = SignalingCodec.playback(playing ? "paused" : "resumed",
+                                batch.getPlayWinner(), batch.getPlayInitiators());
+                        for (final UserSession initiator : batch.getPlayInitiators()) {
+                            sendMessage(initiator.getWs(), state);
+                        }
+                    }
+                });
+            }
+        });
     }
 
-    private void sendPause(WebSocketSession session, final UserSession initiator) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "paused");
-
-        Gson gson = new Gson();
-        JsonElement who = gson.toJsonTree(initiator);
-
-        response.add("initiator", who);
-        sendMessage(session, response.toString());
+    // Whoever sent the winning command already shows its outcome; the others,
+    // including the initiators that were overridden, need to hear about it.
+    private void sendSeek(final ControlCoalescer.Batch batch, final long newPosition) {
+        broadcast(SignalingCodec.seek(batch.getSeekWinner(), batch.getSeekInitiators(), newPosition),
+                batch.getSeekWinner());
     }
 
-    private void sendResume(WebSocketSession session, final UserSession initiator) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "resumed");
-        Gson gson = new Gson();
-        JsonElement who = gson.toJsonTree(initiator);
-
-        response.add("initiator", who);
-        sendMessage(session, response.toString());
+    private void sendPlayback(final ControlCoalescer.Batch batch, final boolean playing) {
+        broadcast(SignalingCodec.playback(playing ? "resumed" : "paused", batch.getPlayWinner(),
+                batch.getPlayInitiators()), batch.getPlayWinner());
     }
 
     private void sendUUID(WebSocketSession session) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "uuid");
-        response.addProperty("uuid", this.getUUID());
-        sendMessage(session, response.toString());
-    }
-
-    private void sendMessage(WebSocketSession session, String message) {
-        synchronized (session) {
-            try {
-                session.sendMessage(new TextMessage(message));
-            } catch (IOException e) {
-                System.out.println("Error in sending message");
-            }
-        }
+        sendMessage(session, SignalingCodec.message("uuid", "uuid", this.getUUID()));
+    }
+
+    private void sendMessage(WebSocketSession session, OutboundMessage message) {
+        SessionSender.of(session).send(message);
     }
 
     private void sendError(WebSocketSession session, String message) {
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "error");
-        response.addProperty("message", message);
-        sendMessage(session, response.toString());
+        sendMessage(session, SignalingCodec.error(message));
     }
 }
@@ -0,0 +1,82 @@
+package org.kurento.tutorial.player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Which elements of a room are transcoding video right now, as asked to KMS.
+// In a per-viewer room every viewer's HubPort is a potential encoder; in a tiered
+// room only the tier branches are, however many viewers they feed.
+public class TranscodingReport {
+
+  public static class Viewer {
+    private final UserSession user;
+    private final BitrateLevel level;
+    private final boolean source;
+    private final boolean endpoint;
+
+    Viewer(final UserSession user, final BitrateLevel level, final boolean source, final boolean endpoint) {
+      this.user = user;
+      this.level = level;
+      this.source = source;
+      this.endpoint = endpoint;
+    }
+
+    public UserSession getUser() {
+      return user;
+    }
+
+    public BitrateLevel getLevel() {
+      return level;
+    }
+
+    // Whether the element feeding the viewer (its HubPort, or its tier) transcodes
+    public boolean isSourceTranscoding() {
+      return source;
+    }
+
+    public boolean isEndpointTranscoding() {
+      return endpoint;
+    }
+  }
+
+  private final boolean tiered;
+  private final boolean player;
+  private final int encoders;
+  private final List<Viewer> viewers = new ArrayList<>();
+
+  TranscodingReport(final boolean tiered, final boolean player, final int encoders,
+      final List<Viewer> viewers) {
+    this.tiered = tiered;
+    this.player = player;
+    this.encoders = encoders;
+    this.viewers.addAll(viewers);
+  }
+
+  public boolean isTiered() {
+    return tiered;
+  }
+
+  public boolean isPlayerTranscoding() {
+    return player;
+  }
+
+  // Distinct elements transcoding on behalf of the viewers (HubPorts, tiers and endpoints)
+  public int getEncoders() {
+    return encoders;
+  }
+
+  public List<Viewer> getViewers() {
+    return Collections.unmodifiableList(viewers);
+  }
+
+  public int getTranscodingViewers() {
+    int n = 0;
+    for (Viewer viewer : viewers) {
+      if (viewer.source || viewer.endpoint) {
+        n++;
+      }
+    }
+    return n;
+  }
+}
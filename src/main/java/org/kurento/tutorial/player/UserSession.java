@@ -1,5 +1,7 @@
 package org.kurento.tutorial.player;
 
+import java.util.concurrent.ScheduledFuture;
+
 import org.kurento.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,8 +11,22 @@ public class UserSession {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
   private transient WebRtcEndpoint webRtcEndpoint;
   private transient StreamingRoom room;
-  private transient WebSocketSession ws;
+  // Replaced when the user resumes its session from a new socket
+  private transient volatile WebSocketSession ws;
   private transient HubPort hubPort;
+  private transient IceCandidateBatcher iceBatcher;
+  private transient BitrateController.ViewerBitrate bitrate;
+  // Tier the viewer is fed from, in rooms with rendition tiers
+  private transient BitrateLevel tier;
+  // Filled by the StatsSampler
+  private transient StatsSeries statsSeries;
+  // See SessionResumption, which guards both with the session's monitor
+  private transient String resumeToken;
+  private transient ScheduledFuture<?> resumeExpiry;
+  // Media state of the endpoint and when it last changed (System.nanoTime), for the
+  // reaper. Set when a socket is bound: users decoded by Gson skip initializers.
+  private transient volatile boolean mediaConnected;
+  private transient volatile long mediaChangedAt;
   private String nickname;
   private Boolean isAdmin = false;
   private Avatar avatar = new Avatar();
@@ -76,7 +92,72 @@ public class UserSession {
   }
 
   public void addCandidate(IceCandidate candidate) {
-    webRtcEndpoint.addIceCandidate(candidate);
+    if (iceBatcher != null) {
+      iceBatcher.candidateReceived(candidate);
+    } else {
+      webRtcEndpoint.addIceCandidate(candidate);
+    }
+  }
+
+  public IceCandidateBatcher getIceBatcher() {
+    return iceBatcher;
+  }
+
+  public void setIceBatcher(IceCandidateBatcher iceBatcher) {
+    this.iceBatcher = iceBatcher;
+  }
+
+  public BitrateController.ViewerBitrate getBitrate() {
+    return bitrate;
+  }
+
+  public void setBitrate(BitrateController.ViewerBitrate bitrate) {
+    this.bitrate = bitrate;
+  }
+
+  public BitrateLevel getTier() {
+    return tier;
+  }
+
+  public void setTier(BitrateLevel tier) {
+    this.tier = tier;
+  }
+
+  public StatsSeries getStatsSeries() {
+    return statsSeries;
+  }
+
+  public void setStatsSeries(StatsSeries statsSeries) {
+    this.statsSeries = statsSeries;
+  }
+
+  public String getResumeToken() {
+    return resumeToken;
+  }
+
+  public void setResumeToken(String resumeToken) {
+    this.resumeToken = resumeToken;
+  }
+
+  public ScheduledFuture<?> getResumeExpiry() {
+    return resumeExpiry;
+  }
+
+  public void setResumeExpiry(ScheduledFuture<?> resumeExpiry) {
+    this.resumeExpiry = resumeExpiry;
+  }
+
+  public boolean isMediaConnected() {
+    return mediaConnected;
+  }
+
+  public long getMediaChangedAt() {
+    return mediaChangedAt;
+  }
+
+  public void setMediaConnected(boolean mediaConnected) {
+    this.mediaConnected = mediaConnected;
+    this.mediaChangedAt = System.nanoTime();
   }
 
   public StreamingRoom getRoom() {
@@ -91,8 +172,14 @@ public class UserSession {
     return ws;
   }
 
+  // Binding a new socket starts the time the viewer is given to connect its media
   public void setWs(WebSocketSession ws) {
     this.ws = ws;
+    this.mediaChangedAt = System.nanoTime();
+  }
+
+  public SessionSender getSender() {
+    return SessionSender.of(ws);
   }
 
   public HubPort getHubPort() {
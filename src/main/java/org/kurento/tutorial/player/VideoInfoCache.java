@@ -0,0 +1,76 @@
+package org.kurento.tutorial.player;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.kurento.client.PlayerEndpoint;
+import org.kurento.client.VideoInfo;
+
+// Process-wide cache of the VideoInfo reported by KMS, keyed by media URI.
+// Duration and seekable range of a file practically never change, so rooms playing
+// the same URI share one entry and only go to KMS when it expires or is invalidated
+// (end of stream, seek).
+public class VideoInfoCache {
+
+  private static class Entry {
+    private final VideoInfo videoInfo;
+    private final long expiresAt;
+
+    private Entry(final VideoInfo videoInfo, final long expiresAt) {
+      this.videoInfo = videoInfo;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final long ttlNanos;
+  private final PlayerMetrics metrics;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public VideoInfoCache(final long ttlMillis, final PlayerMetrics metrics) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.metrics = metrics;
+  }
+
+  public VideoInfo get(final String mediaUri, final PlayerEndpoint playerEndpoint) {
+    long now = System.nanoTime();
+    Entry entry = entries.get(mediaUri);
+    if (entry != null && now - entry.expiresAt < 0) {
+      hits.increment();
+      return entry.videoInfo;
+    }
+
+    // Concurrent misses on the same URI may both query KMS: the answers are the same
+    // and the second one simply overwrites the first.
+    misses.increment();
+    VideoInfo videoInfo;
+    try {
+      videoInfo = playerEndpoint.getVideoInfo();
+    } catch (RuntimeException e) {
+      metrics.kmsError(PlayerMetrics.KmsOperation.GET_VIDEO_INFO, now);
+      throw e;
+    }
+    metrics.kms(PlayerMetrics.KmsOperation.GET_VIDEO_INFO, now);
+    entries.put(mediaUri, new Entry(videoInfo, System.nanoTime() + ttlNanos));
+    return videoInfo;
+  }
+
+  public void invalidate(final String mediaUri) {
+    entries.remove(mediaUri);
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+}
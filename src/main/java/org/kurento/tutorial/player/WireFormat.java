@@ -0,0 +1,9 @@
+package org.kurento.tutorial.player;
+
+// Encoding of the signaling messages of a connection
+public enum WireFormat {
+  // JSON text frames, the original protocol of the web client
+  JSON,
+  // CBOR (RFC 8949) binary frames, with the same message structure as JSON
+  CBOR
+}
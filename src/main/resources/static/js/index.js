@@ -15,7 +15,9 @@
  *
  */
 
-var ws = new WebSocket('ws://' + location.host + '/player');
+var ws;
+// Lets a dropped socket get its session back, see 'rejoin'
+var resumeToken = null;
 var video;
 var webRtcPeer;
 var state = null;
@@ -32,10 +34,34 @@ window.onload = function() {
 }
 
 window.onbeforeunload = function() {
+	resumeToken = null;
+	ws.onclose = null;
 	ws.close();
 }
 
-ws.onmessage = function(message) {
+function connect() {
+	ws = new WebSocket('ws://' + location.host + '/player');
+	ws.onmessage = onMessage;
+	ws.onopen = function() {
+		if (resumeToken) {
+			// The peer connection survived, only the signaling has to be rebound
+			sendMessage({
+				id : 'rejoin',
+				token : resumeToken
+			});
+		}
+	};
+	ws.onclose = function() {
+		if (resumeToken) {
+			console.log('Connection lost, reconnecting ...');
+			setTimeout(connect, 1000);
+		}
+	};
+}
+
+connect();
+
+function onMessage(message) {
 	var parsedMessage = JSON.parse(message.data);
 	console.info('Received message: ' + message.data);
 
@@ -49,6 +75,13 @@ ws.onmessage = function(message) {
 		}
 		onError('Error message from server: ' + parsedMessage.message);
 		break;
+	case 'rejected':
+		if (state == I_AM_STARTING && (parsedMessage.command == 'start' || parsedMessage.command == 'register')) {
+			setState(I_CAN_START);
+		}
+		onError('Request refused (' + parsedMessage.reason + '), retry in '
+				+ parsedMessage.retryAfterMillis + ' ms: ' + parsedMessage.message);
+		break;
 	case 'playEnd':
 		playEnd();
 		break;
@@ -61,12 +94,33 @@ ws.onmessage = function(message) {
 				return console.error('Error adding candidate: ' + error);
 		});
 		break;
+	case 'iceCandidates':
+		parsedMessage.candidates.forEach(function(candidate) {
+			webRtcPeer.addIceCandidate(candidate, function(error) {
+				if (error)
+					return console.error('Error adding candidate: ' + error);
+			});
+		});
+		break;
 	case 'seek':
 		console.log (parsedMessage.message);
 		break;
 	case 'position':
 		document.getElementById("videoPosition").value = parsedMessage.position;
 		break;
+	case 'resumeToken':
+		resumeToken = parsedMessage.token;
+		break;
+	case 'rejoinResponse':
+		if (parsedMessage.error) {
+			resumeToken = null;
+			onError('Could not resume the session: ' + parsedMessage.error);
+		}
+		break;
+	case 'transcoding':
+		console.log('Transcoding report (' + parsedMessage.mode + '): '
+				+ parsedMessage.encoders + ' encoders', parsedMessage.viewers);
+		break;
 	case 'iceCandidate':
 		break;
 	default:
@@ -149,6 +203,7 @@ function onOfferRegister(error, offerSdp) {
 	var message = {
 		id : 'register',
 		sdpOffer : offerSdp,
+		iceBatching : true,
 		roomid : document.getElementById('roomid').value
 	}
 	sendMessage(message);
@@ -161,6 +216,7 @@ function onOffer(error, offerSdp) {
 	var message = {
 		id : 'start',
 		sdpOffer : offerSdp,
+		iceBatching : true,
 		videourl : document.getElementById('videourl').value
 	}
 	sendMessage(message);
@@ -210,6 +266,7 @@ function resume() {
 
 function stop() {
 	console.log('Stopping video ...');
+	resumeToken = null;
 	setState(I_CAN_START);
 	if (webRtcPeer) {
 		webRtcPeer.dispose();
@@ -224,9 +281,9 @@ function stop() {
 }
 
 function debugDot() {
-	console.log('Generate debug DOT file ...');
+	console.log('Requesting the transcoding report ...');
 	sendMessage({
-		id: 'debugDot'
+		id: 'transcodingReport'
 	});
 }
 
@@ -0,0 +1,77 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+
+import com.google.gson.JsonParseException;
+
+// Whatever bytes a client sends, a frame that is not a message must be reported
+// as a JsonParseException, which PlayerHandler answers like a bad JSON frame
+public class CborCodecTest {
+  @Test
+  public void decodesWhatItEncodes() {
+    OutboundMessage sent = new OutboundMessage("doSeek", out -> out.name("position").value(1_834_500L));
+    InboundMessage message = CborCodec.decode(((BinaryMessage) sent.encode(WireFormat.CBOR)).getPayload());
+    assertEquals("doSeek", message.getId());
+    assertEquals(Long.valueOf(1_834_500L), message.getPosition());
+  }
+
+  @Test
+  public void emptyFrame() {
+    assertMalformed();
+  }
+
+  @Test
+  public void truncatedValue() {
+    // {"id": then nothing
+    assertMalformed(0xA1, 0x62, 'i', 'd');
+  }
+
+  @Test
+  public void truncatedString() {
+    // {"id": "stop" with two bytes missing
+    assertMalformed(0xA1, 0x62, 'i', 'd', 0x64, 's', 't');
+  }
+
+  @Test
+  public void unterminatedMap() {
+    // An indefinite-length map without its break
+    assertMalformed(0xBF, 0x62, 'i', 'd', 0x64, 's', 't', 'o', 'p');
+  }
+
+  @Test
+  public void byteStringLongerThanTheFrame() {
+    // {"id": "stop", "x": h'' announcing 200 bytes}
+    assertMalformed(0xA2, 0x62, 'i', 'd', 0x64, 's', 't', 'o', 'p', 0x61, 'x', 0x58, 200, 1, 2);
+  }
+
+  @Test
+  public void lengthOutOfRange() {
+    // {"id": a string whose 64-bit length has the top bit set}
+    assertMalformed(0xA1, 0x62, 'i', 'd', 0x7B, 0x80, 0, 0, 0, 0, 0, 0, 1);
+  }
+
+  @Test
+  public void wrongType() {
+    // ["id"]
+    assertMalformed(0x81, 0x62, 'i', 'd');
+  }
+
+  @Test
+  public void withoutId() {
+    assertMalformed(0xA0);
+  }
+
+  private static void assertMalformed(final int... bytes) {
+    byte[] frame = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      frame[i] = (byte) bytes[i];
+    }
+    assertThrows(JsonParseException.class, () -> CborCodec.decode(ByteBuffer.wrap(frame)));
+  }
+}
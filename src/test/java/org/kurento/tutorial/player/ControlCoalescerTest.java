@@ -0,0 +1,140 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ControlCoalescerTest {
+  private static final int THREADS = 50;
+  private static final int SEEKS_PER_THREAD = 20;
+
+  // Keeps the scheduled flushes until the test runs them, so that the window ends
+  // exactly when the test says
+  private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+    private final List<Runnable> scheduled = new CopyOnWriteArrayList<>();
+
+    private ManualScheduler() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+      scheduled.add(command);
+      return null;
+    }
+
+    private int runScheduled() {
+      List<Runnable> due = new ArrayList<>(scheduled);
+      scheduled.clear();
+      for (Runnable task : due) {
+        task.run();
+      }
+      return due.size();
+    }
+  }
+
+  private final ManualScheduler scheduler = new ManualScheduler();
+  // Every batch is one KMS transaction in StreamingRoom.applyControl
+  private final List<ControlCoalescer.Batch> applied = new CopyOnWriteArrayList<>();
+  private final ControlCoalescer.Stats stats = new ControlCoalescer.Stats();
+  private final ControlCoalescer coalescer = new ControlCoalescer(scheduler, 100, applied::add, stats);
+
+  @AfterEach
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void concurrentSeeksWithinAWindowAreAppliedOnce() throws Exception {
+    List<UserSession> users = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      users.add(new UserSession(null, "user-" + i));
+    }
+
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      final UserSession user = users.get(i);
+      final int base = i * SEEKS_PER_THREAD;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int s = 0; s < SEEKS_PER_THREAD; s++) {
+          coalescer.seek(user, base + s);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Known to be the last one of the window
+    UserSession last = users.get(7);
+    coalescer.seek(last, 123_456);
+
+    assertEquals(1, scheduler.runScheduled(), "flushes scheduled for one window");
+    assertEquals(1, applied.size(), "KMS transactions");
+    ControlCoalescer.Batch batch = applied.get(0);
+    assertEquals(123_456L, (long) batch.getSeekPosition());
+    assertSame(last, batch.getSeekWinner());
+    assertNull(batch.getPlaying());
+    // Everyone is told, the winner last
+    List<UserSession> initiators = batch.getSeekInitiators();
+    assertEquals(THREADS, initiators.size());
+    assertSame(last, initiators.get(initiators.size() - 1));
+    assertEquals(THREADS * SEEKS_PER_THREAD + 1, stats.getCommands());
+    assertEquals(1, stats.getBatches());
+  }
+
+  @Test
+  public void eachWindowIsOneTransaction() {
+    UserSession user = new UserSession(null, "user");
+    for (int window = 0; window < 10; window++) {
+      for (int s = 0; s < 100; s++) {
+        coalescer.seek(user, window * 1000 + s);
+      }
+      scheduler.runScheduled();
+    }
+
+    assertEquals(10, applied.size());
+    for (int window = 0; window < 10; window++) {
+      assertEquals(window * 1000L + 99, (long) applied.get(window).getSeekPosition());
+    }
+  }
+
+  @Test
+  public void pauseAndResumeCollapseIntoTheFinalState() {
+    UserSession first = new UserSession(null, "first");
+    UserSession second = new UserSession(null, "second");
+    coalescer.play(first, false);
+    coalescer.play(second, true);
+    coalescer.play(first, false);
+    coalescer.play(second, true);
+    scheduler.runScheduled();
+
+    assertEquals(1, applied.size());
+    ControlCoalescer.Batch batch = applied.get(0);
+    assertTrue(batch.getPlaying());
+    assertSame(second, batch.getPlayWinner());
+    assertEquals(2, batch.getPlayInitiators().size());
+    assertNull(batch.getSeekPosition());
+  }
+}
@@ -0,0 +1,164 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kurento.tutorial.loadtest.FakeKms;
+import org.kurento.tutorial.loadtest.FakeKmsHandler;
+import org.kurento.tutorial.loadtest.LatencyRecorder;
+import org.kurento.tutorial.loadtest.SimulatedClient;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+// The player against several FakeKms at once: where the placement strategies put
+// new rooms, and what a node at player.kms.max-endpoints refuses. Ties go to the
+// first node of player.kms.uris.
+public class MediaPlacementTest {
+  private static final long TIMEOUT_SECONDS = 30;
+
+  private final List<ConfigurableApplicationContext> servers = new ArrayList<>();
+  private final List<FakeKmsHandler> kms = new ArrayList<>();
+  private final List<SimulatedClient> clients = new ArrayList<>();
+  private final StandardWebSocketClient client = new StandardWebSocketClient();
+  private final LatencyRecorder recorder = new LatencyRecorder();
+  private String url;
+
+  @AfterEach
+  public void stop() {
+    for (SimulatedClient c : clients) {
+      c.disconnect();
+    }
+    // The player first, then its media servers
+    for (int i = servers.size() - 1; i >= 0; i--) {
+      servers.get(i).close();
+    }
+  }
+
+  @Test
+  @Timeout(value = 2, unit = TimeUnit.MINUTES)
+  public void leastPipelinesSpreadsTheRooms() throws Exception {
+    start(3, "LEAST_PIPELINES", 0);
+    String busy = createRoom();
+    join(busy, 3);
+    for (int i = 0; i < 4; i++) {
+      createRoom();
+    }
+
+    // Rooms go round the nodes, whatever the viewers of the first room
+    assertEquals(Arrays.asList(2, 2, 1), count("MediaPipeline"));
+    assertEquals(Arrays.asList(5, 2, 1), count("WebRtcEndpoint"));
+  }
+
+  @Test
+  @Timeout(value = 2, unit = TimeUnit.MINUTES)
+  public void leastEndpointsSpreadsTheViewers() throws Exception {
+    start(3, "LEAST_ENDPOINTS", 0);
+    String busy = createRoom();
+    join(busy, 3);
+    for (int i = 0; i < 4; i++) {
+      createRoom();
+    }
+
+    // New rooms keep off the node of the first room and its viewers
+    assertEquals(Arrays.asList(1, 2, 2), count("MediaPipeline"));
+    assertEquals(Arrays.asList(4, 2, 2), count("WebRtcEndpoint"));
+  }
+
+  @Test
+  @Timeout(value = 2, unit = TimeUnit.MINUTES)
+  public void maxEndpointsRefusesAFullNode() throws Exception {
+    start(2, "LEAST_ENDPOINTS", 2);
+    String first = createRoom();
+    join(first, 1);
+    // The first node is full, the room goes to the second one
+    String second = createRoom();
+    assertEquals(Arrays.asList(1, 1), count("MediaPipeline"));
+    assertEquals(Arrays.asList(2, 1), count("WebRtcEndpoint"));
+
+    assertRefused(register(first), "The media server of this room is full");
+    join(second, 1);
+    assertRefused(startRoom(), "All the media servers are full");
+    assertEquals(Arrays.asList(1, 1), count("MediaPipeline"));
+    assertEquals(Arrays.asList(2, 2), count("WebRtcEndpoint"));
+  }
+
+  private void start(final int nodes, final String placement, final int maxEndpoints) {
+    List<String> uris = new ArrayList<>();
+    for (int i = 0; i < nodes; i++) {
+      ConfigurableApplicationContext server = new SpringApplicationBuilder(FakeKms.class)
+          .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+              "--fakekms.latency-ms=0", "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=-1");
+      servers.add(server);
+      kms.add(server.getBean(FakeKmsHandler.class));
+      uris.add("ws://localhost:" + ((WebServerApplicationContext) server).getWebServer().getPort() + "/kurento");
+    }
+    // No warm pipelines, so that every pipeline on a node is a room
+    ConfigurableApplicationContext player = new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=0", "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=" + String.join(",", uris), "--player.kms.placement=" + placement,
+            "--player.kms.max-endpoints=" + maxEndpoints, "--player.pipeline-pool.size=0");
+    servers.add(player);
+    url = "ws://localhost:" + ((WebServerApplicationContext) player).getWebServer().getPort() + "/player";
+  }
+
+  private SimulatedClient startRoom() throws Exception {
+    SimulatedClient admin = connect("admin-" + clients.size());
+    admin.start(RoomFixture.VIDEO_URL);
+    return admin;
+  }
+
+  private String createRoom() throws Exception {
+    SimulatedClient admin = startRoom();
+    String room = admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    return room;
+  }
+
+  private SimulatedClient register(final String room) throws Exception {
+    SimulatedClient viewer = connect("viewer-" + clients.size());
+    viewer.register(room);
+    return viewer;
+  }
+
+  private void join(final String room, final int viewers) throws Exception {
+    for (int i = 0; i < viewers; i++) {
+      register(room).getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  private SimulatedClient connect(final String nick) throws Exception {
+    SimulatedClient c = new SimulatedClient(nick, recorder);
+    c.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    clients.add(c);
+    return c;
+  }
+
+  private static void assertRefused(final SimulatedClient c, final String reason) throws Exception {
+    try {
+      c.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage().startsWith(reason), e.getCause().getMessage());
+      return;
+    }
+    throw new AssertionError("Expected to be refused: " + reason);
+  }
+
+  private List<Integer> count(final String type) {
+    List<Integer> counts = new ArrayList<>();
+    for (FakeKmsHandler handler : kms) {
+      counts.add(handler.getObjects(type));
+    }
+    return counts;
+  }
+}
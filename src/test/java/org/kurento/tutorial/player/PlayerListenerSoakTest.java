@@ -0,0 +1,110 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kurento.tutorial.loadtest.FakeKms;
+import org.kurento.tutorial.loadtest.FakeKmsHandler;
+import org.kurento.tutorial.loadtest.LatencyRecorder;
+import org.kurento.tutorial.loadtest.SimulatedClient;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+// The whole server against a FakeKms: 10,000 viewers join one room and leave it,
+// a few at a time, and the room's PlayerEndpoint keeps the same two subscriptions
+// (errors and end of stream) throughout
+public class PlayerListenerSoakTest {
+  private static final int JOINS = 10_000;
+  private static final int CONCURRENCY = 8;
+  private static final long TIMEOUT_SECONDS = 30;
+
+  private ConfigurableApplicationContext kms;
+  private ConfigurableApplicationContext player;
+  private FakeKmsHandler kmsHandler;
+  private String url;
+
+  @BeforeEach
+  public void start() {
+    kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+            "--fakekms.latency-ms=0", "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=1");
+    kmsHandler = kms.getBean(FakeKmsHandler.class);
+    int kmsPort = ((WebServerApplicationContext) kms).getWebServer().getPort();
+    // No warm pipelines, so that the objects on KMS only change with the viewers
+    player = new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=0", "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=ws://localhost:" + kmsPort + "/kurento", "--player.pipeline-pool.size=0");
+    url = "ws://localhost:" + ((WebServerApplicationContext) player).getWebServer().getPort() + "/player";
+  }
+
+  @AfterEach
+  public void stop() {
+    player.close();
+    kms.close();
+  }
+
+  @Test
+  @Timeout(value = 15, unit = TimeUnit.MINUTES)
+  public void joinsAndLeavesKeepThePlayerSubscriptionsConstant() throws Exception {
+    final LatencyRecorder recorder = new LatencyRecorder();
+    final StandardWebSocketClient client = new StandardWebSocketClient();
+
+    SimulatedClient admin = new SimulatedClient("admin", recorder);
+    admin.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.start(RoomFixture.VIDEO_URL);
+    final String room = admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertEquals(2, kmsHandler.getSubscriptions("PlayerEndpoint"));
+    final int subscriptions = kmsHandler.getSubscriptions();
+    final int objects = kmsHandler.getObjects();
+
+    // Checked right after every join, while other viewers come and go
+    final List<String> violations = new CopyOnWriteArrayList<>();
+    ExecutorService joiners = Executors.newFixedThreadPool(CONCURRENCY);
+    for (int i = 0; i < JOINS; i++) {
+      final String nick = "viewer-" + i;
+      joiners.execute(() -> {
+        SimulatedClient viewer = new SimulatedClient(nick, recorder);
+        try {
+          viewer.connect(client, url).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          viewer.register(room);
+          viewer.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+          int current = kmsHandler.getSubscriptions("PlayerEndpoint");
+          if (current != 2) {
+            violations.add(nick + " saw " + current + " PlayerEndpoint subscriptions");
+          }
+        } catch (Exception e) {
+          recorder.error(nick + ": " + e.getMessage());
+        } finally {
+          viewer.stop();
+          viewer.disconnect();
+        }
+      });
+    }
+    joiners.shutdown();
+    joiners.awaitTermination(JOINS * TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    assertEquals(0, recorder.getErrors(), recorder.report(1));
+    assertEquals(new CopyOnWriteArrayList<String>(), violations);
+    // The last viewers leave on the room's mailbox, after their 'stop'
+    RoomFixture.await("the viewers to be released", () -> kmsHandler.getObjects() == objects);
+    assertEquals(2, kmsHandler.getSubscriptions("PlayerEndpoint"));
+    assertEquals(subscriptions, kmsHandler.getSubscriptions());
+    StreamingRoom stream = player.getBean(PlayerHandler.class).getRooms().iterator().next();
+    assertEquals(1, stream.getUserList().size());
+
+    admin.stop();
+    admin.disconnect();
+  }
+}
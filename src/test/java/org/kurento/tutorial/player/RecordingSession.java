@@ -0,0 +1,135 @@
+package org.kurento.tutorial.player;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// Client end of a signaling session that just keeps what the server sent it, in
+// the order it was written
+class RecordingSession implements WebSocketSession {
+  private final String id;
+  private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+  private final List<JsonObject> received = new ArrayList<>();
+  private volatile boolean open = true;
+
+  RecordingSession(final String id) {
+    this.id = id;
+  }
+
+  // Copy of the messages received so far
+  synchronized List<JsonObject> getReceived() {
+    return new ArrayList<>(received);
+  }
+
+  synchronized int count(final String messageId) {
+    int count = 0;
+    for (JsonObject message : received) {
+      if (messageId.equals(message.get("id").getAsString())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  synchronized void clear() {
+    received.clear();
+  }
+
+  @Override
+  public synchronized void sendMessage(final WebSocketMessage<?> message) {
+    received.add(JsonParser.parseString(((TextMessage) message).getPayload()).getAsJsonObject());
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public URI getUri() {
+    return null;
+  }
+
+  @Override
+  public HttpHeaders getHandshakeHeaders() {
+    return new HttpHeaders();
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public Principal getPrincipal() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return null;
+  }
+
+  @Override
+  public String getAcceptedProtocol() {
+    return null;
+  }
+
+  @Override
+  public void setTextMessageSizeLimit(final int messageSizeLimit) {
+  }
+
+  @Override
+  public int getTextMessageSizeLimit() {
+    return 0;
+  }
+
+  @Override
+  public void setBinaryMessageSizeLimit(final int messageSizeLimit) {
+  }
+
+  @Override
+  public int getBinaryMessageSizeLimit() {
+    return 0;
+  }
+
+  @Override
+  public List<WebSocketExtension> getExtensions() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+  }
+
+  @Override
+  public void close(final CloseStatus status) {
+    open = false;
+  }
+}
@@ -0,0 +1,100 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.loadtest.FakeKms;
+import org.kurento.tutorial.loadtest.FakeKmsHandler;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+// Real StreamingRooms without a media server: the collaborators of a room wired as
+// PlayerApp does, against a FakeKms started in this JVM that answers right away.
+// Users get a RecordingSession, written to on the thread that sends.
+class RoomFixture implements AutoCloseable {
+  static final String VIDEO_URL = "http://localhost/test.mp4";
+  private static final long TIMEOUT_MILLIS = 30_000;
+
+  private final ConfigurableApplicationContext kms;
+  private final KurentoClient client;
+  private final MediaNode node;
+  private final RoomServices services;
+  private final ExecutorService roomExecutor = Executors.newFixedThreadPool(8);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final SessionSender.Stats senderStats = new SessionSender.Stats();
+
+  RoomFixture(final long controlWindowMillis) {
+    kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+            "--fakekms.latency-ms=0", "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=-1");
+    String uri = "ws://localhost:" + ((WebServerApplicationContext) kms).getWebServer().getPort() + "/kurento";
+    client = KurentoClient.create(uri);
+    node = new MediaNode(uri, client, 0);
+
+    PlayerMetrics metrics = new PlayerMetrics(new SimpleMeterRegistry());
+    MediaNodePool nodes = new MediaNodePool(Collections.singletonList(node),
+        MediaNodePool.PlacementStrategy.LEAST_ENDPOINTS, metrics);
+    BitrateController bitrateController = new BitrateController(
+        new LinkBitratePolicy(3_000_000, 20_000_000, 0.03, 0.10), 800_000, 3_000_000, 20_000_000,
+        BitrateLevel.HIGH, 5, 2, false, metrics);
+    // No warm pipelines: every room builds its own
+    services = new RoomServices(new VideoInfoCache(60_000, metrics), new PipelinePool(nodes, 0, 0, 60_000, metrics),
+        metrics, bitrateController, scheduler, roomExecutor, 16, controlWindowMillis, false);
+  }
+
+  FakeKmsHandler getKms() {
+    return kms.getBean(FakeKmsHandler.class);
+  }
+
+  MediaNode getNode() {
+    return node;
+  }
+
+  UserSession newUser(final String nick) {
+    RecordingSession ws = new RecordingSession(nick);
+    SessionSender.attach(ws, WireFormat.JSON, Runnable::run, 100_000, SessionSender.OverflowPolicy.DISCONNECT,
+        senderStats);
+    UserSession user = new UserSession(ws, nick);
+    user.setWs(ws);
+    return user;
+  }
+
+  // Same as PlayerHandler.createRoom, without the negotiation
+  StreamingRoom newRoom(final UserSession admin) {
+    admin.setIsAdmin(true);
+    return new StreamingRoom(node, services, admin, VIDEO_URL, false);
+  }
+
+  static RecordingSession recording(final UserSession user) {
+    return (RecordingSession) user.getWs();
+  }
+
+  // For what the room does asynchronously, e.g. the outcome of playback commands
+  static void await(final String what, final BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("Timed out waiting for " + what);
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  @Override
+  public void close() {
+    client.destroy();
+    roomExecutor.shutdownNow();
+    scheduler.shutdownNow();
+    kms.close();
+  }
+}
@@ -0,0 +1,144 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Thousands of joins and leaves on one room from many threads at once, while other
+// threads read the member list and broadcast to it
+public class RoomMembershipStressTest {
+  private static final int THREADS = 8;
+  private static final int CYCLES = 250;
+
+  private static RoomFixture fixture;
+
+  @BeforeAll
+  public static void startKms() {
+    fixture = new RoomFixture(100);
+  }
+
+  @AfterAll
+  public static void stopKms() {
+    fixture.close();
+  }
+
+  @Test
+  @Timeout(value = 5, unit = TimeUnit.MINUTES)
+  public void concurrentJoinsAndLeavesKeepTheMembershipConsistent() throws Exception {
+    final UserSession admin = fixture.newUser("admin");
+    final StreamingRoom room = fixture.newRoom(admin);
+    final int objects = fixture.getKms().getObjects();
+    final int endpoints = fixture.getNode().getEndpoints();
+
+    final List<Throwable> errors = new CopyOnWriteArrayList<>();
+    final AtomicBoolean running = new AtomicBoolean(true);
+    // The list is a snapshot: no member twice, never without the admin, and no
+    // ConcurrentModificationException however the room changes meanwhile
+    Thread reader = new Thread(() -> {
+      while (running.get()) {
+        try {
+          Set<String> listed = new HashSet<>();
+          for (UserSession user : room.getUserList()) {
+            if (!listed.add(user.getNick())) {
+              errors.add(new AssertionError("Listed twice: " + user.getNick()));
+            }
+          }
+          if (!listed.contains("admin")) {
+            errors.add(new AssertionError("The admin is missing from " + listed));
+          }
+          room.broadcast(SignalingCodec.message("ping"));
+        } catch (RuntimeException e) {
+          errors.add(e);
+        }
+      }
+    });
+    reader.start();
+
+    // Each thread joins and leaves under a few nicknames of its own, and also races
+    // the others for 'contested-<cycle>', which only one of them may get
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<UserSession> contested = new CopyOnWriteArrayList<>();
+    final List<UserSession> refused = new CopyOnWriteArrayList<>();
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+          for (int c = 0; c < CYCLES; c++) {
+            UserSession user = fixture.newUser("user-" + thread + "-" + (c % 5));
+            if (!room.call(() -> room.addUser(user))) {
+              errors.add(new AssertionError("Could not join: " + user.getNick()));
+              continue;
+            }
+            UserSession rival = fixture.newUser("contested-" + c);
+            if (room.call(() -> room.addUser(rival))) {
+              contested.add(rival);
+            } else {
+              refused.add(rival);
+            }
+            if (!room.call(() -> room.removeUser(user))) {
+              errors.add(new AssertionError("Could not leave: " + user.getNick()));
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+          errors.add(e);
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    running.set(false);
+    reader.join();
+
+    assertEquals(new ArrayList<Throwable>(), errors);
+    assertEquals(CYCLES, contested.size(), "winners of the contested nicknames");
+    assertEquals((THREADS - 1) * CYCLES, refused.size(), "losers of the contested nicknames");
+    for (UserSession loser : refused) {
+      assertEquals(1, RoomFixture.recording(loser).count("error"), loser.getNick());
+      assertEquals(0, RoomFixture.recording(loser).count("ping"), loser.getNick());
+    }
+    Set<String> members = new HashSet<>();
+    for (UserSession user : room.getUserList()) {
+      members.add(user.getNick());
+    }
+    assertEquals(CYCLES + 1, members.size());
+    assertEquals(CYCLES + 1, room.getUserList().size());
+    for (int c = 0; c < CYCLES; c++) {
+      assertTrue(members.contains("contested-" + c), "contested-" + c);
+    }
+
+    for (UserSession user : contested) {
+      assertTrue(room.call(() -> room.removeUser(user)), user.getNick());
+    }
+    assertEquals(1, room.getUserList().size());
+    assertEquals(endpoints, fixture.getNode().getEndpoints(), "endpoints reserved on the node");
+    assertEquals(objects, fixture.getKms().getObjects(), "media objects left on KMS");
+    // The admin heard of every join and of every leave
+    RecordingSession adminWs = RoomFixture.recording(admin);
+    assertEquals(THREADS * CYCLES + CYCLES, adminWs.count("newUser"));
+    assertEquals(THREADS * CYCLES + CYCLES, adminWs.count("userLeft"));
+
+    room.call(() -> room.removeUser(admin));
+    assertTrue(room.isReleased());
+  }
+}
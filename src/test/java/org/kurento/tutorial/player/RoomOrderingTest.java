@@ -0,0 +1,184 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+// A jcstress-style harness for the room mailbox. Every round races two viewers
+// joining and leaving, a seek and a KMS event on a fresh room, then checks what
+// each member was told. The room applies its changes in a single order, so:
+//  - the members that were there all along got the very same sequence;
+//  - everyone else got exactly the part of it between their join and their leave,
+//    after meeting whoever was in the room when they joined.
+// Any other outcome is forbidden. The allowed interleavings seen are counted, as
+// jcstress does, to show that the actors did race, and logged at debug level.
+public class RoomOrderingTest {
+  private static final Logger log = LoggerFactory.getLogger(RoomOrderingTest.class);
+  private static final int ROUNDS = 200;
+
+  private static RoomFixture fixture;
+
+  @BeforeAll
+  public static void startKms() {
+    // Each playback command is applied on its own
+    fixture = new RoomFixture(0);
+  }
+
+  @AfterAll
+  public static void stopKms() {
+    fixture.close();
+  }
+
+  @Test
+  @Timeout(value = 5, unit = TimeUnit.MINUTES)
+  public void everyMemberSeesTheRoomInOneOrder() throws Exception {
+    Map<String, Integer> outcomes = new TreeMap<>();
+    List<String> forbidden = new ArrayList<>();
+    for (int round = 0; round < ROUNDS; round++) {
+      String outcome = round(round, forbidden);
+      outcomes.merge(outcome, 1, Integer::sum);
+    }
+
+    log.debug("Interleavings seen over {} rounds: {}", ROUNDS, outcomes);
+    assertEquals(new ArrayList<String>(), forbidden, "Interleavings seen: " + outcomes);
+  }
+
+  // Returns the order the room applied the racing actions in
+  private String round(final int round, final List<String> forbidden) throws Exception {
+    final UserSession admin = fixture.newUser("admin");
+    final StreamingRoom room = fixture.newRoom(admin);
+    final UserSession first = fixture.newUser("first");
+    final UserSession second = fixture.newUser("second");
+    assertTrue(room.call(() -> room.addUser(first)));
+    assertTrue(room.call(() -> room.addUser(second)));
+    for (UserSession user : Arrays.asList(admin, first, second)) {
+      RoomFixture.recording(user).clear();
+    }
+
+    final UserSession x = fixture.newUser("x");
+    final UserSession y = fixture.newUser("y");
+    final List<Throwable> errors = new CopyOnWriteArrayList<>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> actors = new ArrayList<>();
+    // Viewers joining and leaving, as PlayerHandler does
+    for (final UserSession viewer : Arrays.asList(x, y)) {
+      actors.add(new Thread(() -> {
+        awaitStart(start);
+        try {
+          assertTrue(room.call(() -> room.addUser(viewer)));
+          assertTrue(room.call(() -> room.removeUser(viewer)));
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      }));
+    }
+    // A command of the admin, queued like PlayerHandler.inRoom does
+    actors.add(new Thread(() -> {
+      awaitStart(start);
+      room.execute(() -> room.seek(admin, 1000));
+    }));
+    // Queued like the EndOfStream event of the PlayerEndpoint
+    actors.add(new Thread(() -> {
+      awaitStart(start);
+      room.execute(() -> room.broadcast(SignalingCodec.message("playEnd")));
+    }));
+    for (Thread actor : actors) {
+      actor.start();
+    }
+    start.countDown();
+    for (Thread actor : actors) {
+      actor.join();
+    }
+    assertEquals(new ArrayList<Throwable>(), errors);
+
+    // The seek is told once its transaction is done
+    RecordingSession reference = RoomFixture.recording(first);
+    RoomFixture.await("the seek", () -> reference.count("seek") == 1);
+    room.call(() -> null);
+
+    // The order the room applied things in, as seen by a member that was there all along
+    List<String> order = describe(reference.getReceived());
+    String prefix = "round " + round + ": ";
+    List<String> sorted = new ArrayList<>(order);
+    Collections.sort(sorted);
+    if (!sorted.equals(Arrays.asList("newUser x", "newUser y", "playEnd", "seek", "userLeft x", "userLeft y"))) {
+      forbidden.add(prefix + "first got " + order);
+    } else {
+      check(forbidden, prefix + "second", order, describe(RoomFixture.recording(second).getReceived()));
+      List<String> withoutSeek = new ArrayList<>(order);
+      // The admin won the seek, so it is not told about it
+      withoutSeek.remove("seek");
+      check(forbidden, prefix + "admin", withoutSeek, describe(RoomFixture.recording(admin).getReceived()));
+      check(forbidden, prefix + "x", expectedFor("x", "y", order), describe(RoomFixture.recording(x).getReceived()));
+      check(forbidden, prefix + "y", expectedFor("y", "x", order), describe(RoomFixture.recording(y).getReceived()));
+    }
+
+    for (UserSession user : Arrays.asList(first, second, admin)) {
+      assertTrue(room.call(() -> room.removeUser(user)));
+    }
+    assertTrue(room.isReleased());
+    return String.join(", ", order);
+  }
+
+  // What a viewer joining and leaving during the round must have been told: the
+  // members it met on joining, its own room and media, then the room's events up
+  // to its leave
+  private static List<String> expectedFor(final String nick, final String other, final List<String> order) {
+    int joined = order.indexOf("newUser " + nick);
+    int left = order.indexOf("userLeft " + nick);
+    List<String> expected = new ArrayList<>(Arrays.asList("newUser admin", "newUser first", "newUser second"));
+    List<String> before = order.subList(0, joined);
+    if (before.contains("newUser " + other) && !before.contains("userLeft " + other)) {
+      expected.add("newUser " + other);
+    }
+    expected.add("uuid");
+    expected.add("videoInfo");
+    expected.addAll(order.subList(joined + 1, left));
+    return expected;
+  }
+
+  private static void check(final List<String> forbidden, final String who, final List<String> expected,
+      final List<String> received) {
+    if (!expected.equals(received)) {
+      forbidden.add(who + " expected " + expected + " but got " + received);
+    }
+  }
+
+  private static List<String> describe(final List<JsonObject> messages) {
+    List<String> described = new ArrayList<>();
+    for (JsonObject message : messages) {
+      String id = message.get("id").getAsString();
+      if (message.has("user")) {
+        id += " " + message.getAsJsonObject("user").get("nickname").getAsString();
+      }
+      described.add(id);
+    }
+    return described;
+  }
+
+  private static void awaitStart(final CountDownLatch start) {
+    try {
+      start.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.kurento.tutorial.loadtest.FakeKms;
+import org.kurento.tutorial.loadtest.LatencyRecorder;
+import org.kurento.tutorial.loadtest.SimulatedClient;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+
+import com.google.gson.JsonParser;
+
+// Two signaling nodes sharing a directory registry and a FakeKms: a room created
+// on node A is joined through node B, over JSON and over CBOR, and B relays the
+// whole session to A, from the first frame on
+public class RoomRelayTest {
+  private static final long TIMEOUT_SECONDS = 30;
+
+  // A viewer's socket, keeping the id of every message it gets
+  private static class Viewer extends AbstractWebSocketHandler {
+    private final String nick;
+    private final WireFormat format;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<CloseStatus> closed = new CompletableFuture<>();
+    private WebSocketSession session;
+
+    private Viewer(final String nick, final WireFormat format) {
+      this.nick = nick;
+      this.format = format;
+    }
+
+    private Viewer connect(final StandardWebSocketClient client, final String nodeUrl) throws Exception {
+      String path = format == WireFormat.CBOR ? "/player/cbor" : "/player";
+      session = client.doHandshake(this, nodeUrl + path).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      return this;
+    }
+
+    private synchronized void send(final OutboundMessage message) throws IOException {
+      session.sendMessage(message.encode(format));
+    }
+
+    private void register(final String room) throws IOException {
+      send(new OutboundMessage("register", out -> {
+        out.name("roomid").value(room);
+        out.name("user").beginObject();
+        out.name("nickname").value(nick);
+        out.name("avatar").beginObject();
+        out.name("id").value(1);
+        out.name("path").value("img/avatar1.png");
+        out.endObject();
+        out.endObject();
+        out.name("sdpOffer").value("v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"
+            + "m=video 9 UDP/TLS/RTP/SAVPF 96\r\na=mid:0\r\na=rtpmap:96 VP8/90000\r\na=recvonly\r\n");
+      }));
+    }
+
+    private void await(final String id) throws InterruptedException {
+      RoomFixture.await(nick + " to get '" + id + "'", () -> received.contains(id));
+    }
+
+    @Override
+    protected void handleTextMessage(final WebSocketSession s, final TextMessage message) {
+      received.add(JsonParser.parseString(message.getPayload()).getAsJsonObject().get("id").getAsString());
+    }
+
+    @Override
+    protected void handleBinaryMessage(final WebSocketSession s, final BinaryMessage message) {
+      received.add(CborCodec.decode(message.getPayload()).getId());
+    }
+
+    @Override
+    public void afterConnectionClosed(final WebSocketSession s, final CloseStatus status) {
+      closed.complete(status);
+    }
+  }
+
+  private Path directory;
+  private ConfigurableApplicationContext kms;
+  private ConfigurableApplicationContext nodeA;
+  private ConfigurableApplicationContext nodeB;
+  private String urlA;
+  private String urlB;
+
+  @BeforeEach
+  public void start() throws IOException {
+    directory = Files.createTempDirectory("player-rooms");
+    kms = new SpringApplicationBuilder(FakeKms.class)
+        .run("--spring.config.name=fake-kms", "--server.port=0", "--spring.jmx.enabled=false",
+            "--fakekms.latency-ms=0", "--fakekms.jitter-ms=0", "--fakekms.connect-delay-ms=-1");
+    String kmsUri = "ws://localhost:" + ((WebServerApplicationContext) kms).getWebServer().getPort() + "/kurento";
+    // Each node registers its rooms with the URL the other one reaches it at,
+    // hence fixed ports
+    int portA = freePort();
+    int portB = freePort();
+    urlA = "ws://localhost:" + portA;
+    urlB = "ws://localhost:" + portB;
+    nodeA = node("node-a", portA, kmsUri);
+    nodeB = node("node-b", portB, kmsUri);
+  }
+
+  @AfterEach
+  public void stop() throws IOException {
+    nodeB.close();
+    nodeA.close();
+    kms.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  @Timeout(value = 2, unit = TimeUnit.MINUTES)
+  public void viewersJoiningThroughAnotherNodeLandOnTheRoomsNode() throws Exception {
+    StandardWebSocketClient client = new StandardWebSocketClient();
+    LatencyRecorder recorder = new LatencyRecorder();
+    SimulatedClient admin = new SimulatedClient("admin", recorder);
+    admin.connect(client, urlA + "/player").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.start(RoomFixture.VIDEO_URL);
+    String room = admin.getRoom().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    admin.getStarted().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    // The register frame itself is handed to A, on the endpoint of its format
+    Viewer json = new Viewer("json", WireFormat.JSON).connect(client, urlB);
+    json.register(room);
+    json.await("startResponse");
+    Viewer cbor = new Viewer("cbor", WireFormat.CBOR).connect(client, urlB);
+    cbor.register(room);
+    cbor.await("startResponse");
+
+    StreamingRoom stream = onlyRoom(nodeA);
+    assertEquals(room, stream.getUUID());
+    assertEquals(Arrays.asList("admin", "cbor", "json"), nicks(stream));
+    assertTrue(nodeB.getBean(PlayerHandler.class).getRooms().isEmpty());
+    RoomForwarder.Stats relays = nodeB.getBean(RoomForwarder.class).getStats();
+    assertEquals(2, relays.getRelaysOpened());
+    assertEquals(0, relays.getRelayFailures());
+
+    // A command of one relayed viewer is applied by A and told to the other
+    json.send(new OutboundMessage("doSeek", out -> out.name("position").value(5000L)));
+    cbor.await("seek");
+    json.send(new OutboundMessage("getPosition", out -> { }));
+    json.await("position");
+    assertEquals(4, relays.getFramesForwarded());
+
+    // Leaving B leaves A
+    json.session.close(CloseStatus.NORMAL);
+    RoomFixture.await("json to leave the room on A", () -> nicks(stream).equals(Arrays.asList("admin", "cbor")));
+
+    // A dropping the relay drops the viewer
+    nodeA.close();
+    CloseStatus status = cbor.closed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    assertEquals(CloseStatus.GOING_AWAY.getCode(), status.getCode());
+  }
+
+  private ConfigurableApplicationContext node(final String id, final int port, final String kmsUri) {
+    return new SpringApplicationBuilder(PlayerApp.class)
+        .run("--server.port=" + port, "--management.server.port=0", "--server.ssl.enabled=false",
+            "--player.kms.uris=" + kmsUri, "--player.pipeline-pool.size=0", "--player.node.id=" + id,
+            "--player.node.url=ws://localhost:" + port, "--player.registry.type=DIRECTORY",
+            "--player.registry.directory=" + directory);
+  }
+
+  private static StreamingRoom onlyRoom(final ConfigurableApplicationContext node) {
+    List<StreamingRoom> rooms = new ArrayList<>(node.getBean(PlayerHandler.class).getRooms());
+    if (rooms.size() != 1) {
+      fail("Expected one room but found " + rooms.size());
+    }
+    return rooms.get(0);
+  }
+
+  // Sorted, whatever the order they joined in
+  private static List<String> nicks(final StreamingRoom room) {
+    List<String> nicks = new ArrayList<>();
+    for (UserSession user : room.getUserList()) {
+      nicks.add(user.getNick());
+    }
+    Collections.sort(nicks);
+    return nicks;
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
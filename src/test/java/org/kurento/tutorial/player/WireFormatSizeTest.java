@@ -0,0 +1,62 @@
+package org.kurento.tutorial.player;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.kurento.client.IceCandidate;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+
+// The size on the wire of the messages the binary framing is meant to shrink, in
+// both directions. The sizes and the encode and decode throughput are reported
+// by the WireFormatBenchmark of src/jmh.
+public class WireFormatSizeTest {
+  private static final String SDP = "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n"
+      + "a=group:BUNDLE 0\r\nm=video 9 UDP/TLS/RTP/SAVPF 96\r\nc=IN IP4 0.0.0.0\r\na=ice-ufrag:Zx8c\r\n"
+      + "a=ice-pwd:3kX9cRz1m0PqLw7tYv2uBn5e\r\na=mid:0\r\na=recvonly\r\na=rtcp-mux\r\na=rtpmap:96 VP8/90000\r\n";
+
+  private static final IceCandidate ICE = new IceCandidate(
+      "candidate:842163049 1 udp 1677729535 203.0.113.7 61023 typ srflx raddr 192.168.1.20 rport 61023 "
+          + "generation 0 ufrag Zx8c network-cost 999",
+      "0", 0);
+
+  @Test
+  public void binaryFramesAreSmaller() {
+    UserSession user = new UserSession(null, "viewer");
+    Map<String, OutboundMessage> messages = new LinkedHashMap<>();
+    // From the browser
+    messages.put("onIceCandidate", new OutboundMessage("onIceCandidate", out -> {
+      out.name("candidate").beginObject();
+      out.name("candidate").value(ICE.getCandidate());
+      out.name("sdpMid").value(ICE.getSdpMid());
+      out.name("sdpMLineIndex").value(ICE.getSdpMLineIndex());
+      out.endObject();
+    }));
+    messages.put("doSeek", new OutboundMessage("doSeek", out -> out.name("position").value(1_834_500L)));
+    messages.put("pause", new OutboundMessage("pause", out -> { }));
+    messages.put("start", new OutboundMessage("start", out -> {
+      out.name("videourl").value("https://example.com/videos/big-buck-bunny-1080p.mp4");
+      out.name("sdpOffer").value(SDP);
+    }));
+    // From the server
+    messages.put("iceCandidate", SignalingCodec.iceCandidate(ICE));
+    messages.put("iceCandidates", SignalingCodec.iceCandidates(Arrays.asList(ICE, ICE, ICE, ICE)));
+    messages.put("position", SignalingCodec.message("position", "position", 1_834_500L));
+    messages.put("seek", SignalingCodec.seek(user, Collections.singletonList(user), 1_834_500L));
+    messages.put("paused", SignalingCodec.playback("paused", user, Collections.singletonList(user)));
+    messages.put("startResponse", SignalingCodec.message("startResponse", "sdpAnswer", SDP));
+
+    for (Map.Entry<String, OutboundMessage> entry : messages.entrySet()) {
+      String json = ((TextMessage) entry.getValue().encode(WireFormat.JSON)).getPayload();
+      int jsonSize = json.getBytes(StandardCharsets.UTF_8).length;
+      int cborSize = ((BinaryMessage) entry.getValue().encode(WireFormat.CBOR)).getPayload().remaining();
+      assertTrue(cborSize < jsonSize, entry.getKey() + ": " + cborSize + " bytes in CBOR, " + jsonSize + " in JSON");
+    }
+  }
+}